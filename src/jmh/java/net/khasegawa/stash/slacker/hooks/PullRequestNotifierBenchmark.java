@@ -0,0 +1,181 @@
+package net.khasegawa.stash.slacker.hooks;
+
+import com.atlassian.bitbucket.pull.PullRequestAction;
+import com.atlassian.bitbucket.server.ApplicationPropertiesService;
+import net.khasegawa.stash.slacker.activeobjects.ProjectConfiguration;
+import net.khasegawa.stash.slacker.configurations.ConfigurationValues;
+import net.khasegawa.stash.slacker.configurations.NotifyConfiguration;
+import net.khasegawa.stash.slacker.deliveries.Delivery;
+import net.khasegawa.stash.slacker.metrics.SlackerMetrics;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Measures the stages a pull request event goes through on a dispatcher thread, per action.
+ *
+ * <ul>
+ *     <li>resolve: looks up the merged configuration of the repository</li>
+ *     <li>filter: runs the compiled notification filter</li>
+ *     <li>build: renders the message templates into a payload</li>
+ *     <li>serialize: writes the payload as JSON</li>
+ *     <li>post: encodes the JSON request body into a sink counting the bytes, instead of a connection</li>
+ *     <li>pipeline: all of the above</li>
+ * </ul>
+ *
+ * Run with "mvn -Pjmh test-compile exec:exec", which adds the GC profiler to report the allocations per event.
+ *
+ * Created by Kazuki Hasegawa on 26/10/18.
+ *
+ * @author Kazuki Hasegawa
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PullRequestNotifierBenchmark {
+    private static final String HOOK_URL = "https://hooks.slack.com/services/T00000000/B00000000/XXXXXXXXXXXXXXXX";
+
+    @Param({"OPENED", "REOPENED", "UPDATED", "RESCOPED", "MERGED", "DECLINED", "COMMENTED"})
+    public PullRequestAction action;
+
+    private PullRequestNotifier notifier;
+    private PullRequestNotification notification;
+    private NotifyConfiguration configuration;
+    private Payload payload;
+    private String json;
+    private CountingOutputStream sink;
+
+    @Setup
+    public void setUp() {
+        ApplicationPropertiesService propertiesService = mock(ApplicationPropertiesService.class);
+        when(propertiesService.getBaseUrl()).thenReturn(URI.create("https://bitbucket.example.com"));
+        when(propertiesService.getPluginProperty(anyString(), anyInt())).thenAnswer(new Answer<Integer>() {
+            @Override
+            public Integer answer(InvocationOnMock invocation) {
+                return (Integer) invocation.getArguments()[1];
+            }
+        });
+
+        StubConfigurationService configurationService = new StubConfigurationService(
+                StubEvents.PROJECT_ID, projectConfiguration(), StubEvents.REPOSITORY_ID, null);
+
+        // Payloads are built and serialized here, so the notifier never reaches the outbox.
+        // The metrics are never enabled, so no MBean is registered.
+        notifier = new PullRequestNotifier(propertiesService, configurationService, null, new SlackerMetrics());
+        notification = PullRequestNotification.of(StubEvents.of(action));
+        configuration = resolve();
+        if (!filter()) throw new IllegalStateException(action + " is not accepted by the filter");
+        payload = build();
+        if (payload == null) throw new IllegalStateException(action + " builds no payload");
+        json = serialize();
+        sink = new CountingOutputStream();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        notifier.destroy();
+    }
+
+    @Benchmark
+    public NotifyConfiguration resolve() {
+        return notifier.getConfiguration(notification);
+    }
+
+    @Benchmark
+    public boolean filter() {
+        return configuration.getFilter().accepts(notification);
+    }
+
+    @Benchmark
+    public Payload build() {
+        return notifier.buildPayload(notification, configuration);
+    }
+
+    @Benchmark
+    public String serialize() {
+        return PayloadGson.toJson(payload);
+    }
+
+    @Benchmark
+    public long post() throws IOException {
+        new Delivery(HOOK_URL, json).toJsonEntity().writeTo(sink);
+        return sink.count;
+    }
+
+    @Benchmark
+    public long pipeline() throws IOException {
+        NotifyConfiguration configuration = notifier.getConfiguration(notification);
+        if (!configuration.getFilter().accepts(notification)) return 0;
+
+        Payload payload = notifier.buildPayload(notification, configuration);
+        if (payload == null) return 0;
+
+        new Delivery(configuration.getHookURL(), PayloadGson.toJson(payload)).toJsonEntity().writeTo(sink);
+        return sink.count;
+    }
+
+    private static ConfigurationValues projectConfiguration() {
+        ProjectConfiguration configuration = mock(ProjectConfiguration.class);
+        when(configuration.getProjectId()).thenReturn(StubEvents.PROJECT_ID);
+        when(configuration.getHookURL()).thenReturn(HOOK_URL);
+        when(configuration.getChannel()).thenReturn("#pull-requests");
+        when(configuration.getNotifyPROpened()).thenReturn(true);
+        when(configuration.getNotifyPRReopened()).thenReturn(true);
+        when(configuration.getNotifyPRUpdated()).thenReturn(true);
+        when(configuration.getNotifyPRRescoped()).thenReturn(true);
+        when(configuration.getNotifyPRMerged()).thenReturn(true);
+        when(configuration.getNotifyPRDeclined()).thenReturn(true);
+        when(configuration.getNotifyPRCommented()).thenReturn(true);
+        when(configuration.getIgnoreWIP()).thenReturn(true);
+        when(configuration.getIgnoreNotCrossRepository()).thenReturn(false);
+        when(configuration.getQuietWindowSeconds()).thenReturn(0);
+        when(configuration.getDigestIntervalSeconds()).thenReturn(0);
+        when(configuration.getTitleFilter()).thenReturn("^Revert ");
+        when(configuration.getTargetBranches()).thenReturn("master, release/**");
+        when(configuration.getExcludeAuthors()).thenReturn("ci-bot");
+        when(configuration.getUserMapJSON()).thenReturn(
+                "{ \"" + StubEvents.AUTHOR + "\": \"slack.author\", \"" + StubEvents.COMMENTER + "\": \"slack.commenter\" }");
+        return ConfigurationValues.of(configuration);
+    }
+
+    /**
+     * Stands in for the connection. The benchmarks return the count so the writes are not optimized away.
+     */
+    private static final class CountingOutputStream extends OutputStream {
+        private long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package net.khasegawa.stash.slacker.hooks;
+
+import com.atlassian.activeobjects.external.ActiveObjects;
+import net.khasegawa.stash.slacker.activeobjects.ProjectConfiguration;
+import net.khasegawa.stash.slacker.activeobjects.RepositoryConfiguration;
+import net.khasegawa.stash.slacker.configurations.ConfigurationService;
+import net.khasegawa.stash.slacker.configurations.ConfigurationSnapshot;
+import net.khasegawa.stash.slacker.configurations.ConfigurationValues;
+import net.khasegawa.stash.slacker.configurations.EffectiveConfiguration;
+import net.khasegawa.stash.slacker.configurations.NotifyConfiguration;
+
+import javax.servlet.http.HttpServletRequest;
+
+import static org.mockito.Mockito.mock;
+
+/**
+ * Configuration service of the benchmarks and the load test, resolving configurations from a {@link ConfigurationSnapshot}
+ * like the real service does once the configurations are preloaded. Nothing is stored.
+ *
+ * Created by Kazuki Hasegawa on 26/10/18.
+ *
+ * @author Kazuki Hasegawa
+ */
+public class StubConfigurationService implements ConfigurationService {
+    private final ConfigurationSnapshot snapshot;
+
+    /**
+     * @param repositoryConfiguration null if the repository uses the project configuration.
+     */
+    public StubConfigurationService(Integer projectId,
+                                    ConfigurationValues projectConfiguration,
+                                    Integer repositoryId,
+                                    ConfigurationValues repositoryConfiguration) {
+        ConfigurationSnapshot snapshot = empty().withProjectConfiguration(projectId, projectConfiguration);
+        if (repositoryConfiguration != null) {
+            snapshot = snapshot.withRepositoryConfiguration(repositoryId, repositoryConfiguration);
+        }
+        this.snapshot = snapshot;
+    }
+
+    public StubConfigurationService(ConfigurationSnapshot snapshot) {
+        this.snapshot = snapshot;
+    }
+
+    /**
+     * @return A snapshot without configurations, to add them with its with methods.
+     */
+    public static ConfigurationSnapshot empty() {
+        // Nothing is streamed from a mocked ActiveObjects, so this loads an empty snapshot.
+        return ConfigurationSnapshot.load(mock(ActiveObjects.class));
+    }
+
+    @Override
+    public NotifyConfiguration getNotifyConfiguration(Integer projectId, Integer repositoryId) {
+        return snapshot.getNotifyConfiguration(projectId, repositoryId);
+    }
+
+    @Override
+    public EffectiveConfiguration getEffectiveConfiguration(Integer projectId, Integer repositoryId) {
+        return new EffectiveConfiguration(projectId,
+                                          snapshot.getProjectConfiguration(projectId),
+                                          repositoryId == null ? null : snapshot.getRepositoryConfiguration(repositoryId));
+    }
+
+    @Override
+    public ConfigurationValues findProjectConfiguration(Integer projectId) {
+        ConfigurationValues configuration = snapshot.getProjectConfiguration(projectId);
+        return configuration == null ? ConfigurationValues.DEFAULTS : configuration;
+    }
+
+    @Override
+    public ConfigurationValues findRepositoryConfiguration(Integer repositoryId) {
+        ConfigurationValues configuration = snapshot.getRepositoryConfiguration(repositoryId);
+        return configuration == null ? ConfigurationValues.DEFAULTS : configuration;
+    }
+
+    @Override
+    public boolean existsProjectConfiguration(Integer projectId) {
+        return snapshot.getProjectConfiguration(projectId) != null;
+    }
+
+    @Override
+    public boolean existsRepositoryConfiguration(Integer repositoryId) {
+        return snapshot.getRepositoryConfiguration(repositoryId) != null;
+    }
+
+    @Override
+    public ProjectConfiguration getProjectConfiguration(Integer projectId) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public RepositoryConfiguration getRepositoryConfiguration(Integer repositoryId) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void setProjectConfigurationByHttpServletRequest(Integer projectId, HttpServletRequest req) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void setRepositoryConfigurationByHttpServletRequest(Integer repositoryId, HttpServletRequest req) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void setProjectConfiguration(Integer projectId, ConfigurationValues configuration) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void setRepositoryConfiguration(Integer repositoryId, ConfigurationValues configuration) {
+        throw new UnsupportedOperationException();
+    }
+}
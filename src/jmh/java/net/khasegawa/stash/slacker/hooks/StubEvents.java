@@ -0,0 +1,155 @@
+package net.khasegawa.stash.slacker.hooks;
+
+import com.atlassian.bitbucket.comment.Comment;
+import com.atlassian.bitbucket.event.pull.PullRequestCommentAddedEvent;
+import com.atlassian.bitbucket.event.pull.PullRequestDeclinedEvent;
+import com.atlassian.bitbucket.event.pull.PullRequestEvent;
+import com.atlassian.bitbucket.event.pull.PullRequestMergedEvent;
+import com.atlassian.bitbucket.event.pull.PullRequestOpenedEvent;
+import com.atlassian.bitbucket.event.pull.PullRequestReopenedEvent;
+import com.atlassian.bitbucket.event.pull.PullRequestRescopedEvent;
+import com.atlassian.bitbucket.event.pull.PullRequestUpdatedEvent;
+import com.atlassian.bitbucket.project.Project;
+import com.atlassian.bitbucket.pull.PullRequest;
+import com.atlassian.bitbucket.pull.PullRequestAction;
+import com.atlassian.bitbucket.pull.PullRequestParticipant;
+import com.atlassian.bitbucket.pull.PullRequestRef;
+import com.atlassian.bitbucket.repository.Ref;
+import com.atlassian.bitbucket.repository.Repository;
+import com.atlassian.bitbucket.user.ApplicationUser;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Stub pull request events of the benchmarks and the load test.
+ *
+ * The events are mocked because their constructors differ between Bitbucket versions.
+ * They are only read once, by {@link PullRequestNotification#of(PullRequestEvent)} in the benchmark setup
+ * or when the load test fires them, so the mocks are never called in a measured method.
+ *
+ * Created by Kazuki Hasegawa on 26/10/18.
+ *
+ * @author Kazuki Hasegawa
+ */
+public final class StubEvents {
+    public static final int PROJECT_ID = 1;
+    public static final int REPOSITORY_ID = 10;
+    public static final String AUTHOR = "author";
+    public static final String COMMENTER = "commenter";
+
+    private StubEvents() {
+    }
+
+    public static PullRequestEvent of(PullRequestAction action) {
+        return of(action, 42L, REPOSITORY_ID);
+    }
+
+    /**
+     * @return An event of the given pull request in a repository of the {@link #PROJECT_ID} project.
+     */
+    public static PullRequestEvent of(PullRequestAction action, long pullRequestId, int repositoryId) {
+        PullRequest pullRequest = pullRequest(pullRequestId, repositoryId);
+        PullRequestEvent event;
+        switch (action) {
+            case OPENED:
+                event = mock(PullRequestOpenedEvent.class);
+                break;
+            case REOPENED:
+                event = mock(PullRequestReopenedEvent.class);
+                break;
+            case MERGED:
+                event = mock(PullRequestMergedEvent.class);
+                break;
+            case DECLINED:
+                event = mock(PullRequestDeclinedEvent.class);
+                break;
+            case RESCOPED:
+                event = mock(PullRequestRescopedEvent.class);
+                break;
+            case UPDATED:
+                PullRequestUpdatedEvent updatedEvent = mock(PullRequestUpdatedEvent.class);
+                Ref previousToBranch = ref("refs/heads/develop", "develop", pullRequest.getToRef().getRepository());
+                when(updatedEvent.getPreviousTitle()).thenReturn("Add a notification filter");
+                when(updatedEvent.getPreviousDescription()).thenReturn(description(20));
+                when(updatedEvent.getPreviousToBranch()).thenReturn(previousToBranch);
+                event = updatedEvent;
+                break;
+            case COMMENTED:
+                PullRequestCommentAddedEvent commentEvent = mock(PullRequestCommentAddedEvent.class);
+                Comment comment = mock(Comment.class);
+                when(comment.getId()).thenReturn(1000L);
+                when(comment.getText()).thenReturn("Could the glob be compiled once instead of per event?");
+                when(commentEvent.getComment()).thenReturn(comment);
+                event = commentEvent;
+                break;
+            default:
+                throw new IllegalArgumentException("No stub event of " + action);
+        }
+
+        ApplicationUser user = action == PullRequestAction.COMMENTED ?
+                user(3, COMMENTER, "Commenter") : pullRequest.getAuthor().getUser();
+        when(event.getPullRequest()).thenReturn(pullRequest);
+        when(event.getAction()).thenReturn(action);
+        when(event.getUser()).thenReturn(user);
+        return event;
+    }
+
+    private static PullRequest pullRequest(long pullRequestId, int repositoryId) {
+        Project project = mock(Project.class);
+        when(project.getId()).thenReturn(PROJECT_ID);
+        when(project.getKey()).thenReturn("SLACKER");
+
+        Repository repository = mock(Repository.class);
+        when(repository.getId()).thenReturn(repositoryId);
+        when(repository.getSlug()).thenReturn("slacker");
+        when(repository.getName()).thenReturn("Slacker");
+        when(repository.getProject()).thenReturn(project);
+
+        PullRequestRef toRef = ref("refs/heads/master", "master", repository);
+        PullRequestRef fromRef = ref("refs/heads/feature/filters", "feature/filters", repository);
+
+        PullRequestParticipant author = mock(PullRequestParticipant.class);
+        ApplicationUser authorUser = user(2, AUTHOR, "Author");
+        when(author.getUser()).thenReturn(authorUser);
+
+        PullRequest pullRequest = mock(PullRequest.class);
+        when(pullRequest.getId()).thenReturn(pullRequestId);
+        when(pullRequest.getVersion()).thenReturn(3);
+        when(pullRequest.getTitle()).thenReturn("Precompile the notification filter");
+        when(pullRequest.getDescription()).thenReturn(description(40));
+        when(pullRequest.isCrossRepository()).thenReturn(false);
+        when(pullRequest.getToRef()).thenReturn(toRef);
+        when(pullRequest.getFromRef()).thenReturn(fromRef);
+        when(pullRequest.getAuthor()).thenReturn(author);
+        return pullRequest;
+    }
+
+    private static PullRequestRef ref(String id, String displayId, Repository repository) {
+        PullRequestRef ref = mock(PullRequestRef.class);
+        when(ref.getId()).thenReturn(id);
+        when(ref.getDisplayId()).thenReturn(displayId);
+        when(ref.getRepository()).thenReturn(repository);
+        when(ref.toString()).thenReturn(id);
+        return ref;
+    }
+
+    private static ApplicationUser user(int id, String name, String displayName) {
+        ApplicationUser user = mock(ApplicationUser.class);
+        when(user.getId()).thenReturn(id);
+        when(user.getName()).thenReturn(name);
+        when(user.getDisplayName()).thenReturn(displayName);
+        return user;
+    }
+
+    /**
+     * @return A description of the given number of lines, with some non-ASCII text.
+     */
+    private static String description(int lines) {
+        StringBuilder description = new StringBuilder();
+        for (int i = 0; i < lines; i++) {
+            description.append("- Line ").append(i).append(": compile the filter once, フィルタ\n");
+        }
+        return description.toString();
+    }
+}
@@ -0,0 +1,200 @@
+package net.khasegawa.stash.slacker.loadtest;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Stand-in for Slack incoming webhooks on the loopback interface, so the load test needs no network.
+ *
+ * Every POST to /services/... is answered after the configured latency, and a configured share of them
+ * is answered with a 429 and Retry-After, a 500, or not before the client timed out.
+ * Accepted posts are recorded by the ID of their pull request, found in its link in the payload.
+ *
+ * Created by Kazuki Hasegawa on 26/10/18.
+ *
+ * @author Kazuki Hasegawa
+ */
+public final class FakeSlackServer {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final Pattern PULL_REQUEST_ID = Pattern.compile("/pull-requests/(\\d+)/");
+
+    /**
+     * How the webhook answers, the ratios are between 0 and 1.
+     */
+    public static final class Behaviour {
+        public long latencyMillis = 5;
+        public long jitterMillis = 5;
+        public double rateLimitRatio = 0.005;
+        public int retryAfterSeconds = 1;
+        public double serverErrorRatio = 0.01;
+        public double timeoutRatio = 0.002;
+        public long timeoutMillis = 3000;
+    }
+
+    private final Behaviour behaviour;
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final ConcurrentMap<Long, Long> receivedAt = new ConcurrentHashMap<Long, Long>();
+    private final AtomicLong posts = new AtomicLong();
+    private final AtomicLong duplicates = new AtomicLong();
+    private final AtomicLong rateLimited = new AtomicLong();
+    private final AtomicLong serverErrors = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+
+    public FakeSlackServer(Behaviour behaviour, int threads) throws IOException {
+        // Otherwise Nagle's algorithm delays every response behind the delayed ACK of its headers.
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+        this.behaviour = behaviour;
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        this.executor = Executors.newFixedThreadPool(
+                threads, new ThreadFactoryBuilder().setNameFormat("fake-slack-%d").setDaemon(true).build());
+        this.server.setExecutor(executor);
+        this.server.createContext("/services/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    answer(exchange);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    /**
+     * @param path Distinguishes webhooks, such as "T00000000/B00000001/secret".
+     */
+    public String hookURL(String path) {
+        return "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort() +
+                "/services/" + path;
+    }
+
+    /**
+     * @return The time each pull request was first accepted, in milliseconds since the epoch.
+     */
+    public ConcurrentMap<Long, Long> getReceivedAt() {
+        return receivedAt;
+    }
+
+    public long getPosts() {
+        return posts.get();
+    }
+
+    public long getDuplicates() {
+        return duplicates.get();
+    }
+
+    public long getRateLimited() {
+        return rateLimited.get();
+    }
+
+    public long getServerErrors() {
+        return serverErrors.get();
+    }
+
+    public long getTimeouts() {
+        return timeouts.get();
+    }
+
+    private void answer(HttpExchange exchange) throws IOException {
+        if (!"POST".equals(exchange.getRequestMethod())) {
+            respond(exchange, 405, "invalid_method", null);
+            return;
+        }
+
+        String body = read(exchange.getRequestBody());
+        posts.incrementAndGet();
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        sleep(behaviour.latencyMillis + (behaviour.jitterMillis > 0 ? random.nextLong(behaviour.jitterMillis + 1) : 0));
+
+        double outcome = random.nextDouble();
+        if (outcome < behaviour.timeoutRatio) {
+            timeouts.incrementAndGet();
+            // The client gives up before this, the late response is discarded.
+            sleep(behaviour.timeoutMillis);
+            respond(exchange, 504, "timeout", null);
+            return;
+        }
+        outcome -= behaviour.timeoutRatio;
+        if (outcome < behaviour.rateLimitRatio) {
+            rateLimited.incrementAndGet();
+            respond(exchange, 429, "rate_limited", String.valueOf(behaviour.retryAfterSeconds));
+            return;
+        }
+        outcome -= behaviour.rateLimitRatio;
+        if (outcome < behaviour.serverErrorRatio) {
+            serverErrors.incrementAndGet();
+            respond(exchange, 500, "server_error", null);
+            return;
+        }
+
+        Matcher matcher = PULL_REQUEST_ID.matcher(body);
+        if (matcher.find()) {
+            Long id = Long.valueOf(matcher.group(1));
+            if (receivedAt.putIfAbsent(id, System.currentTimeMillis()) != null) duplicates.incrementAndGet();
+        }
+        respond(exchange, 200, "ok", null);
+    }
+
+    private static void respond(HttpExchange exchange, int status, String text, String retryAfter) throws IOException {
+        byte[] bytes = text.getBytes(UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        if (retryAfter != null) exchange.getResponseHeaders().set("Retry-After", retryAfter);
+        try {
+            exchange.sendResponseHeaders(status, bytes.length);
+            OutputStream out = exchange.getResponseBody();
+            out.write(bytes);
+            out.close();
+        } catch (IOException e) {
+            // The client timed out and closed the connection.
+        }
+    }
+
+    private static String read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) >= 0) {
+            out.write(buffer, 0, read);
+        }
+        return new String(out.toByteArray(), UTF_8);
+    }
+
+    private static void sleep(long millis) {
+        if (millis <= 0) return;
+
+        try {
+            TimeUnit.MILLISECONDS.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,333 @@
+package net.khasegawa.stash.slacker.loadtest;
+
+import com.atlassian.bitbucket.event.pull.PullRequestEvent;
+import com.atlassian.bitbucket.pull.PullRequestAction;
+import com.atlassian.bitbucket.server.ApplicationPropertiesService;
+import net.khasegawa.stash.slacker.activeobjects.OutboxEntry;
+import net.khasegawa.stash.slacker.activeobjects.ProjectConfiguration;
+import net.khasegawa.stash.slacker.activeobjects.RepositoryConfiguration;
+import net.khasegawa.stash.slacker.configurations.ConfigurationSnapshot;
+import net.khasegawa.stash.slacker.configurations.ConfigurationValues;
+import net.khasegawa.stash.slacker.deliveries.DeliveryOutbox;
+import net.khasegawa.stash.slacker.deliveries.SlackClient;
+import net.khasegawa.stash.slacker.deliveries.WebhookDeliverer;
+import net.khasegawa.stash.slacker.hooks.NotificationDispatcher;
+import net.khasegawa.stash.slacker.hooks.PullRequestListener;
+import net.khasegawa.stash.slacker.hooks.PullRequestNotifier;
+import net.khasegawa.stash.slacker.hooks.StubConfigurationService;
+import net.khasegawa.stash.slacker.hooks.StubEvents;
+import net.khasegawa.stash.slacker.metrics.DeliveryHealth;
+import net.khasegawa.stash.slacker.metrics.LatencyHistogram;
+import net.khasegawa.stash.slacker.metrics.NotificationCounters;
+import net.khasegawa.stash.slacker.metrics.SlackerMetrics;
+import net.khasegawa.stash.slacker.testing.InMemoryActiveObjects;
+import net.khasegawa.stash.slacker.testing.InMemoryClusterLockService;
+import net.khasegawa.stash.slacker.testing.StubPropertiesService;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Fires synthetic pull request events at a {@link PullRequestListener} wired to the real dispatcher, notifier,
+ * outbox and deliverer, which post to a {@link FakeSlackServer} on the loopback interface.
+ *
+ * Reports how long the event threads were blocked by the listener, the latency from firing an event
+ * to its message being accepted, and the events which never arrived. Exits with 1 if any event was lost
+ * or posted twice. The outbox is stored by {@link InMemoryActiveObjects}.
+ * Several nodes of a cluster can be simulated, each with its own listener, dispatcher, notifier, outbox and deliverer.
+ * They share the outbox table and an {@link InMemoryClusterLockService}, and the events are spread over them.
+ *
+ * Options are given as --name=value:
+ * <ul>
+ *     <li>events fired (default: 5000)</li>
+ *     <li>nodes of the simulated cluster (default: 1)</li>
+ *     <li>threads firing them at once (default: 8)</li>
+ *     <li>hooks the repositories are spread over (default: 4)</li>
+ *     <li>latency and jitter of the webhook in milliseconds (default: 5 and 5)</li>
+ *     <li>rate-limit, errors and timeouts, the ratios of 429, 500 and timed out posts (default: 0.005, 0.01, 0.002)</li>
+ *     <li>retry-after seconds of a 429 (default: 1)</li>
+ *     <li>wait seconds without progress before the missing events are reported lost (default: 60)</li>
+ *     <li>property=key=value overrides a bitbucket.properties value, may be repeated</li>
+ * </ul>
+ * The plugin properties default to a short read timeout, retry delay and poll interval and to a rate limit
+ * far above Slack's, so a run takes seconds instead of hours.
+ *
+ * Created by Kazuki Hasegawa on 26/10/18.
+ *
+ * @author Kazuki Hasegawa
+ */
+public final class LoadTest {
+    private static final PullRequestAction[] ACTIONS = {
+            PullRequestAction.OPENED, PullRequestAction.REOPENED, PullRequestAction.UPDATED,
+            PullRequestAction.RESCOPED, PullRequestAction.MERGED, PullRequestAction.DECLINED,
+            PullRequestAction.COMMENTED
+    };
+
+    private final Map<String, String> options = new HashMap<String, String>();
+    private final Map<String, String> properties = new HashMap<String, String>();
+
+    private LoadTest(String[] args) {
+        properties.put("plugin.slacker.rate.per.minute", "60000");
+        properties.put("plugin.slacker.rate.burst", "100");
+        properties.put("plugin.slacker.http.read.timeout", "1000");
+        properties.put("plugin.slacker.http.total.timeout", "2000");
+        properties.put("plugin.slacker.outbox.poll.interval", "100");
+        properties.put("plugin.slacker.retry.base.delay", "100");
+        properties.put("plugin.slacker.retry.max.delay", "2000");
+        properties.put("plugin.slacker.breaker.open.seconds", "1");
+        properties.put("plugin.slacker.breaker.max.open.seconds", "5");
+
+        for (String arg : args) {
+            if (!arg.startsWith("--") || arg.indexOf('=') < 0) {
+                throw new IllegalArgumentException("Options are --name=value: " + arg);
+            }
+            String name = arg.substring(2, arg.indexOf('='));
+            String value = arg.substring(arg.indexOf('=') + 1);
+            if (name.equals("property")) {
+                properties.put(value.substring(0, value.indexOf('=')), value.substring(value.indexOf('=') + 1));
+            } else {
+                options.put(name, value);
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        System.exit(new LoadTest(args).run() ? 0 : 1);
+    }
+
+    private boolean run() throws Exception {
+        int events = intOption("events", 5000);
+        int nodes = Math.max(1, intOption("nodes", 1));
+        int threads = intOption("threads", 8);
+        int hooks = intOption("hooks", 4);
+
+        // The health report counts the dispatcher drops, so it has to keep every event.
+        if (!properties.containsKey("plugin.slacker.health.events")) {
+            properties.put("plugin.slacker.health.events", String.valueOf(events));
+        }
+
+        FakeSlackServer.Behaviour behaviour = new FakeSlackServer.Behaviour();
+        behaviour.latencyMillis = intOption("latency", 5);
+        behaviour.jitterMillis = intOption("jitter", 5);
+        behaviour.rateLimitRatio = doubleOption("rate-limit", 0.005);
+        behaviour.serverErrorRatio = doubleOption("errors", 0.01);
+        behaviour.timeoutRatio = doubleOption("timeouts", 0.002);
+        behaviour.retryAfterSeconds = intOption("retry-after", 1);
+        behaviour.timeoutMillis = Integer.parseInt(properties.get("plugin.slacker.http.read.timeout")) * 3L;
+
+        FakeSlackServer server = new FakeSlackServer(behaviour, Math.max(4, hooks * 2));
+        server.start();
+
+        ApplicationPropertiesService propertiesService = StubPropertiesService.of(properties);
+        InMemoryActiveObjects activeObjects = new InMemoryActiveObjects();
+        InMemoryClusterLockService lockService = new InMemoryClusterLockService();
+        SlackerMetrics metrics = new SlackerMetrics();
+        DeliveryHealth health = new DeliveryHealth(propertiesService);
+        ConfigurationSnapshot configurations = configurations(server, hooks);
+        List<Node> cluster = new ArrayList<Node>();
+        PullRequestListener[] listeners = new PullRequestListener[nodes];
+        for (int i = 0; i < nodes; i++) {
+            Node node = new Node(propertiesService, activeObjects, lockService, metrics, health, configurations);
+            cluster.add(node);
+            listeners[i] = node.listener;
+        }
+
+        System.out.println("Creating " + events + " events");
+        final PullRequestEvent[] fired = new PullRequestEvent[events];
+        for (int i = 0; i < events; i++) {
+            fired[i] = StubEvents.of(ACTIONS[i % ACTIONS.length], i + 1, StubEvents.REPOSITORY_ID + i % hooks);
+        }
+
+        System.out.println("Firing them from " + threads + " threads on " + nodes + " nodes at " + hooks + " webhooks");
+        AtomicLongArray firedAt = new AtomicLongArray(events + 1);
+        LatencyHistogram blocked = new LatencyHistogram();
+        long start = System.currentTimeMillis();
+        fire(listeners, fired, threads, firedAt, blocked);
+        long firedIn = System.currentTimeMillis() - start;
+
+        int waitSeconds = intOption("wait", 60);
+        int received = 0;
+        long progressAt = System.currentTimeMillis();
+        while (received < events && System.currentTimeMillis() - progressAt < TimeUnit.SECONDS.toMillis(waitSeconds)) {
+            TimeUnit.MILLISECONDS.sleep(100);
+            int now = server.getReceivedAt().size();
+            if (now > received) {
+                received = now;
+                progressAt = System.currentTimeMillis();
+            }
+        }
+        long deliveredIn = System.currentTimeMillis() - start;
+
+        long[] latencies = new long[received];
+        int count = 0;
+        for (Map.Entry<Long, Long> receipt : server.getReceivedAt().entrySet()) {
+            if (count == latencies.length) break;
+            latencies[count++] = receipt.getValue() - firedAt.get(receipt.getKey().intValue());
+        }
+        Arrays.sort(latencies, 0, count);
+
+        System.out.println();
+        System.out.println("Events fired:           " + events + " in " + firedIn + " ms");
+        System.out.println("Event thread blocking:  p50 " + blocked.get50thPercentileMillis() + " ms, p99 " +
+                                   blocked.get99thPercentileMillis() + " ms, max " + blocked.getMaxMillis() + " ms");
+        System.out.println("Delivered:              " + received + " in " + deliveredIn + " ms (" +
+                                   (received * 1000L / Math.max(1, deliveredIn)) + " messages/s)");
+        System.out.println("End-to-end latency:     p50 " + percentile(latencies, count, 0.50) + " ms, p95 " +
+                                   percentile(latencies, count, 0.95) + " ms, p99 " +
+                                   percentile(latencies, count, 0.99) + " ms, max " +
+                                   (count == 0 ? 0 : latencies[count - 1]) + " ms");
+        long dropped = 0;
+        for (DeliveryHealth.RepositoryReport repository : health.report().repositories) {
+            dropped += repository.dropped;
+        }
+        System.out.println("Lost:                   " + (events - received) + " (" + dropped +
+                                   " dropped by the full dispatch queue)");
+        System.out.println("Duplicates:             " + server.getDuplicates());
+        System.out.println("Webhook posts:          " + server.getPosts() + " (429: " + server.getRateLimited() +
+                                   ", 500: " + server.getServerErrors() + ", timeouts: " + server.getTimeouts() + ")");
+        System.out.println("Outbox:                 " + activeObjects.getInserted(OutboxEntry.class) + " stored, " +
+                                   activeObjects.getDeleted(OutboxEntry.class) + " deleted, " + activeObjects.size(OutboxEntry.class) + " left");
+        for (PullRequestAction action : ACTIONS) {
+            NotificationCounters counters = metrics.getCounters(action);
+            System.out.println(String.format("%-24s received %d, duplicates %d, filtered out %d, sent %d, failed %d",
+                                             action + ":", counters.getReceived(), counters.getDuplicates(),
+                                             counters.getFilteredOut(), counters.getSent(), counters.getFailed()));
+        }
+
+        for (Node node : cluster) {
+            node.destroy();
+        }
+        server.stop();
+        return received == events && server.getDuplicates() == 0;
+    }
+
+    /**
+     * Fires the events round robin at the listeners of the nodes.
+     */
+    private static void fire(final PullRequestListener[] listeners,
+                             final PullRequestEvent[] events,
+                             int threads,
+                             final AtomicLongArray firedAt,
+                             final LatencyHistogram blocked) throws InterruptedException {
+        final CountDownLatch ready = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            final int first = t;
+            final int step = threads;
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        ready.await();
+                        for (int i = first; i < events.length; i += step) {
+                            firedAt.set(i + 1, System.currentTimeMillis());
+                            long start = System.nanoTime();
+                            listeners[i % listeners.length].notifySlack(events[i]);
+                            blocked.recordSince(start);
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }, "event-" + t);
+            thread.start();
+        }
+        ready.countDown();
+        done.await();
+    }
+
+    /**
+     * The components of one node of the cluster.
+     */
+    private static final class Node {
+        private final SlackClient slackClient;
+        private final WebhookDeliverer deliverer;
+        private final DeliveryOutbox outbox;
+        private final PullRequestNotifier notifier;
+        private final NotificationDispatcher dispatcher;
+        private final PullRequestListener listener;
+
+        private Node(ApplicationPropertiesService propertiesService,
+                     InMemoryActiveObjects activeObjects,
+                     InMemoryClusterLockService lockService,
+                     SlackerMetrics metrics,
+                     DeliveryHealth health,
+                     ConfigurationSnapshot configurations) throws Exception {
+            slackClient = new SlackClient(propertiesService);
+            deliverer = new WebhookDeliverer(propertiesService, slackClient, metrics, health);
+            outbox = new DeliveryOutbox(activeObjects.proxy(), lockService.proxy(), propertiesService, deliverer,
+                                        metrics, health);
+            notifier = new PullRequestNotifier(
+                    propertiesService, new StubConfigurationService(configurations), outbox, metrics);
+            dispatcher = new NotificationDispatcher(propertiesService, notifier);
+            listener = new PullRequestListener(propertiesService, dispatcher, metrics, health);
+            outbox.afterPropertiesSet();
+        }
+
+        private void destroy() throws Exception {
+            dispatcher.destroy();
+            notifier.destroy();
+            outbox.destroy();
+            deliverer.destroy();
+            slackClient.destroy();
+        }
+    }
+
+    /**
+     * Spreads the repositories over the webhooks, one repository configuration per webhook.
+     */
+    private static ConfigurationSnapshot configurations(FakeSlackServer server, int hooks) {
+        ProjectConfiguration project = mock(ProjectConfiguration.class);
+        when(project.getProjectId()).thenReturn(StubEvents.PROJECT_ID);
+        when(project.getUserMapJSON()).thenReturn(
+                "{ \"" + StubEvents.AUTHOR + "\": \"slack.author\", \"" + StubEvents.COMMENTER + "\": \"slack.commenter\" }");
+
+        ConfigurationSnapshot snapshot = StubConfigurationService.empty()
+                .withProjectConfiguration(StubEvents.PROJECT_ID, ConfigurationValues.of(project));
+        for (int i = 0; i < hooks; i++) {
+            RepositoryConfiguration repository = mock(RepositoryConfiguration.class);
+            when(repository.getRepositoryId()).thenReturn(StubEvents.REPOSITORY_ID + i);
+            when(repository.getHookURL()).thenReturn(server.hookURL("T00000000/B" + (10000000 + i) + "/secret"));
+            when(repository.getChannel()).thenReturn("#load-test");
+            when(repository.getNotifyPROpened()).thenReturn(true);
+            when(repository.getNotifyPRReopened()).thenReturn(true);
+            when(repository.getNotifyPRUpdated()).thenReturn(true);
+            when(repository.getNotifyPRRescoped()).thenReturn(true);
+            when(repository.getNotifyPRMerged()).thenReturn(true);
+            when(repository.getNotifyPRDeclined()).thenReturn(true);
+            when(repository.getNotifyPRCommented()).thenReturn(true);
+            when(repository.getIgnoreWIP()).thenReturn(false);
+            when(repository.getIgnoreNotCrossRepository()).thenReturn(false);
+            when(repository.getQuietWindowSeconds()).thenReturn(0);
+            when(repository.getDigestIntervalSeconds()).thenReturn(0);
+            when(repository.getUserMapJSON()).thenReturn("{}");
+            snapshot = snapshot.withRepositoryConfiguration(StubEvents.REPOSITORY_ID + i,
+                                                            ConfigurationValues.of(repository));
+        }
+        return snapshot;
+    }
+
+    private int intOption(String name, int defaultValue) {
+        return options.containsKey(name) ? Integer.parseInt(options.get(name)) : defaultValue;
+    }
+
+    private double doubleOption(String name, double defaultValue) {
+        return options.containsKey(name) ? Double.parseDouble(options.get(name)) : defaultValue;
+    }
+
+    private static long percentile(long[] sorted, int count, double quantile) {
+        if (count == 0) return 0;
+        return sorted[Math.max(0, (int) Math.ceil(quantile * count) - 1)];
+    }
+}
@@ -0,0 +1,28 @@
+package net.khasegawa.stash.slacker.activeobjects;
+
+import net.java.ao.Entity;
+import net.java.ao.schema.*;
+
+/**
+ * A saved project or repository configuration, read by the other nodes of a cluster to reload it.
+ *
+ * Exactly one of the project ID and the repository ID is set. Changes are polled by the time they were saved,
+ * and deleted after an hour.
+ *
+ * Created by Kazuki Hasegawa on 26/10/18.
+ *
+ * @author Kazuki Hasegawa
+ */
+@Table("SlackerCfgChange")
+public interface ConfigurationChange extends Entity {
+    public Integer getProjectId();
+    public void setProjectId(Integer projectId);
+
+    public Integer getRepositoryId();
+    public void setRepositoryId(Integer repositoryId);
+
+    @NotNull
+    @Indexed
+    public Long getChangedAt();
+    public void setChangedAt(Long changedAt);
+}
@@ -0,0 +1,118 @@
+package net.khasegawa.stash.slacker.activeobjects;
+
+import net.java.ao.Entity;
+import net.java.ao.schema.*;
+
+/**
+ * The columns shared by {@link ProjectConfiguration} and {@link RepositoryConfiguration},
+ * so that both are saved by the same code.
+ *
+ * Created by Kazuki Hasegawa on 26/10/18.
+ *
+ * @author Kazuki Hasegawa
+ */
+public interface ConfigurationEntity extends Entity {
+    public String getHookURL();
+    public void setHookURL(String hookURL);
+
+    public String getChannel();
+    public void setChannel(String channel);
+
+    @NotNull
+    @Default("true")
+    public Boolean getNotifyPROpened();
+    public void setNotifyPROpened(Boolean notifyPROpened);
+
+    @NotNull
+    @Default("true")
+    public Boolean getNotifyPRReopened();
+    public void setNotifyPRReopened(Boolean notifyPRReopened);
+
+    @NotNull
+    @Default("true")
+    public Boolean getNotifyPRUpdated();
+    public void setNotifyPRUpdated(Boolean notifyPRUpdated);
+
+    @NotNull
+    @Default("true")
+    public Boolean getNotifyPRRescoped();
+    public void setNotifyPRRescoped(Boolean notifyPRRescoped);
+
+    @NotNull
+    @Default("true")
+    public Boolean getNotifyPRMerged();
+    public void setNotifyPRMerged(Boolean notifyPRMerged);
+
+    @NotNull
+    @Default("true")
+    public Boolean getNotifyPRDeclined();
+    public void setNotifyPRDeclined(Boolean notifyPRDeclined);
+
+    @NotNull
+    @Default("true")
+    public Boolean getNotifyPRCommented();
+    public void setNotifyPRCommented(Boolean notifyPRCommented);
+
+    @NotNull
+    @Default("false")
+    public Boolean getIgnoreWIP();
+    public void setIgnoreWIP(Boolean ignoreWIP);
+
+    @NotNull
+    @Default("false")
+    public Boolean getIgnoreNotCrossRepository();
+    public void setIgnoreNotCrossRepository(Boolean ignoreNotCrossRepository);
+
+    @NotNull
+    @Default("0")
+    public Integer getQuietWindowSeconds();
+    public void setQuietWindowSeconds(Integer quietWindowSeconds);
+
+    @NotNull
+    @Default("0")
+    public Integer getDigestIntervalSeconds();
+    public void setDigestIntervalSeconds(Integer digestIntervalSeconds);
+
+    @NotNull
+    @Default("0")
+    public Integer getMaxTextCharacters();
+    public void setMaxTextCharacters(Integer maxTextCharacters);
+
+    @NotNull
+    @Default("0")
+    public Integer getMaxTextBytes();
+    public void setMaxTextBytes(Integer maxTextBytes);
+
+    @NotNull
+    @Default("false")
+    public Boolean getCompactUpdates();
+    public void setCompactUpdates(Boolean compactUpdates);
+
+    public String getTitleFilter();
+    @StringLength(value=StringLength.UNLIMITED)
+    public void setTitleFilter(String titleFilter);
+
+    public String getTargetBranches();
+    @StringLength(value=StringLength.UNLIMITED)
+    public void setTargetBranches(String targetBranches);
+
+    public String getSourceBranches();
+    @StringLength(value=StringLength.UNLIMITED)
+    public void setSourceBranches(String sourceBranches);
+
+    public String getIncludeAuthors();
+    @StringLength(value=StringLength.UNLIMITED)
+    public void setIncludeAuthors(String includeAuthors);
+
+    public String getExcludeAuthors();
+    @StringLength(value=StringLength.UNLIMITED)
+    public void setExcludeAuthors(String excludeAuthors);
+
+    public String getMessageTemplates();
+    @StringLength(value=StringLength.UNLIMITED)
+    public void setMessageTemplates(String messageTemplates);
+
+    public String getUserMapJSON();
+    @StringLength(value=StringLength.UNLIMITED)
+    public void setUserMapJSON(String userMapJSON);
+}
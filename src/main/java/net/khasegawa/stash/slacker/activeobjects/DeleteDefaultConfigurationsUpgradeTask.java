@@ -0,0 +1,113 @@
+package net.khasegawa.stash.slacker.activeobjects;
+
+import com.atlassian.activeobjects.external.ActiveObjects;
+import com.atlassian.activeobjects.external.ActiveObjectsUpgradeTask;
+import com.atlassian.activeobjects.external.ModelVersion;
+import com.atlassian.bitbucket.permission.Permission;
+import com.atlassian.bitbucket.repository.Repository;
+import com.atlassian.bitbucket.repository.RepositoryService;
+import com.atlassian.bitbucket.user.SecurityService;
+import com.atlassian.bitbucket.util.Operation;
+import net.khasegawa.stash.slacker.configurations.ConfigurationValues;
+import org.apache.commons.lang.NullArgumentException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Deletes the configurations which earlier versions created with default values when a settings page was viewed.
+ *
+ * A saved configuration can have default values too, as a blank webhook URL is accepted. Deleting a project
+ * configuration with default values leaves its repositories as they were, since a missing project configuration
+ * is merged as the defaults. A repository configuration also overrides the events and the switches of its project,
+ * so it is only deleted when its project has no configuration or one with the default events and switches.
+ *
+ * Created by Kazuki Hasegawa on 26/10/18.
+ *
+ * @author Kazuki Hasegawa
+ */
+public class DeleteDefaultConfigurationsUpgradeTask implements ActiveObjectsUpgradeTask {
+    private static final Logger logger = LoggerFactory.getLogger(DeleteDefaultConfigurationsUpgradeTask.class);
+
+    private final RepositoryService repositoryService;
+    private final SecurityService securityService;
+
+    public DeleteDefaultConfigurationsUpgradeTask(RepositoryService repositoryService,
+                                                  SecurityService securityService) throws NullArgumentException {
+        if (repositoryService == null) throw new NullArgumentException("RepositoryService is not null!");
+        if (securityService == null) throw new NullArgumentException("SecurityService is not null!");
+
+        this.repositoryService = repositoryService;
+        this.securityService = securityService;
+    }
+
+    @Override
+    public ModelVersion getModelVersion() {
+        return ModelVersion.valueOf("1");
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void upgrade(ModelVersion currentVersion, final ActiveObjects activeObjects) {
+        activeObjects.migrate(ProjectConfiguration.class, RepositoryConfiguration.class);
+
+        final Map<Integer, ConfigurationValues> projectValues = new HashMap<Integer, ConfigurationValues>();
+        List<ProjectConfiguration> projectConfigurations = new ArrayList<ProjectConfiguration>();
+        for (ProjectConfiguration configuration : activeObjects.find(ProjectConfiguration.class)) {
+            ConfigurationValues values = ConfigurationValues.of(configuration);
+            projectValues.put(configuration.getProjectId(), values);
+            if (values.isDefault()) projectConfigurations.add(configuration);
+        }
+
+        // The repositories are read without a user while the plugin starts.
+        List<RepositoryConfiguration> repositoryConfigurations = securityService
+                .withPermission(Permission.REPO_READ, "Finding the projects of the Slacker repository configurations")
+                .call(new Operation<List<RepositoryConfiguration>, RuntimeException>() {
+                    @Override
+                    public List<RepositoryConfiguration> perform() {
+                        List<RepositoryConfiguration> configurations = new ArrayList<RepositoryConfiguration>();
+                        for (RepositoryConfiguration configuration : activeObjects.find(RepositoryConfiguration.class)) {
+                            if (ConfigurationValues.of(configuration).isDefault() &&
+                                    !overridesProject(configuration.getRepositoryId(), projectValues)) {
+                                configurations.add(configuration);
+                            }
+                        }
+                        return configurations;
+                    }
+                });
+
+        if (!projectConfigurations.isEmpty()) {
+            activeObjects.delete(projectConfigurations.toArray(new ProjectConfiguration[projectConfigurations.size()]));
+        }
+        if (!repositoryConfigurations.isEmpty()) {
+            activeObjects.delete(repositoryConfigurations.toArray(new RepositoryConfiguration[repositoryConfigurations.size()]));
+        }
+
+        logger.info("Deleted {} project and {} repository configurations with default values",
+                    projectConfigurations.size(), repositoryConfigurations.size());
+    }
+
+    /**
+     * @return true if the repository configuration changes the events or the switches of its project configuration,
+     *         or its project cannot be found out.
+     */
+    private boolean overridesProject(Integer repositoryId, Map<Integer, ConfigurationValues> projectValues) {
+        Repository repository;
+        try {
+            repository = repositoryService.getById(repositoryId);
+        } catch (RuntimeException e) {
+            logger.warn("Keeping the Slacker configuration of the repository {}, its project was not found",
+                        repositoryId, e);
+            return true;
+        }
+        // Nothing is notified for a deleted repository.
+        if (repository == null) return false;
+
+        ConfigurationValues project = projectValues.get(repository.getProject().getId());
+        return project != null && !project.hasDefaultSwitches();
+    }
+}
@@ -0,0 +1,37 @@
+package net.khasegawa.stash.slacker.activeobjects;
+
+import net.java.ao.Entity;
+import net.java.ao.schema.*;
+
+/**
+ * A further webhook and channel notified for a project or repository configuration, besides its own.
+ *
+ * Exactly one of the project ID and the repository ID is set.
+ *
+ * Created by Kazuki Hasegawa on 26/10/18.
+ *
+ * @author Kazuki Hasegawa
+ */
+@Table("SlackerTarget")
+public interface DeliveryTarget extends Entity {
+    @Indexed
+    public Integer getProjectId();
+    public void setProjectId(Integer projectId);
+
+    @Indexed
+    public Integer getRepositoryId();
+    public void setRepositoryId(Integer repositoryId);
+
+    @NotNull
+    public String getHookURL();
+    public void setHookURL(String hookURL);
+
+    public String getChannel();
+    public void setChannel(String channel);
+
+    /**
+     * Comma separated names of the notified actions, such as "MERGED,DECLINED". Null notifies every action.
+     */
+    public String getEvents();
+    public void setEvents(String events);
+}
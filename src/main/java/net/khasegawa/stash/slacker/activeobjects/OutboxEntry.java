@@ -0,0 +1,52 @@
+package net.khasegawa.stash.slacker.activeobjects;
+
+import net.java.ao.Entity;
+import net.java.ao.schema.*;
+
+/**
+ * A payload waiting to be posted, deleted once Slack accepted or rejected it.
+ *
+ * Created by Kazuki Hasegawa on 26/10/18.
+ *
+ * @author Kazuki Hasegawa
+ */
+@Table("SlackerOutbox")
+public interface OutboxEntry extends Entity {
+    @NotNull
+    public String getHookURL();
+    public void setHookURL(String hookURL);
+
+    /**
+     * The name of the notified action, null for a digest of several notifications.
+     */
+    public String getAction();
+    public void setAction(String action);
+
+    @StringLength(value=StringLength.UNLIMITED)
+    public String getPayload();
+    @StringLength(value=StringLength.UNLIMITED)
+    public void setPayload(String payload);
+
+    @NotNull
+    public Long getCreatedAt();
+    public void setCreatedAt(Long createdAt);
+
+    @NotNull
+    @Default("0")
+    public Integer getAttempts();
+    public void setAttempts(Integer attempts);
+
+    /**
+     * The entry is claimed or waits for a retry until then.
+     */
+    @NotNull
+    @Indexed
+    public Long getNextAttemptAt();
+    public void setNextAttemptAt(Long nextAttemptAt);
+
+    /**
+     * The outbox which claimed the entry, null while it waits for a retry or was never claimed.
+     */
+    public String getClaimedBy();
+    public void setClaimedBy(String claimedBy);
+}
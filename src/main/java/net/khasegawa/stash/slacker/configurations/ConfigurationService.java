@@ -13,50 +13,88 @@ import java.sql.SQLException;
  * @author Kazuki hasegawa
  */
 public interface ConfigurationService {
+    /**
+     * Returns the project configuration, creating it if it does not exist.
+     * Read paths should use {@link #findProjectConfiguration(Integer)} instead.
+     */
     public abstract ProjectConfiguration getProjectConfiguration(Integer projectId) throws SQLException,
             NullArgumentException;
 
+    /**
+     * Returns the project configuration without writing to the database.
+     *
+     * @return {@link ConfigurationValues#DEFAULTS} if the project has no configuration.
+     */
+    public abstract ConfigurationValues findProjectConfiguration(Integer projectId) throws SQLException,
+            NullArgumentException;
+
+    /**
+     * @throws InvalidConfigurationException if the user map JSON is invalid, nothing is saved.
+     */
     public abstract void setProjectConfigurationByHttpServletRequest(Integer projectId,
-                                                                     HttpServletRequest req) throws SQLException;
+                                                                     HttpServletRequest req) throws SQLException,
+            InvalidConfigurationException;
 
     public abstract boolean existsProjectConfiguration(Integer projectId) throws SQLException;
 
-    public abstract  void setProjectConfiguration(Integer projectId,
-                                                  String hookURL,
-                                                  String channel,
-                                                  Boolean notifyPROepened,
-                                                  Boolean notifyPRReopened,
-                                                  Boolean notifyPRUpdated,
-                                                  Boolean notifyPRReescoped,
-                                                  Boolean notifyPRMerged,
-                                                  Boolean notifyPRDeclined,
-                                                  Boolean notifyPRCommented,
-                                                  Boolean ignoreWIP,
-                                                  Boolean ignoreNotCrossRepository,
-                                                  String userMapJSON) throws  SQLException;
+    /**
+     * @throws InvalidConfigurationException if a value is invalid, nothing is saved.
+     */
+    public abstract void setProjectConfiguration(Integer projectId,
+                                                 ConfigurationValues configuration) throws SQLException,
+            NullArgumentException,
+            InvalidConfigurationException;
 
+    /**
+     * Returns the repository configuration, creating it if it does not exist.
+     * Read paths should use {@link #findRepositoryConfiguration(Integer)} instead.
+     */
     public abstract RepositoryConfiguration getRepositoryConfiguration(Integer repositoryId) throws SQLException,
             NullArgumentException;
 
+    /**
+     * Returns the repository configuration without writing to the database.
+     *
+     * @return {@link ConfigurationValues#DEFAULTS} if the repository has no configuration.
+     */
+    public abstract ConfigurationValues findRepositoryConfiguration(Integer repositoryId) throws SQLException,
+            NullArgumentException;
+
     public abstract boolean existsRepositoryConfiguration(Integer repositoryId) throws SQLException;
 
+    /**
+     * @throws InvalidConfigurationException if the user map JSON is invalid, nothing is saved.
+     */
     public abstract void setRepositoryConfigurationByHttpServletRequest(Integer repositoryId,
                                                                         HttpServletRequest req) throws SQLException,
             NullArgumentException,
-            NumberFormatException;
+            NumberFormatException,
+            InvalidConfigurationException;
 
+    /**
+     * @throws InvalidConfigurationException if a value is invalid, nothing is saved.
+     */
     public abstract void setRepositoryConfiguration(Integer repositoryId,
-                                                    String hookURL,
-                                                    String channel,
-                                                    Boolean notifyPROepened,
-                                                    Boolean notifyPRReopened,
-                                                    Boolean notifyPRUpdated,
-                                                    Boolean notifyPRReescoped,
-                                                    Boolean notifyPRMerged,
-                                                    Boolean notifyPRDeclined,
-                                                    Boolean notifyPRCommented,
-                                                    Boolean ignoreWIP,
-                                                    Boolean ignoreNotCrossRepository,
-                                                    String userMapJSON) throws  SQLException,
+                                                    ConfigurationValues configuration) throws SQLException,
+            NullArgumentException,
+            InvalidConfigurationException;
+
+    /**
+     * Returns the effective configuration of the repository.
+     * Results are cached per repository and evicted when the project or repository configuration is saved.
+     * Once the configurations are preloaded this does not query the database.
+     */
+    public abstract NotifyConfiguration getNotifyConfiguration(Integer projectId,
+                                                               Integer repositoryId) throws SQLException,
+            NullArgumentException;
+
+    /**
+     * Loads the project configuration and the repository configuration with one query each,
+     * without creating missing configurations.
+     *
+     * @param repositoryId null to load the project configuration only.
+     */
+    public abstract EffectiveConfiguration getEffectiveConfiguration(Integer projectId,
+                                                                     Integer repositoryId) throws SQLException,
             NullArgumentException;
 }
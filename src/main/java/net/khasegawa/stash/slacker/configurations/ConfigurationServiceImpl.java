@@ -2,37 +2,88 @@ package net.khasegawa.stash.slacker.configurations;
 
 import com.atlassian.activeobjects.external.ActiveObjects;
 import com.atlassian.bitbucket.project.ProjectService;
+import com.atlassian.bitbucket.server.ApplicationPropertiesService;
 import com.atlassian.bitbucket.repository.RepositoryService;
+import com.atlassian.sal.api.transaction.TransactionCallback;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import net.java.ao.DBParam;
 import net.java.ao.Query;
+import net.khasegawa.stash.slacker.activeobjects.ConfigurationChange;
+import net.khasegawa.stash.slacker.activeobjects.ConfigurationEntity;
+import net.khasegawa.stash.slacker.activeobjects.DeliveryTarget;
 import net.khasegawa.stash.slacker.activeobjects.ProjectConfiguration;
 import net.khasegawa.stash.slacker.activeobjects.RepositoryConfiguration;
 import org.apache.commons.lang.NullArgumentException;
 import org.apache.commons.lang3.BooleanUtils;
+import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
 
 import javax.servlet.http.HttpServletRequest;
 import java.sql.SQLException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
+ * Stores the configurations with ActiveObjects.
+ *
+ * Every configuration is loaded into an immutable {@link ConfigurationSnapshot} when the plugin is enabled,
+ * after that lookups do not query the database. Saves write through and publish a modified copy of the snapshot.
+ *
+ * In a cluster every node has its own snapshot. Saves also store a {@link ConfigurationChange} in the same transaction
+ * as the configuration and its targets, which the other nodes poll for to reload the saved configuration.
+ * A transaction may commit after changes saved later, so every poll reads the changes of the minute before the
+ * previous poll as well, and reloads their configurations again. A reload reads the committed configuration,
+ * so reading a change twice is harmless. A node which could not poll for an hour reloads every configuration,
+ * because older changes are deleted. The poll interval is read from bitbucket.properties:
+ * <ul>
+ *     <li>plugin.slacker.configuration.poll.interval in seconds (default: 5)</li>
+ * </ul>
+ *
  * Created by Kazuki Hasegawa on 14/05/15.
  *
  * @author Kazuki Hasegawa
  */
-public class ConfigurationServiceImpl implements ConfigurationService {
+public class ConfigurationServiceImpl implements ConfigurationService, InitializingBean, DisposableBean {
     private static final Logger logger = LoggerFactory.getLogger(ConfigurationServiceImpl.class);
+    private static final long SNAPSHOT_RETRY_SECONDS = 30;
+    private static final int MAX_QUIET_WINDOW_SECONDS = 3600;
+    private static final int MAX_DIGEST_INTERVAL_SECONDS = 3600;
+    private static final String CHANGE_POLL_INTERVAL_PROPERTY = "plugin.slacker.configuration.poll.interval";
+    private static final int DEFAULT_CHANGE_POLL_INTERVAL = 5;
+    private static final long CHANGE_RETENTION_MILLIS = TimeUnit.HOURS.toMillis(1);
+    // Longer than a save transaction takes to commit, plus the clock difference of the nodes.
+    private static final long CHANGE_POLL_OVERLAP_MILLIS = TimeUnit.MINUTES.toMillis(1);
 
     private final ActiveObjects activeObjects;
     private final ProjectService projectService;
     private final RepositoryService repositoryService;
+    private final int changePollInterval;
+
+    private final Object snapshotLock = new Object();
+    private volatile ConfigurationSnapshot snapshot;
+    private long saveCount;
+    // When the last poll or load started, only used by the loader thread.
+    private long lastPolledAt;
+    private final ScheduledExecutorService snapshotLoader = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("slacker-configuration-loader-%d").setDaemon(true).build());
 
     public ConfigurationServiceImpl(ActiveObjects activeObjects,
+                                    ApplicationPropertiesService propertiesService,
                                     ProjectService projectService,
                                     RepositoryService repositoryService) throws NullArgumentException {
         this.activeObjects = activeObjects;
         this.projectService = projectService;
         this.repositoryService = repositoryService;
+        this.changePollInterval = Math.max(1, propertiesService.getPluginProperty(CHANGE_POLL_INTERVAL_PROPERTY,
+                                                                                  DEFAULT_CHANGE_POLL_INTERVAL));
     }
 
     @Override
@@ -43,11 +94,8 @@ public class ConfigurationServiceImpl implements ConfigurationService {
         ProjectConfiguration[] configurations = getProjectConfigurations(projectId);
         ProjectConfiguration configuration = null;
         if (configurations.length == 0) {
-            configuration = activeObjects.create(
-                    ProjectConfiguration.class,
-                    new DBParam("PROJECT_ID", projectId),
-                    new DBParam("USER_MAP_JSON", "{ \"Stash UserID\": \"Slack UserID\" }")
-            );
+            configuration = createConfiguration(ProjectConfiguration.class, "PROJECT_ID", projectId);
+            publishProjectConfiguration(projectId, ConfigurationValues.of(configuration, getTargets("PROJECT_ID", projectId)));
         } else {
             configuration = configurations[0];
         }
@@ -55,6 +103,24 @@ public class ConfigurationServiceImpl implements ConfigurationService {
         return configuration;
     }
 
+    @Override
+    public ConfigurationValues findProjectConfiguration(Integer projectId) throws SQLException,
+            NullArgumentException {
+        if (projectId == null) throw new NullArgumentException("Project ID is not null!");
+
+        ConfigurationValues configuration;
+        ConfigurationSnapshot snapshot = this.snapshot;
+        if (snapshot != null) {
+            configuration = snapshot.getProjectConfiguration(projectId);
+        } else {
+            ProjectConfiguration[] configurations = getProjectConfigurations(projectId);
+            configuration = configurations.length == 0 ? null :
+                    ConfigurationValues.of(configurations[0], getTargets("PROJECT_ID", projectId));
+        }
+
+        return configuration == null ? ConfigurationValues.DEFAULTS : configuration;
+    }
+
     @Override
     public boolean existsProjectConfiguration(Integer projectId) throws SQLException {
         if (projectId == null ) throw new NullArgumentException("Project ID is not null!");
@@ -70,90 +136,21 @@ public class ConfigurationServiceImpl implements ConfigurationService {
     public void setProjectConfigurationByHttpServletRequest(Integer projectId,
                                                             HttpServletRequest req) throws SQLException,
             NullArgumentException,
-            NumberFormatException {
-        String hookURL = req.getParameter("hookURL");
-        String channel = req.getParameter("channel");
-        Boolean notifyPROpened = BooleanUtils.toBoolean(req.getParameter("notifyPROpened"));
-        Boolean notifyPRReopened = BooleanUtils.toBoolean(req.getParameter("notifyPRReopened"));
-        Boolean notifyPRUpdated = BooleanUtils.toBoolean(req.getParameter("notifyPRUpdated"));
-        Boolean notifyPRRescoped = BooleanUtils.toBoolean(req.getParameter("notifyPRRescoped"));
-        Boolean notifyPRMerged = BooleanUtils.toBoolean(req.getParameter("notifyPRMerged"));
-        Boolean notifyPRDeclined = BooleanUtils.toBoolean(req.getParameter("notifyPRDeclined"));
-        Boolean notifyPRCommented = BooleanUtils.toBoolean(req.getParameter("notifyPRCommented"));
-        Boolean ignoreWIP = BooleanUtils.toBoolean(req.getParameter("ignoreWIP"));
-        Boolean ignoreNotCrossRepository = BooleanUtils.toBoolean(req.getParameter("ignoreNotCrossRepository"));
-        String userMapJSON = req.getParameter("userMapJSON");
-
-        setProjectConfiguration(
-            projectId,
-            hookURL,
-            channel,
-            notifyPROpened,
-            notifyPRReopened,
-            notifyPRUpdated,
-            notifyPRRescoped,
-            notifyPRMerged,
-            notifyPRDeclined,
-            notifyPRCommented,
-            ignoreWIP,
-            ignoreNotCrossRepository,
-            userMapJSON
-        );
+            NumberFormatException,
+            InvalidConfigurationException {
+        setProjectConfiguration(projectId, parseConfiguration(req));
     }
 
     @Override
     public void setProjectConfiguration(Integer projectId,
-                                        String hookURL,
-                                        String channel,
-                                        Boolean notifyPROpened,
-                                        Boolean notifyPRReopened,
-                                        Boolean notifyPRUpdated,
-                                        Boolean notifyPRRescoped,
-                                        Boolean notifyPRMerged,
-                                        Boolean notifyPRDeclined,
-                                        Boolean notifyPRCommented,
-                                        Boolean ignoreWIP,
-                                        Boolean ignoreNotCrossRepository,
-                                        String userMapJSON) throws SQLException,
-            NullArgumentException {
+                                        ConfigurationValues configuration) throws SQLException,
+            NullArgumentException,
+            InvalidConfigurationException {
         if (projectId == null ) throw new NullArgumentException("Project ID is not null!");
+        validate(configuration);
 
-        ProjectConfiguration[] configurations = getProjectConfigurations(projectId);
-
-        if (configurations.length == 0) {
-            activeObjects.create(
-                    ProjectConfiguration.class,
-                    new DBParam("PROJECT_ID", projectId),
-                    new DBParam("HOOK_URL", hookURL),
-                    new DBParam("CHANNEL", channel),
-                    new DBParam("NOTIFY_PR_OPENED", notifyPROpened),
-                    new DBParam("NOTIFY_PR_REOPENED", notifyPRReopened),
-                    new DBParam("NOTIFY_PR_UPDATED", notifyPRUpdated),
-                    new DBParam("NOTIFY_PR_RESCOPED", notifyPRRescoped),
-                    new DBParam("NOTIFY_PR_MERGED", notifyPRMerged),
-                    new DBParam("NOTIFY_PR_DECLINED", notifyPRDeclined),
-                    new DBParam("NOTIFY_PR_COMMENTED", notifyPRCommented),
-                    new DBParam("IGNORE_WIP", ignoreWIP),
-                    new DBParam("IGNORE_NOT_CROSS_REPOSITORY", ignoreNotCrossRepository),
-                    new DBParam("USER_MAP_JSON", userMapJSON)
-            );
-            return;
-        }
-
-        ProjectConfiguration configuration = configurations[0];
-        configuration.setHookURL(hookURL);
-        configuration.setChannel(channel);
-        configuration.setNotifyPROpened(notifyPROpened);
-        configuration.setNotifyPRReopened(notifyPRReopened);
-        configuration.setNotifyPRUpdated(notifyPRUpdated);
-        configuration.setNotifyPRRescoped(notifyPRRescoped);
-        configuration.setNotifyPRMerged(notifyPRMerged);
-        configuration.setNotifyPRDeclined(notifyPRDeclined);
-        configuration.setNotifyPRCommented(notifyPRCommented);
-        configuration.setIgnoreWIP(ignoreWIP);
-        configuration.setIgnoreNotCrossRepository(ignoreNotCrossRepository);
-        configuration.setUserMapJSON(userMapJSON);
-        configuration.save();
+        saveConfiguration(ProjectConfiguration.class, "PROJECT_ID", projectId, configuration);
+        publishProjectConfiguration(projectId, configuration);
     }
 
     @Override
@@ -161,28 +158,42 @@ public class ConfigurationServiceImpl implements ConfigurationService {
             NullArgumentException {
         if (repositoryId == null ) throw new NullArgumentException("Repository ID is not null!");
 
-        RepositoryConfiguration[] configurations = activeObjects.find(
-                RepositoryConfiguration.class,
-                Query.select().where("REPOSITORY_ID = ?", repositoryId));
+        RepositoryConfiguration[] configurations = getRepositoryConfigurations(repositoryId);
 
         if (configurations.length == 0) {
-            return activeObjects.create(
-                    RepositoryConfiguration.class,
-                    new DBParam("REPOSITORY_ID", repositoryId),
-                    new DBParam("USER_MAP_JSON", "{ \"Stash UserID\": \"Slack UserID\" }")
-            );
+            RepositoryConfiguration configuration =
+                    createConfiguration(RepositoryConfiguration.class, "REPOSITORY_ID", repositoryId);
+            publishRepositoryConfiguration(repositoryId,
+                                           ConfigurationValues.of(configuration, getTargets("REPOSITORY_ID", repositoryId)));
+            return configuration;
         }
 
         return configurations[0];
     }
 
+    @Override
+    public ConfigurationValues findRepositoryConfiguration(Integer repositoryId) throws SQLException,
+            NullArgumentException {
+        if (repositoryId == null) throw new NullArgumentException("Repository ID is not null!");
+
+        ConfigurationValues configuration;
+        ConfigurationSnapshot snapshot = this.snapshot;
+        if (snapshot != null) {
+            configuration = snapshot.getRepositoryConfiguration(repositoryId);
+        } else {
+            RepositoryConfiguration[] configurations = getRepositoryConfigurations(repositoryId);
+            configuration = configurations.length == 0 ? null :
+                    ConfigurationValues.of(configurations[0], getTargets("REPOSITORY_ID", repositoryId));
+        }
+
+        return configuration == null ? ConfigurationValues.DEFAULTS : configuration;
+    }
+
     @Override
     public boolean existsRepositoryConfiguration(Integer repositoryId) throws SQLException {
         if (repositoryId == null ) throw new NullArgumentException("Repository ID is not null!");
 
-        RepositoryConfiguration[] configurations = activeObjects.find(
-                RepositoryConfiguration.class,
-                Query.select().where("REPOSITORY_ID = ?", repositoryId));
+        RepositoryConfiguration[] configurations = getRepositoryConfigurations(repositoryId);
 
         return configurations.length > 0;
     }
@@ -191,92 +202,368 @@ public class ConfigurationServiceImpl implements ConfigurationService {
     public void setRepositoryConfigurationByHttpServletRequest(Integer repositoryId,
                                                                HttpServletRequest req) throws SQLException,
             NullArgumentException,
-            NumberFormatException {
-        String hookURL = req.getParameter("hookURL");
-        String channel = req.getParameter("channel");
-        Boolean notifyPROpened = BooleanUtils.toBoolean(req.getParameter("notifyPROpened"));
-        Boolean notifyPRReopened = BooleanUtils.toBoolean(req.getParameter("notifyPRReopened"));
-        Boolean notifyPRUpdated = BooleanUtils.toBoolean(req.getParameter("notifyPRUpdated"));
-        Boolean notifyPRRescoped = BooleanUtils.toBoolean(req.getParameter("notifyPRRescoped"));
-        Boolean notifyPRMerged = BooleanUtils.toBoolean(req.getParameter("notifyPRMerged"));
-        Boolean notifyPRDeclined = BooleanUtils.toBoolean(req.getParameter("notifyPRDeclined"));
-        Boolean notifyPRCommented = BooleanUtils.toBoolean(req.getParameter("notifyPRCommented"));
-        Boolean ignoreWIP = BooleanUtils.toBoolean(req.getParameter("ignoreWIP"));
-        Boolean ignoreNotCrossRepository = BooleanUtils.toBoolean(req.getParameter("ignoreNotCrossRepository"));
-        String userMapJSON = req.getParameter("userMapJSON");
-
-        setRepositoryConfiguration(
-                repositoryId,
-                hookURL,
-                channel,
-                notifyPROpened,
-                notifyPRReopened,
-                notifyPRUpdated,
-                notifyPRRescoped,
-                notifyPRMerged,
-                notifyPRDeclined,
-                notifyPRCommented,
-                ignoreWIP,
-                ignoreNotCrossRepository,
-                userMapJSON
-        );
+            NumberFormatException,
+            InvalidConfigurationException {
+        setRepositoryConfiguration(repositoryId, parseConfiguration(req));
     }
 
     @Override
     public void setRepositoryConfiguration(Integer repositoryId,
-                                           String hookURL,
-                                           String channel,
-                                           Boolean notifyPROpened,
-                                           Boolean notifyPRReopened,
-                                           Boolean notifyPRUpdated,
-                                           Boolean notifyPRRescoped,
-                                           Boolean notifyPRMerged,
-                                           Boolean notifyPRDeclined,
-                                           Boolean notifyPRCommented,
-                                           Boolean ignoreWIP,
-                                           Boolean ignoreNotCrossRepository,
-                                           String userMapJSON) throws  SQLException,
-            NullArgumentException {
+                                           ConfigurationValues configuration) throws  SQLException,
+            NullArgumentException,
+            InvalidConfigurationException {
         if (repositoryId == null ) throw new NullArgumentException("Repository ID is not null!");
+        validate(configuration);
 
-        RepositoryConfiguration[] configurations = activeObjects.find(
-                RepositoryConfiguration.class,
-                Query.select().where("REPOSITORY_ID = ?", repositoryId));
+        saveConfiguration(RepositoryConfiguration.class, "REPOSITORY_ID", repositoryId, configuration);
+        publishRepositoryConfiguration(repositoryId, configuration);
+    }
 
-        if (configurations.length == 0) {
-            activeObjects.create(
-                    RepositoryConfiguration.class,
-                    new DBParam("REPOSITORY_ID", repositoryId),
-                    new DBParam("HOOK_URL", hookURL),
-                    new DBParam("CHANNEL", channel),
-                    new DBParam("NOTIFY_PR_OPENED", notifyPROpened),
-                    new DBParam("NOTIFY_PR_REOPENED", notifyPRReopened),
-                    new DBParam("NOTIFY_PR_UPDATED", notifyPRUpdated),
-                    new DBParam("NOTIFY_PR_RESCOPED", notifyPRRescoped),
-                    new DBParam("NOTIFY_PR_MERGED", notifyPRMerged),
-                    new DBParam("NOTIFY_PR_DECLINED", notifyPRDeclined),
-                    new DBParam("NOTIFY_PR_COMMENTED", notifyPRCommented),
-                    new DBParam("IGNORE_WIP", ignoreWIP),
-                    new DBParam("IGNORE_NOT_CROSS_REPOSITORY", ignoreNotCrossRepository),
-                    new DBParam("USER_MAP_JSON", userMapJSON)
+    @Override
+    public NotifyConfiguration getNotifyConfiguration(Integer projectId,
+                                                      Integer repositoryId) throws SQLException,
+            NullArgumentException {
+        if (projectId == null) throw new NullArgumentException("Project ID is not null!");
+        if (repositoryId == null) throw new NullArgumentException("Repository ID is not null!");
+
+        ConfigurationSnapshot snapshot = this.snapshot;
+        if (snapshot != null) return snapshot.getNotifyConfiguration(projectId, repositoryId);
+
+        return getEffectiveConfiguration(projectId, repositoryId).getNotifyConfiguration();
+    }
+
+    @Override
+    public EffectiveConfiguration getEffectiveConfiguration(Integer projectId,
+                                                            Integer repositoryId) throws SQLException,
+            NullArgumentException {
+        if (projectId == null) throw new NullArgumentException("Project ID is not null!");
+
+        ConfigurationSnapshot snapshot = this.snapshot;
+        if (snapshot != null) {
+            return new EffectiveConfiguration(
+                    projectId,
+                    snapshot.getProjectConfiguration(projectId),
+                    repositoryId == null ? null : snapshot.getRepositoryConfiguration(repositoryId));
+        }
+
+        ProjectConfiguration[] projectConfigurations = getProjectConfigurations(projectId);
+        RepositoryConfiguration[] repositoryConfigurations = repositoryId == null ?
+                new RepositoryConfiguration[0] : getRepositoryConfigurations(repositoryId);
+
+        return new EffectiveConfiguration(
+                projectId,
+                projectConfigurations.length == 0 ? null :
+                        ConfigurationValues.of(projectConfigurations[0], getTargets("PROJECT_ID", projectId)),
+                repositoryConfigurations.length == 0 ? null :
+                        ConfigurationValues.of(repositoryConfigurations[0], getTargets("REPOSITORY_ID", repositoryId)));
+    }
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        snapshotLoader.execute(new Runnable() {
+            @Override
+            public void run() {
+                loadSnapshot();
+            }
+        });
+        snapshotLoader.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                pollChanges();
+            }
+        }, changePollInterval, changePollInterval, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        snapshotLoader.shutdownNow();
+    }
+
+    /**
+     * Loads every configuration into the snapshot. Until it is published lookups fall back to queries.
+     * ActiveObjects blocks until it is initialized, which is why this runs on its own thread.
+     */
+    private void loadSnapshot() {
+        try {
+            while (true) {
+                long count;
+                synchronized (snapshotLock) {
+                    count = saveCount;
+                }
+                // Taken before the load, so changes saved during the load are polled again.
+                long startedAt = System.currentTimeMillis();
+                ConfigurationSnapshot loaded = ConfigurationSnapshot.load(activeObjects);
+                synchronized (snapshotLock) {
+                    // Retry if a configuration was saved during the load, the loaded copy may have missed it.
+                    if (saveCount == count) {
+                        snapshot = loaded;
+                        lastPolledAt = startedAt;
+                        logger.info("Loaded {} project and {} repository configurations",
+                                    loaded.getProjectConfigurationCount(), loaded.getRepositoryConfigurationCount());
+                        return;
+                    }
+                }
+            }
+        } catch (RuntimeException e) {
+            logger.error("Failed to load the Slacker configurations, retrying in {} seconds",
+                         SNAPSHOT_RETRY_SECONDS, e);
+            snapshotLoader.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    loadSnapshot();
+                }
+            }, SNAPSHOT_RETRY_SECONDS, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Reloads the configurations saved since a minute before the last poll, and deletes the expired changes.
+     * Changes of this node are reloaded as well, which is harmless.
+     */
+    private void pollChanges() {
+        synchronized (snapshotLock) {
+            // The snapshot is still loading, and the load sees every change.
+            if (snapshot == null) return;
+        }
+
+        try {
+            long now = System.currentTimeMillis();
+            if (now - lastPolledAt > CHANGE_RETENTION_MILLIS - CHANGE_POLL_OVERLAP_MILLIS) {
+                logger.warn("Slacker configuration changes were not polled for an hour, reloading all configurations");
+                loadSnapshot();
+                return;
+            }
+
+            ConfigurationChange[] changes = activeObjects.find(
+                    ConfigurationChange.class,
+                    Query.select().where("CHANGED_AT >= ?", lastPolledAt - CHANGE_POLL_OVERLAP_MILLIS)
             );
-            return;
+            // A configuration saved several times is reloaded once.
+            Set<Integer> projectIds = new HashSet<Integer>();
+            Set<Integer> repositoryIds = new HashSet<Integer>();
+            for (ConfigurationChange change : changes) {
+                if (change.getProjectId() != null) {
+                    projectIds.add(change.getProjectId());
+                } else if (change.getRepositoryId() != null) {
+                    repositoryIds.add(change.getRepositoryId());
+                }
+            }
+            for (Integer projectId : projectIds) {
+                ProjectConfiguration[] configurations = getProjectConfigurations(projectId);
+                if (configurations.length == 0) continue;
+
+                publishProjectConfiguration(projectId, ConfigurationValues.of(
+                        configurations[0], getTargets("PROJECT_ID", projectId)));
+            }
+            for (Integer repositoryId : repositoryIds) {
+                RepositoryConfiguration[] configurations = getRepositoryConfigurations(repositoryId);
+                if (configurations.length == 0) continue;
+
+                publishRepositoryConfiguration(repositoryId, ConfigurationValues.of(
+                        configurations[0], getTargets("REPOSITORY_ID", repositoryId)));
+            }
+
+            activeObjects.deleteWithSQL(ConfigurationChange.class, "CHANGED_AT < ?", now - CHANGE_RETENTION_MILLIS);
+            lastPolledAt = now;
+        } catch (RuntimeException e) {
+            logger.error("Failed to poll the Slacker configuration changes", e);
+        }
+    }
+
+    /**
+     * Tells the other nodes to reload the configuration. Call within the transaction which saves it.
+     *
+     * @param column PROJECT_ID or REPOSITORY_ID.
+     */
+    private void recordChange(String column, Integer id) {
+        activeObjects.create(
+                ConfigurationChange.class,
+                new DBParam(column, id),
+                new DBParam("CHANGED_AT", System.currentTimeMillis())
+        );
+    }
+
+    private void publishProjectConfiguration(Integer projectId, ConfigurationValues configuration) {
+        synchronized (snapshotLock) {
+            saveCount++;
+            if (snapshot != null) snapshot = snapshot.withProjectConfiguration(projectId, configuration);
         }
+    }
+
+    private void publishRepositoryConfiguration(Integer repositoryId, ConfigurationValues configuration) {
+        synchronized (snapshotLock) {
+            saveCount++;
+            if (snapshot != null) snapshot = snapshot.withRepositoryConfiguration(repositoryId, configuration);
+        }
+    }
+
+    /**
+     * Reads the fields of the configuration form.
+     *
+     * @throws InvalidConfigurationException if a number or the delivery targets cannot be parsed.
+     */
+    private static ConfigurationValues parseConfiguration(HttpServletRequest req) throws InvalidConfigurationException {
+        return ConfigurationValues.builder()
+                .hookURL(req.getParameter("hookURL"))
+                .channel(req.getParameter("channel"))
+                .notifyPROpened(BooleanUtils.toBoolean(req.getParameter("notifyPROpened")))
+                .notifyPRReopened(BooleanUtils.toBoolean(req.getParameter("notifyPRReopened")))
+                .notifyPRUpdated(BooleanUtils.toBoolean(req.getParameter("notifyPRUpdated")))
+                .notifyPRRescoped(BooleanUtils.toBoolean(req.getParameter("notifyPRRescoped")))
+                .notifyPRMerged(BooleanUtils.toBoolean(req.getParameter("notifyPRMerged")))
+                .notifyPRDeclined(BooleanUtils.toBoolean(req.getParameter("notifyPRDeclined")))
+                .notifyPRCommented(BooleanUtils.toBoolean(req.getParameter("notifyPRCommented")))
+                .ignoreWIP(BooleanUtils.toBoolean(req.getParameter("ignoreWIP")))
+                .ignoreNotCrossRepository(BooleanUtils.toBoolean(req.getParameter("ignoreNotCrossRepository")))
+                .userMapJSON(req.getParameter("userMapJSON"))
+                .quietWindowSeconds(parseSeconds("quietWindowSeconds", req.getParameter("quietWindowSeconds")))
+                .digestIntervalSeconds(parseSeconds("digestIntervalSeconds", req.getParameter("digestIntervalSeconds")))
+                .maxTextCharacters(parseLimit("maxTextCharacters", req.getParameter("maxTextCharacters")))
+                .maxTextBytes(parseLimit("maxTextBytes", req.getParameter("maxTextBytes")))
+                .compactUpdates(BooleanUtils.toBoolean(req.getParameter("compactUpdates")))
+                .titleFilter(req.getParameter("titleFilter"))
+                .targetBranches(req.getParameter("targetBranches"))
+                .sourceBranches(req.getParameter("sourceBranches"))
+                .includeAuthors(req.getParameter("includeAuthors"))
+                .excludeAuthors(req.getParameter("excludeAuthors"))
+                .messageTemplates(req.getParameter("messageTemplates"))
+                .targets(DeliveryTargets.parse(req.getParameter(DeliveryTargets.FIELD)))
+                .build();
+    }
+
+    private static void validate(ConfigurationValues configuration) throws InvalidConfigurationException {
+        UserMapJSON.parse(configuration.getUserMapJSON());
+        checkSeconds("quietWindowSeconds", configuration.getQuietWindowSeconds(), MAX_QUIET_WINDOW_SECONDS);
+        checkSeconds("digestIntervalSeconds", configuration.getDigestIntervalSeconds(), MAX_DIGEST_INTERVAL_SECONDS);
+        checkLimit("maxTextCharacters", configuration.getMaxTextCharacters(), TextBudget.MAX_CHARACTERS, "characters");
+        checkLimit("maxTextBytes", configuration.getMaxTextBytes(), TextBudget.MAX_BYTES, "bytes");
+        NotificationFilter.compileTitleFilter(configuration.getTitleFilter());
+        MessageTemplates.parse(configuration.getMessageTemplates());
+        if (configuration.getTargets().size() > DeliveryTargets.MAX_TARGETS) {
+            throw new InvalidConfigurationException(DeliveryTargets.FIELD,
+                                                    "At most " + DeliveryTargets.MAX_TARGETS +
+                                                            " Delivery Targets are allowed.");
+        }
+    }
+
+    /**
+     * Creates a configuration with the default values and records the change in one transaction.
+     *
+     * @param column PROJECT_ID or REPOSITORY_ID.
+     */
+    private <T extends ConfigurationEntity> T createConfiguration(final Class<T> type,
+                                                                  final String column,
+                                                                  final Integer id) {
+        return activeObjects.executeInTransaction(new TransactionCallback<T>() {
+            @Override
+            public T doInTransaction() {
+                T configuration = activeObjects.create(
+                        type,
+                        new DBParam(column, id),
+                        new DBParam("USER_MAP_JSON", ConfigurationValues.DEFAULT_USER_MAP_JSON)
+                );
+                recordChange(column, id);
+                return configuration;
+            }
+        });
+    }
 
-        RepositoryConfiguration configuration = configurations[0];
-        configuration.setHookURL(hookURL);
-        configuration.setChannel(channel);
-        configuration.setNotifyPROpened(notifyPROpened);
-        configuration.setNotifyPRReopened(notifyPRReopened);
-        configuration.setNotifyPRUpdated(notifyPRUpdated);
-        configuration.setNotifyPRRescoped(notifyPRRescoped);
-        configuration.setNotifyPRMerged(notifyPRMerged);
-        configuration.setNotifyPRDeclined(notifyPRDeclined);
-        configuration.setNotifyPRCommented(notifyPRCommented);
-        configuration.setIgnoreWIP(ignoreWIP);
-        configuration.setIgnoreNotCrossRepository(ignoreNotCrossRepository);
-        configuration.setUserMapJSON(userMapJSON);
-        configuration.save();
+    /**
+     * Creates or updates the configuration with the values, replaces its delivery targets and records the change,
+     * all in one transaction, so other nodes never see a change before the configuration it points to.
+     *
+     * @param column PROJECT_ID or REPOSITORY_ID.
+     */
+    private <T extends ConfigurationEntity> void saveConfiguration(final Class<T> type,
+                                                                   final String column,
+                                                                   final Integer id,
+                                                                   final ConfigurationValues values) {
+        activeObjects.executeInTransaction(new TransactionCallback<Void>() {
+            @Override
+            public Void doInTransaction() {
+                T[] configurations = activeObjects.find(type, Query.select().where(column + " = ?", id));
+                T configuration = configurations.length == 0 ?
+                        activeObjects.create(type, new DBParam(column, id)) : configurations[0];
+                values.copyTo(configuration);
+                configuration.save();
+                setTargets(column, id, values.getTargets());
+                recordChange(column, id);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * @return 0 if the value is blank.
+     */
+    private static Integer parseSeconds(String field, String value) throws InvalidConfigurationException {
+        if (StringUtils.isBlank(value)) return 0;
+
+        try {
+            return Integer.valueOf(value.trim());
+        } catch (NumberFormatException e) {
+            throw new InvalidConfigurationException(field, "Must be a number of seconds.");
+        }
+    }
+
+    private static void checkSeconds(String field, Integer value, int max) throws InvalidConfigurationException {
+        if (value == null || value < 0 || value > max) {
+            throw new InvalidConfigurationException(field, "Must be between 0 and " + max + " seconds.");
+        }
+    }
+
+    /**
+     * @return 0 if the value is blank.
+     */
+    private static Integer parseLimit(String field, String value) throws InvalidConfigurationException {
+        if (StringUtils.isBlank(value)) return 0;
+
+        try {
+            return Integer.valueOf(value.trim());
+        } catch (NumberFormatException e) {
+            throw new InvalidConfigurationException(field, "Must be a number.");
+        }
+    }
+
+    private static void checkLimit(String field, Integer value, int max, String unit)
+            throws InvalidConfigurationException {
+        if (value == null || value < 0 || value > max) {
+            throw new InvalidConfigurationException(field, "Must be between 0 and " + max + " " + unit + ".");
+        }
+    }
+
+    /**
+     * @param column PROJECT_ID or REPOSITORY_ID.
+     */
+    private List<NotifyTarget> getTargets(String column, Integer id) {
+        DeliveryTarget[] entities = activeObjects.find(
+                DeliveryTarget.class,
+                Query.select().where(column + " = ?", id).order("ID ASC")
+        );
+
+        ImmutableList.Builder<NotifyTarget> targets = ImmutableList.builder();
+        for (DeliveryTarget entity : entities) {
+            targets.add(NotifyTarget.of(entity));
+        }
+        return targets.build();
+    }
+
+    /**
+     * Replaces the stored delivery targets of a configuration. Call within the transaction which saves it.
+     *
+     * @param column PROJECT_ID or REPOSITORY_ID.
+     */
+    private void setTargets(String column, Integer id, List<NotifyTarget> targets) {
+        activeObjects.deleteWithSQL(DeliveryTarget.class, column + " = ?", id);
+        for (NotifyTarget target : targets) {
+            activeObjects.create(
+                    DeliveryTarget.class,
+                    new DBParam(column, id),
+                    new DBParam("HOOK_URL", target.getHookURL()),
+                    new DBParam("CHANNEL", target.getChannel()),
+                    new DBParam("EVENTS", target.getEventNames())
+            );
+        }
     }
 
     private ProjectConfiguration[] getProjectConfigurations(Integer projectId) {
@@ -285,4 +572,11 @@ public class ConfigurationServiceImpl implements ConfigurationService {
                 Query.select().where("PROJECT_ID = ?", projectId)
         );
     }
+
+    private RepositoryConfiguration[] getRepositoryConfigurations(Integer repositoryId) {
+        return activeObjects.find(
+                RepositoryConfiguration.class,
+                Query.select().where("REPOSITORY_ID = ?", repositoryId)
+        );
+    }
 }
@@ -0,0 +1,154 @@
+package net.khasegawa.stash.slacker.configurations;
+
+import com.atlassian.activeobjects.external.ActiveObjects;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.MultimapBuilder;
+import net.java.ao.EntityStreamCallback;
+import net.khasegawa.stash.slacker.activeobjects.DeliveryTarget;
+import net.khasegawa.stash.slacker.activeobjects.ProjectConfiguration;
+import net.khasegawa.stash.slacker.activeobjects.RepositoryConfiguration;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Immutable copy of every stored configuration, keyed by project ID and repository ID.
+ *
+ * Saves never modify a snapshot, they publish a modified copy instead.
+ * The merged {@link NotifyConfiguration}s are computed on first use and kept per snapshot.
+ * A copy keeps those of the repositories its change does not affect.
+ *
+ * Created by Kazuki Hasegawa on 26/10/18.
+ *
+ * @author Kazuki Hasegawa
+ */
+public final class ConfigurationSnapshot {
+    private final Map<Integer, ConfigurationValues> projectConfigurations;
+    private final Map<Integer, ConfigurationValues> repositoryConfigurations;
+    private final ConcurrentMap<Integer, NotifyConfiguration> notifyConfigurations;
+
+    private ConfigurationSnapshot(Map<Integer, ConfigurationValues> projectConfigurations,
+                                  Map<Integer, ConfigurationValues> repositoryConfigurations,
+                                  Map<Integer, NotifyConfiguration> notifyConfigurations) {
+        this.projectConfigurations = ImmutableMap.copyOf(projectConfigurations);
+        this.repositoryConfigurations = ImmutableMap.copyOf(repositoryConfigurations);
+        this.notifyConfigurations = new ConcurrentHashMap<Integer, NotifyConfiguration>(notifyConfigurations);
+    }
+
+    /**
+     * Streams the delivery targets and both configuration tables into a new snapshot.
+     */
+    public static ConfigurationSnapshot load(ActiveObjects activeObjects) {
+        final Map<Integer, ConfigurationValues> projectConfigurations = new HashMap<Integer, ConfigurationValues>();
+        final Map<Integer, ConfigurationValues> repositoryConfigurations = new HashMap<Integer, ConfigurationValues>();
+        final ListMultimap<Integer, NotifyTarget> projectTargets =
+                MultimapBuilder.hashKeys().arrayListValues().<Integer, NotifyTarget>build();
+        final ListMultimap<Integer, NotifyTarget> repositoryTargets =
+                MultimapBuilder.hashKeys().arrayListValues().<Integer, NotifyTarget>build();
+        // Streamed rows come in no particular order, targets are kept in the order they were saved.
+        final Map<Integer, DeliveryTarget> targets = new TreeMap<Integer, DeliveryTarget>();
+
+        activeObjects.stream(DeliveryTarget.class, new EntityStreamCallback<DeliveryTarget, Integer>() {
+            @Override
+            public void onRowRead(DeliveryTarget target) {
+                targets.put(target.getID(), target);
+            }
+        });
+        for (DeliveryTarget target : targets.values()) {
+            if (target.getRepositoryId() != null) {
+                repositoryTargets.put(target.getRepositoryId(), NotifyTarget.of(target));
+            } else if (target.getProjectId() != null) {
+                projectTargets.put(target.getProjectId(), NotifyTarget.of(target));
+            }
+        }
+
+        activeObjects.stream(ProjectConfiguration.class, new EntityStreamCallback<ProjectConfiguration, Integer>() {
+            @Override
+            public void onRowRead(ProjectConfiguration configuration) {
+                projectConfigurations.put(configuration.getProjectId(), ConfigurationValues.of(
+                        configuration, projectTargets.get(configuration.getProjectId())));
+            }
+        });
+        activeObjects.stream(RepositoryConfiguration.class, new EntityStreamCallback<RepositoryConfiguration, Integer>() {
+            @Override
+            public void onRowRead(RepositoryConfiguration configuration) {
+                repositoryConfigurations.put(configuration.getRepositoryId(), ConfigurationValues.of(
+                        configuration, repositoryTargets.get(configuration.getRepositoryId())));
+            }
+        });
+
+        return new ConfigurationSnapshot(projectConfigurations, repositoryConfigurations,
+                                         new HashMap<Integer, NotifyConfiguration>());
+    }
+
+    /**
+     * Returns the merged configuration of the repository, computing it on first use.
+     */
+    public NotifyConfiguration getNotifyConfiguration(Integer projectId, Integer repositoryId) {
+        NotifyConfiguration configuration = notifyConfigurations.get(repositoryId);
+        // A repository moved to another project is merged again.
+        if (configuration == null || !projectId.equals(configuration.getProjectId())) {
+            configuration = NotifyConfiguration.merge(
+                    projectId,
+                    getProjectConfiguration(projectId),
+                    getRepositoryConfiguration(repositoryId));
+            notifyConfigurations.put(repositoryId, configuration);
+        }
+
+        return configuration;
+    }
+
+    /**
+     * @return null if the project has no stored configuration.
+     */
+    public ConfigurationValues getProjectConfiguration(Integer projectId) {
+        return projectConfigurations.get(projectId);
+    }
+
+    /**
+     * @return null if the repository has no stored configuration.
+     */
+    public ConfigurationValues getRepositoryConfiguration(Integer repositoryId) {
+        return repositoryConfigurations.get(repositoryId);
+    }
+
+    public int getProjectConfigurationCount() {
+        return projectConfigurations.size();
+    }
+
+    public int getRepositoryConfigurationCount() {
+        return repositoryConfigurations.size();
+    }
+
+    public ConfigurationSnapshot withProjectConfiguration(Integer projectId, ConfigurationValues configuration) {
+        Map<Integer, ConfigurationValues> projectConfigurations =
+                new HashMap<Integer, ConfigurationValues>(this.projectConfigurations);
+        projectConfigurations.put(projectId, configuration);
+
+        Map<Integer, NotifyConfiguration> notifyConfigurations =
+                new HashMap<Integer, NotifyConfiguration>(this.notifyConfigurations);
+        Iterator<NotifyConfiguration> iterator = notifyConfigurations.values().iterator();
+        while (iterator.hasNext()) {
+            if (projectId.equals(iterator.next().getProjectId())) iterator.remove();
+        }
+
+        return new ConfigurationSnapshot(projectConfigurations, repositoryConfigurations, notifyConfigurations);
+    }
+
+    public ConfigurationSnapshot withRepositoryConfiguration(Integer repositoryId, ConfigurationValues configuration) {
+        Map<Integer, ConfigurationValues> repositoryConfigurations =
+                new HashMap<Integer, ConfigurationValues>(this.repositoryConfigurations);
+        repositoryConfigurations.put(repositoryId, configuration);
+
+        Map<Integer, NotifyConfiguration> notifyConfigurations =
+                new HashMap<Integer, NotifyConfiguration>(this.notifyConfigurations);
+        notifyConfigurations.remove(repositoryId);
+
+        return new ConfigurationSnapshot(projectConfigurations, repositoryConfigurations, notifyConfigurations);
+    }
+}
@@ -0,0 +1,559 @@
+package net.khasegawa.stash.slacker.configurations;
+
+import com.atlassian.bitbucket.pull.PullRequestAction;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import net.khasegawa.stash.slacker.activeobjects.ConfigurationEntity;
+import org.apache.commons.lang3.BooleanUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable copy of a stored project or repository configuration.
+ *
+ * Created by Kazuki Hasegawa on 26/10/18.
+ *
+ * @author Kazuki Hasegawa
+ */
+public final class ConfigurationValues {
+    private static final Logger logger = LoggerFactory.getLogger(ConfigurationValues.class);
+
+    /**
+     * The example shown in the "User Map JSON" field of a configuration which was never saved.
+     */
+    public static final String DEFAULT_USER_MAP_JSON = "{ \"Stash UserID\": \"Slack UserID\" }";
+
+    /**
+     * The values of a configuration which was never saved, matching the column defaults.
+     */
+    public static final ConfigurationValues DEFAULTS = new ConfigurationValues(
+            null, null, true, true, true, true, true, true, true, false, false,
+            DEFAULT_USER_MAP_JSON,
+            0,
+            0,
+            0,
+            0,
+            false,
+            null,
+            null,
+            null,
+            null,
+            null,
+            null,
+            ImmutableList.<NotifyTarget>of());
+
+    private final String hookURL;
+    private final String channel;
+    private final boolean notifyPROpened;
+    private final boolean notifyPRReopened;
+    private final boolean notifyPRUpdated;
+    private final boolean notifyPRRescoped;
+    private final boolean notifyPRMerged;
+    private final boolean notifyPRDeclined;
+    private final boolean notifyPRCommented;
+    private final boolean ignoreWIP;
+    private final boolean ignoreNotCrossRepository;
+    private final String userMapJSON;
+    private final Map<String, String> userMap;
+    private final String messageTemplates;
+    private final Map<PullRequestAction, MessageTemplate> templates;
+    private final String excludeAuthors;
+    private final String includeAuthors;
+    private final String sourceBranches;
+    private final String targetBranches;
+    private final String titleFilter;
+    private final int digestIntervalSeconds;
+    private final int quietWindowSeconds;
+    private final int maxTextCharacters;
+    private final int maxTextBytes;
+    private final boolean compactUpdates;
+    private final List<NotifyTarget> targets;
+
+    private ConfigurationValues(String hookURL,
+                                String channel,
+                                Boolean notifyPROpened,
+                                Boolean notifyPRReopened,
+                                Boolean notifyPRUpdated,
+                                Boolean notifyPRRescoped,
+                                Boolean notifyPRMerged,
+                                Boolean notifyPRDeclined,
+                                Boolean notifyPRCommented,
+                                Boolean ignoreWIP,
+                                Boolean ignoreNotCrossRepository,
+                                String userMapJSON,
+                                Integer quietWindowSeconds,
+                                Integer digestIntervalSeconds,
+                                Integer maxTextCharacters,
+                                Integer maxTextBytes,
+                                Boolean compactUpdates,
+                                String titleFilter,
+                                String targetBranches,
+                                String sourceBranches,
+                                String includeAuthors,
+                                String excludeAuthors,
+                                String messageTemplates,
+                                List<NotifyTarget> targets) {
+        this.hookURL = hookURL;
+        this.channel = channel;
+        this.notifyPROpened = BooleanUtils.toBooleanDefaultIfNull(notifyPROpened, true);
+        this.notifyPRReopened = BooleanUtils.toBooleanDefaultIfNull(notifyPRReopened, true);
+        this.notifyPRUpdated = BooleanUtils.toBooleanDefaultIfNull(notifyPRUpdated, true);
+        this.notifyPRRescoped = BooleanUtils.toBooleanDefaultIfNull(notifyPRRescoped, true);
+        this.notifyPRMerged = BooleanUtils.toBooleanDefaultIfNull(notifyPRMerged, true);
+        this.notifyPRDeclined = BooleanUtils.toBooleanDefaultIfNull(notifyPRDeclined, true);
+        this.notifyPRCommented = BooleanUtils.toBooleanDefaultIfNull(notifyPRCommented, true);
+        this.ignoreWIP = BooleanUtils.toBooleanDefaultIfNull(ignoreWIP, false);
+        this.ignoreNotCrossRepository = BooleanUtils.toBooleanDefaultIfNull(ignoreNotCrossRepository, false);
+        this.userMapJSON = userMapJSON;
+        this.quietWindowSeconds = quietWindowSeconds == null ? 0 : quietWindowSeconds;
+        this.digestIntervalSeconds = digestIntervalSeconds == null ? 0 : digestIntervalSeconds;
+        this.maxTextCharacters = maxTextCharacters == null ? 0 : maxTextCharacters;
+        this.maxTextBytes = maxTextBytes == null ? 0 : maxTextBytes;
+        this.compactUpdates = BooleanUtils.toBooleanDefaultIfNull(compactUpdates, false);
+        this.titleFilter = titleFilter;
+        this.targetBranches = targetBranches;
+        this.sourceBranches = sourceBranches;
+        this.includeAuthors = includeAuthors;
+        this.excludeAuthors = excludeAuthors;
+        this.messageTemplates = messageTemplates;
+        this.targets = ImmutableList.copyOf(targets);
+
+        Map<String, String> userMap;
+        try {
+            userMap = UserMapJSON.parse(userMapJSON);
+        } catch (InvalidConfigurationException e) {
+            logger.warn("UserMapJSON is invalid! " + StringUtils.defaultString(userMapJSON));
+            userMap = ImmutableMap.of();
+        }
+        this.userMap = userMap;
+
+        Map<PullRequestAction, MessageTemplate> templates;
+        try {
+            templates = MessageTemplates.parse(messageTemplates);
+        } catch (InvalidConfigurationException e) {
+            logger.warn("Message Templates are invalid! " + StringUtils.defaultString(messageTemplates));
+            templates = ImmutableMap.of();
+        }
+        this.templates = templates;
+    }
+
+    /**
+     * @return The values of the configuration without delivery targets.
+     */
+    public static ConfigurationValues of(ConfigurationEntity configuration) {
+        return of(configuration, ImmutableList.<NotifyTarget>of());
+    }
+
+    public static ConfigurationValues of(ConfigurationEntity configuration, List<NotifyTarget> targets) {
+        return new ConfigurationValues(
+                configuration.getHookURL(),
+                configuration.getChannel(),
+                configuration.getNotifyPROpened(),
+                configuration.getNotifyPRReopened(),
+                configuration.getNotifyPRUpdated(),
+                configuration.getNotifyPRRescoped(),
+                configuration.getNotifyPRMerged(),
+                configuration.getNotifyPRDeclined(),
+                configuration.getNotifyPRCommented(),
+                configuration.getIgnoreWIP(),
+                configuration.getIgnoreNotCrossRepository(),
+                configuration.getUserMapJSON(),
+                configuration.getQuietWindowSeconds(),
+                configuration.getDigestIntervalSeconds(),
+                configuration.getMaxTextCharacters(),
+                configuration.getMaxTextBytes(),
+                configuration.getCompactUpdates(),
+                configuration.getTitleFilter(),
+                configuration.getTargetBranches(),
+                configuration.getSourceBranches(),
+                configuration.getIncludeAuthors(),
+                configuration.getExcludeAuthors(),
+                configuration.getMessageTemplates(),
+                targets);
+    }
+
+    /**
+     * @return A builder of the values to save, starting from the values of a configuration which was never saved.
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Copies the values onto the entity, without saving it.
+     */
+    public void copyTo(ConfigurationEntity configuration) {
+        configuration.setHookURL(hookURL);
+        configuration.setChannel(channel);
+        configuration.setNotifyPROpened(notifyPROpened);
+        configuration.setNotifyPRReopened(notifyPRReopened);
+        configuration.setNotifyPRUpdated(notifyPRUpdated);
+        configuration.setNotifyPRRescoped(notifyPRRescoped);
+        configuration.setNotifyPRMerged(notifyPRMerged);
+        configuration.setNotifyPRDeclined(notifyPRDeclined);
+        configuration.setNotifyPRCommented(notifyPRCommented);
+        configuration.setIgnoreWIP(ignoreWIP);
+        configuration.setIgnoreNotCrossRepository(ignoreNotCrossRepository);
+        configuration.setUserMapJSON(userMapJSON);
+        configuration.setQuietWindowSeconds(quietWindowSeconds);
+        configuration.setDigestIntervalSeconds(digestIntervalSeconds);
+        configuration.setMaxTextCharacters(maxTextCharacters);
+        configuration.setMaxTextBytes(maxTextBytes);
+        configuration.setCompactUpdates(compactUpdates);
+        configuration.setTitleFilter(titleFilter);
+        configuration.setTargetBranches(targetBranches);
+        configuration.setSourceBranches(sourceBranches);
+        configuration.setIncludeAuthors(includeAuthors);
+        configuration.setExcludeAuthors(excludeAuthors);
+        configuration.setMessageTemplates(messageTemplates);
+    }
+
+    /**
+     * @return true if every value equals {@link #DEFAULTS}, ignoring a blank user map JSON.
+     */
+    public boolean isDefault() {
+        return hasDefaultSwitches() &&
+                StringUtils.isBlank(hookURL) &&
+                StringUtils.isBlank(channel) &&
+                quietWindowSeconds == 0 &&
+                digestIntervalSeconds == 0 &&
+                maxTextCharacters == 0 &&
+                maxTextBytes == 0 &&
+                StringUtils.isBlank(titleFilter) &&
+                StringUtils.isBlank(targetBranches) &&
+                StringUtils.isBlank(sourceBranches) &&
+                StringUtils.isBlank(includeAuthors) &&
+                StringUtils.isBlank(excludeAuthors) &&
+                StringUtils.isBlank(messageTemplates) &&
+                targets.isEmpty() &&
+                (StringUtils.isBlank(userMapJSON) || DEFAULT_USER_MAP_JSON.equals(userMapJSON));
+    }
+
+    /**
+     * @return true if the events and the switches, which a repository configuration does not inherit
+     *         from its project configuration, equal {@link #DEFAULTS}.
+     */
+    public boolean hasDefaultSwitches() {
+        return notifyPROpened &&
+                notifyPRReopened &&
+                notifyPRUpdated &&
+                notifyPRRescoped &&
+                notifyPRMerged &&
+                notifyPRDeclined &&
+                notifyPRCommented &&
+                !ignoreWIP &&
+                !ignoreNotCrossRepository &&
+                !compactUpdates;
+    }
+
+    public String getHookURL() {
+        return hookURL;
+    }
+
+    public String getChannel() {
+        return channel;
+    }
+
+    public boolean getNotifyPROpened() {
+        return notifyPROpened;
+    }
+
+    public boolean getNotifyPRReopened() {
+        return notifyPRReopened;
+    }
+
+    public boolean getNotifyPRUpdated() {
+        return notifyPRUpdated;
+    }
+
+    public boolean getNotifyPRRescoped() {
+        return notifyPRRescoped;
+    }
+
+    public boolean getNotifyPRMerged() {
+        return notifyPRMerged;
+    }
+
+    public boolean getNotifyPRDeclined() {
+        return notifyPRDeclined;
+    }
+
+    public boolean getNotifyPRCommented() {
+        return notifyPRCommented;
+    }
+
+    public boolean getIgnoreWIP() {
+        return ignoreWIP;
+    }
+
+    public boolean getIgnoreNotCrossRepository() {
+        return ignoreNotCrossRepository;
+    }
+
+    public int getQuietWindowSeconds() {
+        return quietWindowSeconds;
+    }
+
+    public int getDigestIntervalSeconds() {
+        return digestIntervalSeconds;
+    }
+
+    /**
+     * @return 0 if the default of {@link TextBudget} is used.
+     */
+    public int getMaxTextCharacters() {
+        return maxTextCharacters;
+    }
+
+    /**
+     * @return 0 if the default of {@link TextBudget} is used.
+     */
+    public int getMaxTextBytes() {
+        return maxTextBytes;
+    }
+
+    public boolean getCompactUpdates() {
+        return compactUpdates;
+    }
+
+    public String getTitleFilter() {
+        return titleFilter;
+    }
+
+    public String getTargetBranches() {
+        return targetBranches;
+    }
+
+    public String getSourceBranches() {
+        return sourceBranches;
+    }
+
+    public String getIncludeAuthors() {
+        return includeAuthors;
+    }
+
+    public String getExcludeAuthors() {
+        return excludeAuthors;
+    }
+
+    public String getMessageTemplates() {
+        return messageTemplates;
+    }
+
+    /**
+     * @return The compiled message templates, empty if the stored JSON is blank or invalid.
+     */
+    public Map<PullRequestAction, MessageTemplate> getTemplates() {
+        return templates;
+    }
+
+    /**
+     * @return The further webhooks notified besides the configured one.
+     */
+    public List<NotifyTarget> getTargets() {
+        return targets;
+    }
+
+    /**
+     * @return The delivery targets in the form of the "Delivery Targets" field, empty if there are none.
+     */
+    public String getDeliveryTargets() {
+        return DeliveryTargets.toJSON(targets);
+    }
+
+    public String getUserMapJSON() {
+        return userMapJSON;
+    }
+
+    /**
+     * @return The parsed user map, empty if the stored JSON is blank or invalid.
+     */
+    public Map<String, String> getUserMap() {
+        return userMap;
+    }
+
+    /**
+     * Collects the values of a configuration by name. Values which are not set are those of {@link #DEFAULTS}.
+     */
+    public static final class Builder {
+        private String hookURL;
+        private String channel;
+        private Boolean notifyPROpened;
+        private Boolean notifyPRReopened;
+        private Boolean notifyPRUpdated;
+        private Boolean notifyPRRescoped;
+        private Boolean notifyPRMerged;
+        private Boolean notifyPRDeclined;
+        private Boolean notifyPRCommented;
+        private Boolean ignoreWIP;
+        private Boolean ignoreNotCrossRepository;
+        private String userMapJSON = DEFAULT_USER_MAP_JSON;
+        private Integer quietWindowSeconds;
+        private Integer digestIntervalSeconds;
+        private Integer maxTextCharacters;
+        private Integer maxTextBytes;
+        private Boolean compactUpdates;
+        private String titleFilter;
+        private String targetBranches;
+        private String sourceBranches;
+        private String includeAuthors;
+        private String excludeAuthors;
+        private String messageTemplates;
+        private List<NotifyTarget> targets = ImmutableList.of();
+
+        private Builder() {
+        }
+
+        public Builder hookURL(String hookURL) {
+            this.hookURL = hookURL;
+            return this;
+        }
+
+        public Builder channel(String channel) {
+            this.channel = channel;
+            return this;
+        }
+
+        public Builder notifyPROpened(Boolean notifyPROpened) {
+            this.notifyPROpened = notifyPROpened;
+            return this;
+        }
+
+        public Builder notifyPRReopened(Boolean notifyPRReopened) {
+            this.notifyPRReopened = notifyPRReopened;
+            return this;
+        }
+
+        public Builder notifyPRUpdated(Boolean notifyPRUpdated) {
+            this.notifyPRUpdated = notifyPRUpdated;
+            return this;
+        }
+
+        public Builder notifyPRRescoped(Boolean notifyPRRescoped) {
+            this.notifyPRRescoped = notifyPRRescoped;
+            return this;
+        }
+
+        public Builder notifyPRMerged(Boolean notifyPRMerged) {
+            this.notifyPRMerged = notifyPRMerged;
+            return this;
+        }
+
+        public Builder notifyPRDeclined(Boolean notifyPRDeclined) {
+            this.notifyPRDeclined = notifyPRDeclined;
+            return this;
+        }
+
+        public Builder notifyPRCommented(Boolean notifyPRCommented) {
+            this.notifyPRCommented = notifyPRCommented;
+            return this;
+        }
+
+        public Builder ignoreWIP(Boolean ignoreWIP) {
+            this.ignoreWIP = ignoreWIP;
+            return this;
+        }
+
+        public Builder ignoreNotCrossRepository(Boolean ignoreNotCrossRepository) {
+            this.ignoreNotCrossRepository = ignoreNotCrossRepository;
+            return this;
+        }
+
+        public Builder userMapJSON(String userMapJSON) {
+            this.userMapJSON = userMapJSON;
+            return this;
+        }
+
+        public Builder quietWindowSeconds(Integer quietWindowSeconds) {
+            this.quietWindowSeconds = quietWindowSeconds;
+            return this;
+        }
+
+        public Builder digestIntervalSeconds(Integer digestIntervalSeconds) {
+            this.digestIntervalSeconds = digestIntervalSeconds;
+            return this;
+        }
+
+        public Builder maxTextCharacters(Integer maxTextCharacters) {
+            this.maxTextCharacters = maxTextCharacters;
+            return this;
+        }
+
+        public Builder maxTextBytes(Integer maxTextBytes) {
+            this.maxTextBytes = maxTextBytes;
+            return this;
+        }
+
+        public Builder compactUpdates(Boolean compactUpdates) {
+            this.compactUpdates = compactUpdates;
+            return this;
+        }
+
+        public Builder titleFilter(String titleFilter) {
+            this.titleFilter = titleFilter;
+            return this;
+        }
+
+        public Builder targetBranches(String targetBranches) {
+            this.targetBranches = targetBranches;
+            return this;
+        }
+
+        public Builder sourceBranches(String sourceBranches) {
+            this.sourceBranches = sourceBranches;
+            return this;
+        }
+
+        public Builder includeAuthors(String includeAuthors) {
+            this.includeAuthors = includeAuthors;
+            return this;
+        }
+
+        public Builder excludeAuthors(String excludeAuthors) {
+            this.excludeAuthors = excludeAuthors;
+            return this;
+        }
+
+        public Builder messageTemplates(String messageTemplates) {
+            this.messageTemplates = messageTemplates;
+            return this;
+        }
+
+        public Builder targets(List<NotifyTarget> targets) {
+            this.targets = targets;
+            return this;
+        }
+
+        public ConfigurationValues build() {
+            return new ConfigurationValues(
+                    hookURL,
+                    channel,
+                    notifyPROpened,
+                    notifyPRReopened,
+                    notifyPRUpdated,
+                    notifyPRRescoped,
+                    notifyPRMerged,
+                    notifyPRDeclined,
+                    notifyPRCommented,
+                    ignoreWIP,
+                    ignoreNotCrossRepository,
+                    userMapJSON,
+                    quietWindowSeconds,
+                    digestIntervalSeconds,
+                    maxTextCharacters,
+                    maxTextBytes,
+                    compactUpdates,
+                    titleFilter,
+                    targetBranches,
+                    sourceBranches,
+                    includeAuthors,
+                    excludeAuthors,
+                    messageTemplates,
+                    targets);
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package net.khasegawa.stash.slacker.configurations;
+
+import com.atlassian.bitbucket.pull.PullRequestAction;
+import com.google.common.collect.ImmutableList;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import org.apache.commons.lang3.StringUtils;
+
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Parser of the "Delivery Targets" setting, a JSON array of further webhooks notified besides the configured one,
+ * for example [ { "hookURL": "https://hooks.slack.com/services/...", "channel": "#release",
+ * "events": [ "merged", "declined" ] } ].
+ *
+ * "channel" and "events" may be left out to post to the default channel of the webhook and every notified action.
+ * Comments are direct messages to the author, so they are never sent to delivery targets.
+ *
+ * Created by Kazuki Hasegawa on 26/10/18.
+ *
+ * @author Kazuki Hasegawa
+ */
+public final class DeliveryTargets {
+    public static final String FIELD = "deliveryTargets";
+    public static final int MAX_TARGETS = 10;
+
+    private static final Set<PullRequestAction> EVENTS = EnumSet.of(
+            PullRequestAction.OPENED, PullRequestAction.REOPENED, PullRequestAction.UPDATED,
+            PullRequestAction.RESCOPED, PullRequestAction.MERGED, PullRequestAction.DECLINED);
+
+    private static final JsonParser PARSER = new JsonParser();
+    private static final Gson GSON = new GsonBuilder().setPrettyPrinting().disableHtmlEscaping().create();
+
+    private DeliveryTargets() {
+    }
+
+    /**
+     * @return An immutable list, empty if the JSON is blank.
+     * @throws InvalidConfigurationException if the JSON is not an array of valid targets.
+     */
+    public static List<NotifyTarget> parse(String deliveryTargets) throws InvalidConfigurationException {
+        if (StringUtils.isBlank(deliveryTargets)) return ImmutableList.of();
+
+        JsonElement root;
+        try {
+            root = PARSER.parse(deliveryTargets);
+        } catch (JsonParseException e) {
+            throw new InvalidConfigurationException(FIELD, "Delivery Targets is invalid: " + e.getMessage());
+        }
+        if (!root.isJsonArray()) {
+            throw new InvalidConfigurationException(FIELD, "Delivery Targets must be an array.");
+        }
+        if (root.getAsJsonArray().size() > MAX_TARGETS) {
+            throw new InvalidConfigurationException(FIELD, "At most " + MAX_TARGETS + " Delivery Targets are allowed.");
+        }
+
+        ImmutableList.Builder<NotifyTarget> targets = ImmutableList.builder();
+        for (JsonElement element : root.getAsJsonArray()) {
+            if (!element.isJsonObject()) {
+                throw new InvalidConfigurationException(FIELD, "Every Delivery Target must be an object.");
+            }
+            JsonObject target = element.getAsJsonObject();
+
+            String hookURL = string(target, "hookURL");
+            if (StringUtils.isBlank(hookURL)) {
+                throw new InvalidConfigurationException(FIELD, "Every Delivery Target needs a hookURL.");
+            }
+
+            Set<PullRequestAction> events = EnumSet.noneOf(PullRequestAction.class);
+            JsonElement names = target.get("events");
+            if (names != null && !names.isJsonNull()) {
+                if (!names.isJsonArray()) {
+                    throw new InvalidConfigurationException(FIELD, "events of " + hookURL + " must be an array.");
+                }
+                for (JsonElement name : names.getAsJsonArray()) {
+                    events.add(event(name));
+                }
+            }
+
+            targets.add(new NotifyTarget(hookURL.trim(), string(target, "channel"), events));
+        }
+
+        return targets.build();
+    }
+
+    /**
+     * @return The targets in the form of the setting, empty if there are none.
+     */
+    public static String toJSON(List<NotifyTarget> targets) {
+        if (targets.isEmpty()) return "";
+
+        JsonArray array = new JsonArray();
+        for (NotifyTarget target : targets) {
+            JsonObject object = new JsonObject();
+            object.addProperty("hookURL", target.getHookURL());
+            if (target.getChannel() != null) object.addProperty("channel", target.getChannel());
+            if (!target.getEvents().isEmpty()) {
+                JsonArray events = new JsonArray();
+                for (PullRequestAction action : target.getEvents()) {
+                    events.add(new JsonPrimitive(action.name().toLowerCase(Locale.ROOT)));
+                }
+                object.add("events", events);
+            }
+            array.add(object);
+        }
+        return GSON.toJson(array);
+    }
+
+    private static String string(JsonObject object, String name) throws InvalidConfigurationException {
+        JsonElement value = object.get(name);
+        if (value == null || value.isJsonNull()) return null;
+        if (!value.isJsonPrimitive() || !value.getAsJsonPrimitive().isString()) {
+            throw new InvalidConfigurationException(FIELD, name + " of a Delivery Target must be a string.");
+        }
+        return value.getAsString();
+    }
+
+    private static PullRequestAction event(JsonElement name) throws InvalidConfigurationException {
+        if (name.isJsonPrimitive() && name.getAsJsonPrimitive().isString()) {
+            for (PullRequestAction action : EVENTS) {
+                if (action.name().equalsIgnoreCase(name.getAsString())) return action;
+            }
+        }
+
+        StringBuilder names = new StringBuilder();
+        for (PullRequestAction action : EVENTS) {
+            if (names.length() > 0) names.append(", ");
+            names.append(action.name().toLowerCase(Locale.ROOT));
+        }
+        throw new InvalidConfigurationException(FIELD, "Unknown event: " + name + ". Use one of " + names + ".");
+    }
+}
@@ -0,0 +1,40 @@
+package net.khasegawa.stash.slacker.configurations;
+
+/**
+ * The stored project and repository configurations of a repository together with their merged result.
+ *
+ * Created by Kazuki Hasegawa on 26/10/18.
+ *
+ * @author Kazuki Hasegawa
+ */
+public final class EffectiveConfiguration {
+    private final ConfigurationValues projectConfiguration;
+    private final ConfigurationValues repositoryConfiguration;
+    private final NotifyConfiguration notifyConfiguration;
+
+    public EffectiveConfiguration(Integer projectId,
+                                  ConfigurationValues projectConfiguration,
+                                  ConfigurationValues repositoryConfiguration) {
+        this.projectConfiguration = projectConfiguration;
+        this.repositoryConfiguration = repositoryConfiguration;
+        this.notifyConfiguration = NotifyConfiguration.merge(projectId, projectConfiguration, repositoryConfiguration);
+    }
+
+    /**
+     * @return null if the project has no stored configuration.
+     */
+    public ConfigurationValues getProjectConfiguration() {
+        return projectConfiguration;
+    }
+
+    /**
+     * @return null if the repository has no stored configuration or none was requested.
+     */
+    public ConfigurationValues getRepositoryConfiguration() {
+        return repositoryConfiguration;
+    }
+
+    public NotifyConfiguration getNotifyConfiguration() {
+        return notifyConfiguration;
+    }
+}
@@ -0,0 +1,24 @@
+package net.khasegawa.stash.slacker.configurations;
+
+/**
+ * Thrown when a configuration value is rejected at save time.
+ *
+ * Created by Kazuki Hasegawa on 26/10/18.
+ *
+ * @author Kazuki Hasegawa
+ */
+public class InvalidConfigurationException extends IllegalArgumentException {
+    private final String field;
+
+    public InvalidConfigurationException(String field, String message) {
+        super(message);
+        this.field = field;
+    }
+
+    /**
+     * @return The request parameter name of the rejected value.
+     */
+    public String getField() {
+        return field;
+    }
+}
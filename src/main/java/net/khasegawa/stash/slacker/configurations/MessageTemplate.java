@@ -0,0 +1,129 @@
+package net.khasegawa.stash.slacker.configurations;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Message text with placeholders such as "{user} merged &lt;{url}|#{id}&gt; on {repo}", compiled once.
+ *
+ * A compiled template is a list of literal and variable segments which is rendered by appending
+ * to a caller supplied {@link StringBuilder}, so rendering neither parses the template nor formats anything.
+ * "{{" is a literal "{".
+ *
+ * Created by Kazuki Hasegawa on 26/10/18.
+ *
+ * @author Kazuki Hasegawa
+ */
+public final class MessageTemplate {
+    /**
+     * The placeholders of a template.
+     */
+    public enum Variable {
+        /** Display name of the user who caused the event. */
+        USER("user"),
+        /** Link to the pull request. */
+        URL("url"),
+        /** ID of the pull request. */
+        ID("id"),
+        /** Title of the pull request. */
+        TITLE("title"),
+        /** Name of the repository. */
+        REPO("repo"),
+        /** Key of the project. */
+        PROJECT("project"),
+        /** " (N times)" if events were coalesced, otherwise empty. */
+        TIMES("times"),
+        /** Link to the comment, the pull request link if the event is not a comment. */
+        COMMENT_URL("comment_url");
+
+        private final String placeholder;
+
+        Variable(String placeholder) {
+            this.placeholder = placeholder;
+        }
+
+        public String getPlaceholder() {
+            return placeholder;
+        }
+
+        static Variable of(String placeholder) {
+            for (Variable variable : values()) {
+                if (variable.placeholder.equals(placeholder)) return variable;
+            }
+            return null;
+        }
+    }
+
+    /**
+     * The values of the variables of an event.
+     */
+    public interface Variables {
+        void append(StringBuilder out, Variable variable);
+    }
+
+    private final String source;
+    // literals[i] precedes variables[i], the last literal ends the template.
+    private final String[] literals;
+    private final Variable[] variables;
+
+    private MessageTemplate(String source, List<String> literals, List<Variable> variables) {
+        this.source = source;
+        this.literals = literals.toArray(new String[literals.size()]);
+        this.variables = variables.toArray(new Variable[variables.size()]);
+    }
+
+    /**
+     * @param field The form field of the template, reported by the exception.
+     * @throws InvalidConfigurationException if a placeholder is unknown or not closed.
+     */
+    public static MessageTemplate compile(String field, String template) throws InvalidConfigurationException {
+        List<String> literals = new ArrayList<String>();
+        List<Variable> variables = new ArrayList<Variable>();
+
+        StringBuilder literal = new StringBuilder();
+        int i = 0;
+        while (i < template.length()) {
+            char c = template.charAt(i);
+            if (c != '{') {
+                literal.append(c);
+                i++;
+            } else if (i + 1 < template.length() && template.charAt(i + 1) == '{') {
+                literal.append('{');
+                i += 2;
+            } else {
+                int end = template.indexOf('}', i);
+                if (end < 0) {
+                    throw new InvalidConfigurationException(field, "Placeholder is not closed: " + template.substring(i));
+                }
+                Variable variable = Variable.of(template.substring(i + 1, end));
+                if (variable == null) {
+                    throw new InvalidConfigurationException(field, "Unknown placeholder: " + template.substring(i, end + 1));
+                }
+                literals.add(literal.toString());
+                variables.add(variable);
+                literal.setLength(0);
+                i = end + 1;
+            }
+        }
+        literals.add(literal.toString());
+
+        return new MessageTemplate(template, literals, variables);
+    }
+
+    public void render(StringBuilder out, Variables values) {
+        for (int i = 0; i < variables.length; i++) {
+            out.append(literals[i]);
+            values.append(out, variables[i]);
+        }
+        out.append(literals[variables.length]);
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    @Override
+    public String toString() {
+        return source;
+    }
+}
@@ -0,0 +1,136 @@
+package net.khasegawa.stash.slacker.configurations;
+
+import com.atlassian.bitbucket.pull.PullRequestAction;
+import com.google.common.collect.ImmutableMap;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import org.apache.commons.lang3.StringUtils;
+
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Message templates of the notified actions.
+ *
+ * The "Message Templates" setting is a JSON object mapping lower case action names to templates,
+ * for example { "merged": "{user} merged &lt;{url}|#{id}&gt; on {repo}" }.
+ * Actions without a template use {@link #DEFAULT_TEMPLATES}.
+ *
+ * Created by Kazuki Hasegawa on 26/10/18.
+ *
+ * @author Kazuki Hasegawa
+ */
+public final class MessageTemplates {
+    public static final String FIELD = "messageTemplates";
+
+    /**
+     * The built in templates, producing the messages which were notified before templates could be configured.
+     */
+    public static final Map<PullRequestAction, String> DEFAULT_TEMPLATES = ImmutableMap.<PullRequestAction, String>builder()
+            .put(PullRequestAction.OPENED, "{user} opened PullRequest <{url}|#{id}> on {repo}")
+            .put(PullRequestAction.REOPENED, "{user} reopened PullRequest <{url}|#{id}> on {repo}")
+            .put(PullRequestAction.UPDATED, "{user} updated PullRequest <{url}|#{id}> on {repo}{times}")
+            .put(PullRequestAction.RESCOPED, "{user} rescoped PullRequest <{url}|#{id}> on {repo}{times}")
+            .put(PullRequestAction.MERGED, "{user} merged PullRequest <{url}|#{id}> on {repo}")
+            .put(PullRequestAction.DECLINED, "{user} declined PullRequest <{url}|#{id}> on {repo}")
+            .put(PullRequestAction.COMMENTED,
+                 "{user} commented to PullRequest <{url}|#{id}> on {repo}: <{comment_url}|Show>")
+            .build();
+
+    /**
+     * Plain text of an opened pull request for clients which can not show attachments.
+     */
+    public static final MessageTemplate OPENED_FALLBACK = compileDefault(
+            "{user} opened PullRequest #{id} on {repo} - {url} - {title}");
+
+    private static final JsonParser PARSER = new JsonParser();
+
+    private static final MessageTemplate[] COMPILED_DEFAULT_TEMPLATES = compileDefaults();
+
+    public static final MessageTemplates DEFAULTS = new MessageTemplates(ImmutableMap.<PullRequestAction, MessageTemplate>of());
+
+    // Indexed by the ordinal of the action.
+    private final MessageTemplate[] templates;
+
+    private MessageTemplates(Map<PullRequestAction, MessageTemplate> templates) {
+        this.templates = COMPILED_DEFAULT_TEMPLATES.clone();
+        for (Map.Entry<PullRequestAction, MessageTemplate> template : templates.entrySet()) {
+            this.templates[template.getKey().ordinal()] = template.getValue();
+        }
+    }
+
+    /**
+     * @param templates The configured templates, the other actions use the default templates.
+     */
+    public static MessageTemplates of(Map<PullRequestAction, MessageTemplate> templates) {
+        return templates.isEmpty() ? DEFAULTS : new MessageTemplates(templates);
+    }
+
+    /**
+     * @return null if the action is never notified.
+     */
+    public MessageTemplate get(PullRequestAction action) {
+        return templates[action.ordinal()];
+    }
+
+    /**
+     * @return An immutable map of the compiled templates, empty if the JSON is blank.
+     * @throws InvalidConfigurationException if the JSON is not an object of valid templates of notified actions.
+     */
+    public static Map<PullRequestAction, MessageTemplate> parse(String messageTemplates)
+            throws InvalidConfigurationException {
+        if (StringUtils.isBlank(messageTemplates)) return ImmutableMap.of();
+
+        JsonElement root;
+        try {
+            root = PARSER.parse(messageTemplates);
+        } catch (JsonParseException e) {
+            throw new InvalidConfigurationException(FIELD, "Message Templates is invalid: " + e.getMessage());
+        }
+        if (!root.isJsonObject()) {
+            throw new InvalidConfigurationException(FIELD, "Message Templates must be an object.");
+        }
+
+        Map<PullRequestAction, MessageTemplate> templates =
+                new EnumMap<PullRequestAction, MessageTemplate>(PullRequestAction.class);
+        for (Map.Entry<String, JsonElement> entry : root.getAsJsonObject().entrySet()) {
+            PullRequestAction action = action(entry.getKey());
+            if (action == null) {
+                throw new InvalidConfigurationException(FIELD, "Unknown action: " + entry.getKey() + ". Use one of " +
+                        StringUtils.join(DEFAULT_TEMPLATES.keySet(), ", ").toLowerCase(Locale.ROOT) + ".");
+            }
+            JsonElement value = entry.getValue();
+            if (!value.isJsonPrimitive() || !value.getAsJsonPrimitive().isString()) {
+                throw new InvalidConfigurationException(FIELD, "Template of " + entry.getKey() + " must be a string.");
+            }
+            templates.put(action, MessageTemplate.compile(FIELD, value.getAsString()));
+        }
+
+        return ImmutableMap.copyOf(templates);
+    }
+
+    private static PullRequestAction action(String name) {
+        for (PullRequestAction action : DEFAULT_TEMPLATES.keySet()) {
+            if (action.name().equalsIgnoreCase(name)) return action;
+        }
+        return null;
+    }
+
+    private static MessageTemplate[] compileDefaults() {
+        MessageTemplate[] templates = new MessageTemplate[PullRequestAction.values().length];
+        for (Map.Entry<PullRequestAction, String> template : DEFAULT_TEMPLATES.entrySet()) {
+            templates[template.getKey().ordinal()] = compileDefault(template.getValue());
+        }
+        return templates;
+    }
+
+    private static MessageTemplate compileDefault(String template) {
+        try {
+            return MessageTemplate.compile(FIELD, template);
+        } catch (InvalidConfigurationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
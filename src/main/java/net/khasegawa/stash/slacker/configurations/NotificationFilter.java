@@ -0,0 +1,235 @@
+package net.khasegawa.stash.slacker.configurations;
+
+import com.atlassian.bitbucket.pull.PullRequestAction;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import org.apache.commons.lang3.StringUtils;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Decides whether a pull request event is notified, compiled once from a {@link NotifyConfiguration}.
+ *
+ * The filter is a chain of conditions, cheapest first, which only read values the event already carries.
+ * Patterns, globs and user lists are compiled when the configuration is merged, never per event.
+ * The notified actions are kept apart from the other conditions, so that the delivery targets of a
+ * configuration, which have actions of their own, share the branch, author and title conditions.
+ *
+ * Created by Kazuki Hasegawa on 26/10/18.
+ *
+ * @author Kazuki Hasegawa
+ */
+public final class NotificationFilter {
+    public static final String TITLE_FILTER_FIELD = "titleFilter";
+
+    private static final Pattern WIP_PATTERN = Pattern.compile("^\\[?WIP\\]?");
+
+    /**
+     * The values of an event the filter reads.
+     */
+    public interface Subject {
+        PullRequestAction getAction();
+
+        String getTitle();
+
+        boolean isCrossRepository();
+
+        /**
+         * @return The display ID of the target branch.
+         */
+        String getToBranchName();
+
+        /**
+         * @return The display ID of the source branch.
+         */
+        String getFromBranchName();
+
+        String getPullRequestAuthorName();
+    }
+
+    private interface Condition {
+        boolean accepts(Subject subject);
+    }
+
+    private final Set<PullRequestAction> actions;
+    private final List<Condition> conditions;
+
+    private NotificationFilter(Set<PullRequestAction> actions, List<Condition> conditions) {
+        this.actions = actions;
+        this.conditions = ImmutableList.copyOf(conditions);
+    }
+
+    /**
+     * @param actions The notified actions.
+     * @param titleFilter Regular expression of ignored titles, may be blank.
+     * @param targetBranches Comma separated globs of the notified target branches, blank for all.
+     * @param sourceBranches Comma separated globs of the notified source branches, blank for all.
+     * @param includeAuthors Comma separated names of the notified authors, blank for all.
+     * @param excludeAuthors Comma separated names of the ignored authors, may be blank.
+     */
+    public static NotificationFilter compile(Set<PullRequestAction> actions,
+                                             boolean ignoreWIP,
+                                             boolean ignoreNotCrossRepository,
+                                             String titleFilter,
+                                             String targetBranches,
+                                             String sourceBranches,
+                                             String includeAuthors,
+                                             String excludeAuthors) {
+        List<Condition> conditions = new ArrayList<Condition>();
+
+        if (ignoreNotCrossRepository) {
+            conditions.add(new Condition() {
+                @Override
+                public boolean accepts(Subject subject) {
+                    return subject.isCrossRepository();
+                }
+            });
+        }
+
+        final Set<String> included = names(includeAuthors);
+        if (!included.isEmpty()) {
+            conditions.add(new Condition() {
+                @Override
+                public boolean accepts(Subject subject) {
+                    return included.contains(subject.getPullRequestAuthorName());
+                }
+            });
+        }
+        final Set<String> excluded = names(excludeAuthors);
+        if (!excluded.isEmpty()) {
+            conditions.add(new Condition() {
+                @Override
+                public boolean accepts(Subject subject) {
+                    return !excluded.contains(subject.getPullRequestAuthorName());
+                }
+            });
+        }
+
+        final Pattern targetPattern = globs(targetBranches);
+        if (targetPattern != null) {
+            conditions.add(new Condition() {
+                @Override
+                public boolean accepts(Subject subject) {
+                    return subject.getToBranchName() != null &&
+                            targetPattern.matcher(subject.getToBranchName()).matches();
+                }
+            });
+        }
+        final Pattern sourcePattern = globs(sourceBranches);
+        if (sourcePattern != null) {
+            conditions.add(new Condition() {
+                @Override
+                public boolean accepts(Subject subject) {
+                    return subject.getFromBranchName() != null &&
+                            sourcePattern.matcher(subject.getFromBranchName()).matches();
+                }
+            });
+        }
+
+        if (ignoreWIP) conditions.add(ignoredTitles(WIP_PATTERN));
+        Pattern titlePattern = null;
+        try {
+            titlePattern = compileTitleFilter(titleFilter);
+        } catch (InvalidConfigurationException e) {
+            // Saved before titles were validated, ignore it like an invalid user map.
+        }
+        if (titlePattern != null) conditions.add(ignoredTitles(titlePattern));
+
+        return new NotificationFilter(actions.isEmpty() ?
+                                              EnumSet.noneOf(PullRequestAction.class) : EnumSet.copyOf(actions),
+                                      conditions);
+    }
+
+    /**
+     * @return null if the filter is blank.
+     * @throws InvalidConfigurationException if the filter is not a regular expression.
+     */
+    public static Pattern compileTitleFilter(String titleFilter) throws InvalidConfigurationException {
+        if (StringUtils.isBlank(titleFilter)) return null;
+
+        try {
+            return Pattern.compile(titleFilter);
+        } catch (PatternSyntaxException e) {
+            throw new InvalidConfigurationException(TITLE_FILTER_FIELD,
+                                                    "Ignored Titles is not a regular expression: " + e.getDescription());
+        }
+    }
+
+    /**
+     * @return true if the action is notified and the event passes the other conditions.
+     */
+    public boolean accepts(Subject subject) {
+        return acceptsAction(subject.getAction()) && matches(subject);
+    }
+
+    /**
+     * @return true if the action is notified to the webhook of the configuration.
+     */
+    public boolean acceptsAction(PullRequestAction action) {
+        return actions.contains(action);
+    }
+
+    /**
+     * @return true if the event passes the conditions other than its action.
+     */
+    public boolean matches(Subject subject) {
+        for (int i = 0; i < conditions.size(); i++) {
+            if (!conditions.get(i).accepts(subject)) return false;
+        }
+        return true;
+    }
+
+    private static Condition ignoredTitles(final Pattern pattern) {
+        return new Condition() {
+            @Override
+            public boolean accepts(Subject subject) {
+                return subject.getTitle() == null || !pattern.matcher(subject.getTitle()).find();
+            }
+        };
+    }
+
+    private static Set<String> names(String names) {
+        ImmutableSet.Builder<String> builder = ImmutableSet.builder();
+        for (String name : StringUtils.split(StringUtils.defaultString(names), ", \t\r\n")) {
+            builder.add(name);
+        }
+        return builder.build();
+    }
+
+    /**
+     * Compiles comma separated globs into one pattern. "*" and "?" do not match "/", "**" does.
+     *
+     * @return null if there are no globs.
+     */
+    private static Pattern globs(String globs) {
+        StringBuilder regex = new StringBuilder();
+        for (String glob : StringUtils.split(StringUtils.defaultString(globs), ", \t\r\n")) {
+            if (regex.length() > 0) regex.append('|');
+            regex.append("(?:");
+            int literal = 0;
+            for (int i = 0; i < glob.length(); i++) {
+                char c = glob.charAt(i);
+                if (c != '*' && c != '?') continue;
+
+                if (i > literal) regex.append(Pattern.quote(glob.substring(literal, i)));
+                if (c == '?') {
+                    regex.append("[^/]");
+                } else if (i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+                    regex.append(".*");
+                    i++;
+                } else {
+                    regex.append("[^/]*");
+                }
+                literal = i + 1;
+            }
+            if (literal < glob.length()) regex.append(Pattern.quote(glob.substring(literal)));
+            regex.append(')');
+        }
+        return regex.length() == 0 ? null : Pattern.compile(regex.toString());
+    }
+}
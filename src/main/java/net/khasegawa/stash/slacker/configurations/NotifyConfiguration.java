@@ -0,0 +1,307 @@
+package net.khasegawa.stash.slacker.configurations;
+
+import com.atlassian.bitbucket.pull.PullRequestAction;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import org.apache.commons.lang3.StringUtils;
+
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Effective configuration of a repository, the repository configuration merged over its project configuration.
+ *
+ * Instances are immutable so that they can be cached and shared between the dispatcher threads.
+ * The user maps and message templates are merged and the filter is compiled once here, so events only do lookups.
+ * Blank texts and zero numbers of the repository configuration, such as the filters, the quiet window or the text
+ * limits, are inherited from the project configuration. The events and the other switches are those of the repository.
+ *
+ * Created by Kazuki Hasegawa on 26/10/18.
+ *
+ * @author Kazuki Hasegawa
+ */
+public final class NotifyConfiguration {
+    private final Integer projectId;
+    private final String hookURL;
+    private final String channel;
+    private final boolean notifyPROpened;
+    private final boolean notifyPRReopened;
+    private final boolean notifyPRRescoped;
+    private final boolean notifyPRUpdated;
+    private final boolean notifyPRMerged;
+    private final boolean notifyPRDeclined;
+    private final boolean notifyPRCommented;
+    private final boolean ignoreWIP;
+    private final boolean ignoreNotCrossRepository;
+    private final Map<String, String> userMap;
+    private final MessageTemplates templates;
+    private final String excludeAuthors;
+    private final String includeAuthors;
+    private final String sourceBranches;
+    private final String targetBranches;
+    private final String titleFilter;
+    private final int digestIntervalSeconds;
+    private final int quietWindowSeconds;
+    private final TextBudget textBudget;
+    private final boolean compactUpdates;
+    private final List<NotifyTarget> targets;
+    private final NotificationFilter filter;
+
+    private NotifyConfiguration(Integer projectId,
+                                ConfigurationValues projectConfiguration,
+                                ConfigurationValues repositoryConfiguration) {
+        this.projectId = projectId;
+
+        if (repositoryConfiguration != null) {
+            ConfigurationValues project = projectConfiguration == null ?
+                    ConfigurationValues.DEFAULTS : projectConfiguration;
+
+            this.hookURL = StringUtils.defaultIfBlank(repositoryConfiguration.getHookURL(), project.getHookURL());
+            this.channel = StringUtils.defaultIfBlank(repositoryConfiguration.getChannel(), project.getChannel());
+            this.notifyPROpened = repositoryConfiguration.getNotifyPROpened();
+            this.notifyPRReopened = repositoryConfiguration.getNotifyPRReopened();
+            this.notifyPRRescoped = repositoryConfiguration.getNotifyPRRescoped();
+            this.notifyPRUpdated = repositoryConfiguration.getNotifyPRUpdated();
+            this.notifyPRMerged = repositoryConfiguration.getNotifyPRMerged();
+            this.notifyPRDeclined = repositoryConfiguration.getNotifyPRDeclined();
+            this.notifyPRCommented = repositoryConfiguration.getNotifyPRCommented();
+            this.ignoreWIP = repositoryConfiguration.getIgnoreWIP();
+            this.ignoreNotCrossRepository = repositoryConfiguration.getIgnoreNotCrossRepository();
+            this.excludeAuthors = StringUtils.defaultIfBlank(repositoryConfiguration.getExcludeAuthors(),
+                                                             project.getExcludeAuthors());
+            this.includeAuthors = StringUtils.defaultIfBlank(repositoryConfiguration.getIncludeAuthors(),
+                                                             project.getIncludeAuthors());
+            this.sourceBranches = StringUtils.defaultIfBlank(repositoryConfiguration.getSourceBranches(),
+                                                             project.getSourceBranches());
+            this.targetBranches = StringUtils.defaultIfBlank(repositoryConfiguration.getTargetBranches(),
+                                                             project.getTargetBranches());
+            this.titleFilter = StringUtils.defaultIfBlank(repositoryConfiguration.getTitleFilter(),
+                                                          project.getTitleFilter());
+            this.digestIntervalSeconds = defaultIfZero(repositoryConfiguration.getDigestIntervalSeconds(),
+                                                       project.getDigestIntervalSeconds());
+            this.quietWindowSeconds = defaultIfZero(repositoryConfiguration.getQuietWindowSeconds(),
+                                                    project.getQuietWindowSeconds());
+            this.textBudget = TextBudget.of(
+                    defaultIfZero(repositoryConfiguration.getMaxTextCharacters(), project.getMaxTextCharacters()),
+                    defaultIfZero(repositoryConfiguration.getMaxTextBytes(), project.getMaxTextBytes()));
+            this.compactUpdates = repositoryConfiguration.getCompactUpdates();
+            this.targets = projectConfiguration == null || !repositoryConfiguration.getTargets().isEmpty() ?
+                    repositoryConfiguration.getTargets() : projectConfiguration.getTargets();
+
+            if (projectConfiguration == null || projectConfiguration.getUserMap().isEmpty()) {
+                this.userMap = repositoryConfiguration.getUserMap();
+            } else {
+                Map<String, String> userMap = new HashMap<String, String>(projectConfiguration.getUserMap());
+                userMap.putAll(repositoryConfiguration.getUserMap());
+                this.userMap = ImmutableMap.copyOf(userMap);
+            }
+
+            if (projectConfiguration == null || projectConfiguration.getTemplates().isEmpty()) {
+                this.templates = MessageTemplates.of(repositoryConfiguration.getTemplates());
+            } else {
+                Map<PullRequestAction, MessageTemplate> templates =
+                        new EnumMap<PullRequestAction, MessageTemplate>(projectConfiguration.getTemplates());
+                templates.putAll(repositoryConfiguration.getTemplates());
+                this.templates = MessageTemplates.of(templates);
+            }
+        } else if (projectConfiguration != null) {
+            this.hookURL = projectConfiguration.getHookURL();
+            this.channel = projectConfiguration.getChannel();
+            this.notifyPROpened = projectConfiguration.getNotifyPROpened();
+            this.notifyPRReopened = projectConfiguration.getNotifyPRReopened();
+            this.notifyPRRescoped = projectConfiguration.getNotifyPRRescoped();
+            this.notifyPRUpdated = projectConfiguration.getNotifyPRUpdated();
+            this.notifyPRMerged = projectConfiguration.getNotifyPRMerged();
+            this.notifyPRDeclined = projectConfiguration.getNotifyPRDeclined();
+            this.notifyPRCommented = projectConfiguration.getNotifyPRCommented();
+            this.ignoreWIP = projectConfiguration.getIgnoreWIP();
+            this.ignoreNotCrossRepository = projectConfiguration.getIgnoreNotCrossRepository();
+            this.excludeAuthors = projectConfiguration.getExcludeAuthors();
+            this.includeAuthors = projectConfiguration.getIncludeAuthors();
+            this.sourceBranches = projectConfiguration.getSourceBranches();
+            this.targetBranches = projectConfiguration.getTargetBranches();
+            this.titleFilter = projectConfiguration.getTitleFilter();
+            this.digestIntervalSeconds = projectConfiguration.getDigestIntervalSeconds();
+            this.quietWindowSeconds = projectConfiguration.getQuietWindowSeconds();
+            this.textBudget = TextBudget.of(projectConfiguration.getMaxTextCharacters(),
+                                            projectConfiguration.getMaxTextBytes());
+            this.compactUpdates = projectConfiguration.getCompactUpdates();
+            this.targets = projectConfiguration.getTargets();
+            this.userMap = projectConfiguration.getUserMap();
+            this.templates = MessageTemplates.of(projectConfiguration.getTemplates());
+        } else {
+            this.hookURL = null;
+            this.channel = null;
+            this.notifyPROpened = false;
+            this.notifyPRReopened = false;
+            this.notifyPRRescoped = false;
+            this.notifyPRUpdated = false;
+            this.notifyPRMerged = false;
+            this.notifyPRDeclined = false;
+            this.notifyPRCommented = false;
+            this.ignoreWIP = false;
+            this.ignoreNotCrossRepository = false;
+            this.excludeAuthors = null;
+            this.includeAuthors = null;
+            this.sourceBranches = null;
+            this.targetBranches = null;
+            this.titleFilter = null;
+            this.digestIntervalSeconds = 0;
+            this.quietWindowSeconds = 0;
+            this.textBudget = TextBudget.DEFAULT;
+            this.compactUpdates = false;
+            this.targets = ImmutableList.of();
+            this.userMap = ImmutableMap.of();
+            this.templates = MessageTemplates.DEFAULTS;
+        }
+
+        this.filter = NotificationFilter.compile(actions(), ignoreWIP, ignoreNotCrossRepository, titleFilter,
+                                                 targetBranches, sourceBranches, includeAuthors, excludeAuthors);
+    }
+
+    /**
+     * @param projectConfiguration null if the project has no configuration.
+     * @param repositoryConfiguration null if the repository has no configuration.
+     */
+    public static NotifyConfiguration merge(Integer projectId,
+                                            ConfigurationValues projectConfiguration,
+                                            ConfigurationValues repositoryConfiguration) {
+        return new NotifyConfiguration(projectId, projectConfiguration, repositoryConfiguration);
+    }
+
+    private static int defaultIfZero(int value, int defaultValue) {
+        return value == 0 ? defaultValue : value;
+    }
+
+    private Set<PullRequestAction> actions() {
+        Set<PullRequestAction> actions = EnumSet.noneOf(PullRequestAction.class);
+        if (notifyPROpened) actions.add(PullRequestAction.OPENED);
+        if (notifyPRReopened) actions.add(PullRequestAction.REOPENED);
+        if (notifyPRRescoped) actions.add(PullRequestAction.RESCOPED);
+        if (notifyPRUpdated) actions.add(PullRequestAction.UPDATED);
+        if (notifyPRMerged) actions.add(PullRequestAction.MERGED);
+        if (notifyPRDeclined) actions.add(PullRequestAction.DECLINED);
+        if (notifyPRCommented) actions.add(PullRequestAction.COMMENTED);
+        return actions;
+    }
+
+    public Integer getProjectId() {
+        return projectId;
+    }
+
+    public String getHookURL() {
+        return hookURL;
+    }
+
+    public String getChannel() {
+        return channel;
+    }
+
+    public boolean isNotifyPROpened() {
+        return notifyPROpened;
+    }
+
+    public boolean isNotifyPRReopened() {
+        return notifyPRReopened;
+    }
+
+    public boolean isNotifyPRRescoped() {
+        return notifyPRRescoped;
+    }
+
+    public boolean isNotifyPRUpdated() {
+        return notifyPRUpdated;
+    }
+
+    public boolean isNotifyPRMerged() {
+        return notifyPRMerged;
+    }
+
+    public boolean isNotifyPRDeclined() {
+        return notifyPRDeclined;
+    }
+
+    public boolean isNotifyPRCommented() {
+        return notifyPRCommented;
+    }
+
+    public boolean isIgnoreWIP() {
+        return ignoreWIP;
+    }
+
+    public boolean isIgnoreNotCrossRepository() {
+        return ignoreNotCrossRepository;
+    }
+
+    public int getQuietWindowSeconds() {
+        return quietWindowSeconds;
+    }
+
+    public int getDigestIntervalSeconds() {
+        return digestIntervalSeconds;
+    }
+
+    /**
+     * @return The limits of descriptions and comments in messages.
+     */
+    public TextBudget getTextBudget() {
+        return textBudget;
+    }
+
+    /**
+     * @return true if updates only notify the changed values and the changed hunks of the description.
+     */
+    public boolean isCompactUpdates() {
+        return compactUpdates;
+    }
+
+    /**
+     * @return The further webhooks notified besides {@link #getHookURL()}, those of the repository configuration
+     *         or, if it has none, those of the project configuration.
+     */
+    public List<NotifyTarget> getTargets() {
+        return targets;
+    }
+
+    public String getTitleFilter() {
+        return titleFilter;
+    }
+
+    public String getTargetBranches() {
+        return targetBranches;
+    }
+
+    public String getSourceBranches() {
+        return sourceBranches;
+    }
+
+    public String getIncludeAuthors() {
+        return includeAuthors;
+    }
+
+    public String getExcludeAuthors() {
+        return excludeAuthors;
+    }
+
+    /**
+     * @return The notified actions and filters, compiled with this configuration.
+     */
+    public NotificationFilter getFilter() {
+        return filter;
+    }
+
+    public Map<String, String> getUserMap() {
+        return userMap;
+    }
+
+    /**
+     * @return The message templates, the repository templates merged over the project templates.
+     */
+    public MessageTemplates getTemplates() {
+        return templates;
+    }
+}
@@ -0,0 +1,93 @@
+package net.khasegawa.stash.slacker.configurations;
+
+import com.atlassian.bitbucket.pull.PullRequestAction;
+import net.khasegawa.stash.slacker.activeobjects.DeliveryTarget;
+import org.apache.commons.lang3.StringUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Immutable copy of a stored {@link DeliveryTarget}.
+ *
+ * The notified actions are kept as a bit mask of their ordinals, so matching an event is a single bit test.
+ *
+ * Created by Kazuki Hasegawa on 26/10/18.
+ *
+ * @author Kazuki Hasegawa
+ */
+public final class NotifyTarget {
+    private final String hookURL;
+    private final String channel;
+    private final Set<PullRequestAction> events;
+    private final long eventMask;
+
+    /**
+     * @param channel null posts to the default channel of the webhook.
+     * @param events The notified actions, empty for every action.
+     */
+    public NotifyTarget(String hookURL, String channel, Set<PullRequestAction> events) {
+        this.hookURL = hookURL;
+        this.channel = StringUtils.trimToNull(channel);
+        this.events = events.isEmpty() ?
+                Collections.<PullRequestAction>emptySet() :
+                Collections.unmodifiableSet(EnumSet.copyOf(events));
+
+        long eventMask = 0;
+        for (PullRequestAction action : events) {
+            eventMask |= 1L << action.ordinal();
+        }
+        this.eventMask = events.isEmpty() ? -1L : eventMask;
+    }
+
+    /**
+     * Unknown action names in the stored events are ignored.
+     */
+    public static NotifyTarget of(DeliveryTarget target) {
+        Set<PullRequestAction> events = EnumSet.noneOf(PullRequestAction.class);
+        for (String name : StringUtils.split(StringUtils.defaultString(target.getEvents()), ',')) {
+            for (PullRequestAction action : PullRequestAction.values()) {
+                if (action.name().equalsIgnoreCase(name.trim())) events.add(action);
+            }
+        }
+        return new NotifyTarget(target.getHookURL(), target.getChannel(), events);
+    }
+
+    public boolean accepts(PullRequestAction action) {
+        return (eventMask & (1L << action.ordinal())) != 0;
+    }
+
+    public String getHookURL() {
+        return hookURL;
+    }
+
+    /**
+     * @return null for the default channel of the webhook.
+     */
+    public String getChannel() {
+        return channel;
+    }
+
+    /**
+     * @return The notified actions, empty for every action.
+     */
+    public Set<PullRequestAction> getEvents() {
+        return events;
+    }
+
+    /**
+     * @return The stored form of the events, null for every action.
+     */
+    public String getEventNames() {
+        if (events.isEmpty()) return null;
+
+        List<String> names = new ArrayList<String>(events.size());
+        for (PullRequestAction action : events) {
+            names.add(action.name());
+        }
+        return StringUtils.join(names, ',');
+    }
+}
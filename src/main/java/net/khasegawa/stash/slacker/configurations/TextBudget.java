@@ -0,0 +1,111 @@
+package net.khasegawa.stash.slacker.configurations;
+
+/**
+ * Limits of a description or comment in a message, in characters (code points) and in UTF-8 bytes.
+ *
+ * A longer text is cut before it is copied into the payload, on a code point boundary so that no surrogate pair
+ * is split, and ends with a "&hellip;see PR" link instead. Only the kept part of the text is ever scanned or copied,
+ * so building the message costs the same however large the pull request text is.
+ *
+ * Created by Kazuki Hasegawa on 26/10/18.
+ *
+ * @author Kazuki Hasegawa
+ */
+public final class TextBudget {
+    public static final int DEFAULT_CHARACTERS = 3000;
+    public static final int DEFAULT_BYTES = 12000;
+    public static final int MAX_CHARACTERS = 40000;
+    public static final int MAX_BYTES = 160000;
+
+    public static final TextBudget DEFAULT = new TextBudget(DEFAULT_CHARACTERS, DEFAULT_BYTES);
+
+    private static final String ELLIPSIS = "\u2026";
+
+    private final int maxCharacters;
+    private final int maxBytes;
+
+    private TextBudget(int maxCharacters, int maxBytes) {
+        this.maxCharacters = maxCharacters;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @param maxCharacters 0 for {@link #DEFAULT_CHARACTERS}.
+     * @param maxBytes 0 for {@link #DEFAULT_BYTES}.
+     */
+    public static TextBudget of(int maxCharacters, int maxBytes) {
+        if (maxCharacters <= 0) maxCharacters = DEFAULT_CHARACTERS;
+        if (maxBytes <= 0) maxBytes = DEFAULT_BYTES;
+        if (maxCharacters == DEFAULT_CHARACTERS && maxBytes == DEFAULT_BYTES) return DEFAULT;
+
+        return new TextBudget(maxCharacters, maxBytes);
+    }
+
+    public int getMaxCharacters() {
+        return maxCharacters;
+    }
+
+    public int getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * @param url The pull request the "see PR" link points to.
+     * @return The text itself if it is within the budget, otherwise its longest prefix which fits together
+     *         with the link. null if the text is null.
+     */
+    public String truncate(String text, String url) {
+        if (text == null) return null;
+
+        int length = text.length();
+        // A char is at most 3 bytes in UTF-8 and a surrogate pair 4, so short texts need no scan.
+        if (length <= maxCharacters && length * 3L <= maxBytes) return text;
+        if (fit(text, maxCharacters, maxBytes) == length) return text;
+
+        String link = ELLIPSIS + "<" + url + "|see PR>";
+        int end = fit(text,
+                      Math.max(0, maxCharacters - link.codePointCount(0, link.length())),
+                      Math.max(0, maxBytes - utf8Length(link)));
+        while (end > 0 && Character.isWhitespace(text.charAt(end - 1))) {
+            end--;
+        }
+
+        return new StringBuilder(end + link.length()).append(text, 0, end).append(link).toString();
+    }
+
+    /**
+     * @return The end index of the longest prefix of whole code points within the limits.
+     */
+    private static int fit(String text, int maxCharacters, int maxBytes) {
+        int index = 0;
+        int characters = 0;
+        int bytes = 0;
+        while (index < text.length()) {
+            int codePoint = text.codePointAt(index);
+            int size = utf8Length(codePoint);
+            if (characters + 1 > maxCharacters || bytes + size > maxBytes) break;
+
+            characters++;
+            bytes += size;
+            index += Character.charCount(codePoint);
+        }
+        return index;
+    }
+
+    private static int utf8Length(String text) {
+        int bytes = 0;
+        for (int index = 0; index < text.length(); ) {
+            int codePoint = text.codePointAt(index);
+            bytes += utf8Length(codePoint);
+            index += Character.charCount(codePoint);
+        }
+        return bytes;
+    }
+
+    private static int utf8Length(int codePoint) {
+        if (codePoint < 0x80) return 1;
+        if (codePoint < 0x800) return 2;
+        if (codePoint < 0x10000) return 3;
+        return 4;
+    }
+}
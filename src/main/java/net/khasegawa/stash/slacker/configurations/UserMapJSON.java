@@ -0,0 +1,54 @@
+package net.khasegawa.stash.slacker.configurations;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import org.apache.commons.lang3.StringUtils;
+
+import java.util.Map;
+
+/**
+ * Parser of the "User Map JSON" setting, a JSON object mapping Stash user names to Slack user names.
+ *
+ * Created by Kazuki Hasegawa on 26/10/18.
+ *
+ * @author Kazuki Hasegawa
+ */
+public final class UserMapJSON {
+    public static final String FIELD = "userMapJSON";
+
+    private static final JsonParser PARSER = new JsonParser();
+
+    private UserMapJSON() {
+    }
+
+    /**
+     * @return An immutable map, empty if the JSON is blank.
+     * @throws InvalidConfigurationException if the JSON is not an object of strings.
+     */
+    public static Map<String, String> parse(String userMapJSON) throws InvalidConfigurationException {
+        if (StringUtils.isBlank(userMapJSON)) return ImmutableMap.of();
+
+        JsonElement root;
+        try {
+            root = PARSER.parse(userMapJSON);
+        } catch (JsonParseException e) {
+            throw new InvalidConfigurationException(FIELD, "User Map JSON is invalid: " + e.getMessage());
+        }
+        if (!root.isJsonObject()) {
+            throw new InvalidConfigurationException(FIELD, "User Map JSON must be an object.");
+        }
+
+        ImmutableMap.Builder<String, String> userMap = ImmutableMap.builder();
+        for (Map.Entry<String, JsonElement> user : root.getAsJsonObject().entrySet()) {
+            JsonElement value = user.getValue();
+            if (!value.isJsonPrimitive() || !value.getAsJsonPrimitive().isString()) {
+                throw new InvalidConfigurationException(FIELD, "Slack user of " + user.getKey() + " must be a string.");
+            }
+            userMap.put(user.getKey(), value.getAsString());
+        }
+
+        return userMap.build();
+    }
+}
@@ -0,0 +1,71 @@
+package net.khasegawa.stash.slacker.deliveries;
+
+/**
+ * Circuit breaker of a webhook.
+ *
+ * Opens after a number of consecutive failures. Once the open period elapsed the next post is a probe:
+ * a success closes the breaker, a failure opens it again for twice as long, up to a maximum.
+ *
+ * Not thread safe, callers synchronize on the owner of the breaker.
+ *
+ * Created by Kazuki Hasegawa on 26/10/18.
+ *
+ * @author Kazuki Hasegawa
+ */
+public class CircuitBreaker {
+    private final int failureThreshold;
+    private final long openMillis;
+    private final long maxOpenMillis;
+    private int failures;
+    private long currentOpenMillis;
+    private long openUntil;
+
+    public CircuitBreaker(int failureThreshold, long openMillis, long maxOpenMillis) {
+        this.failureThreshold = Math.max(1, failureThreshold);
+        this.openMillis = Math.max(1, openMillis);
+        this.maxOpenMillis = Math.max(this.openMillis, maxOpenMillis);
+        this.currentOpenMillis = this.openMillis;
+    }
+
+    /**
+     * @return true while posts must fail fast. After the open period the breaker is half open and allows a probe.
+     */
+    public boolean isOpen(long now) {
+        return openUntil > now;
+    }
+
+    /**
+     * @return 0 if the breaker is closed.
+     */
+    public long getOpenUntil() {
+        return openUntil;
+    }
+
+    /**
+     * @return true if nothing failed since the breaker was last closed.
+     */
+    public boolean isClosed() {
+        return failures == 0 && openUntil == 0;
+    }
+
+    public void success() {
+        failures = 0;
+        openUntil = 0;
+        currentOpenMillis = openMillis;
+    }
+
+    /**
+     * @return true if the failure opened the breaker.
+     */
+    public boolean failure(long now) {
+        failures++;
+        if (openUntil != 0) {
+            // The probe of a half open breaker failed.
+            currentOpenMillis = Math.min(maxOpenMillis, currentOpenMillis * 2);
+        } else if (failures < failureThreshold) {
+            return false;
+        }
+        openUntil = now + currentOpenMillis;
+        return true;
+    }
+}
@@ -0,0 +1,88 @@
+package net.khasegawa.stash.slacker.deliveries;
+
+import com.atlassian.bitbucket.pull.PullRequestAction;
+import org.apache.commons.lang.NullArgumentException;
+import org.apache.http.HttpEntity;
+import org.apache.http.client.entity.UrlEncodedFormEntity;
+import org.apache.http.client.fluent.Form;
+
+import java.nio.charset.Charset;
+
+/**
+ * A serialized payload waiting to be posted to a webhook.
+ *
+ * Created by Kazuki Hasegawa on 26/10/18.
+ *
+ * @author Kazuki Hasegawa
+ */
+public final class Delivery {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final Integer id;
+    private final PullRequestAction action;
+    private final String hookURL;
+    private final String payload;
+
+    /**
+     * @param payload The payload serialized as JSON.
+     */
+    public Delivery(String hookURL, String payload) throws NullArgumentException {
+        this(null, null, hookURL, payload);
+    }
+
+    /**
+     * @param action The notified action, null for a digest of several notifications.
+     * @param payload The payload serialized as JSON.
+     */
+    public Delivery(PullRequestAction action, String hookURL, String payload) throws NullArgumentException {
+        this(null, action, hookURL, payload);
+    }
+
+    /**
+     * @param id The ID of the outbox entry, null if the delivery is not stored.
+     * @param action The notified action, null for a digest of several notifications.
+     * @param payload The payload serialized as JSON.
+     */
+    public Delivery(Integer id, PullRequestAction action, String hookURL, String payload) throws NullArgumentException {
+        if (hookURL == null) throw new NullArgumentException("Hook URL is not null!");
+        if (payload == null) throw new NullArgumentException("Payload is not null!");
+
+        this.id = id;
+        this.action = action;
+        this.hookURL = hookURL;
+        this.payload = payload;
+    }
+
+    public Integer getId() {
+        return id;
+    }
+
+    /**
+     * @return null for a digest of several notifications.
+     */
+    public PullRequestAction getAction() {
+        return action;
+    }
+
+    public String getHookURL() {
+        return hookURL;
+    }
+
+    public String getPayload() {
+        return payload;
+    }
+
+    /**
+     * @return The payload as the JSON request body.
+     */
+    public HttpEntity toJsonEntity() {
+        return new JsonEntity(payload);
+    }
+
+    /**
+     * @return The payload as the "payload" field of a form, for endpoints which do not accept a JSON body.
+     */
+    public HttpEntity toFormEntity() {
+        return new UrlEncodedFormEntity(Form.form().add("payload", payload).build(), UTF_8);
+    }
+}
@@ -0,0 +1,580 @@
+package net.khasegawa.stash.slacker.deliveries;
+
+import com.atlassian.activeobjects.external.ActiveObjects;
+import com.atlassian.beehive.ClusterLock;
+import com.atlassian.beehive.ClusterLockService;
+import com.atlassian.bitbucket.pull.PullRequestAction;
+import com.atlassian.bitbucket.server.ApplicationPropertiesService;
+import com.atlassian.sal.api.transaction.TransactionCallback;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import net.java.ao.Query;
+import net.khasegawa.stash.slacker.activeobjects.OutboxEntry;
+import net.khasegawa.stash.slacker.metrics.DeliveryHealth;
+import net.khasegawa.stash.slacker.metrics.GaugeMBean;
+import net.khasegawa.stash.slacker.metrics.SlackerMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Stores deliveries in the {@link OutboxEntry} table before they are posted, so that they survive restarts
+ * and Slack outages.
+ *
+ * A single outbox thread inserts the enqueued deliveries in batches, claims stored entries in batches and hands them
+ * to the {@link WebhookDeliverer}. Entries are deleted once Slack accepted or rejected them, other failures are
+ * retried with a jittered exponential backoff. Entries deferred by an open circuit breaker are kept until it allows
+ * a probe, or deleted if the breaker policy is "drop". Entries claimed by a stopped node are claimed again when the
+ * claim expired, so a delivery may be posted twice but is never lost.
+ * In a cluster every node runs its own outbox on the shared table. Claims are made under a cluster wide lock and
+ * record the claiming outbox, so each entry is posted by one node while the nodes post their claims in parallel.
+ * A webhook is claimed by one outbox at a time: entries of a webhook with live claims of another outbox are left
+ * until that outbox completed or released them, so the rate limit of the webhook holds across the cluster.
+ * A node which finds the lock taken claims with its next poll. Claims expire after five minutes, and are renewed
+ * while the entries wait in the queues of the deliverer, such as behind a rate limit. Right before an entry is
+ * posted the outbox checks that it still owns the claim with a minute left, and skips the entry otherwise.
+ * Entries are only deleted or rescheduled by the outbox which owns their claim, under the same lock.
+ * The numbers of buffered and claimed entries are exposed as the OutboxBuffered and OutboxInFlight gauges of
+ * {@link SlackerMetrics}, and discarded deliveries are recorded by the {@link DeliveryHealth} of their webhook.
+ * The batches are read from bitbucket.properties:
+ * <ul>
+ *     <li>plugin.slacker.outbox.batch.size entries inserted or claimed at once (default: 50)</li>
+ *     <li>plugin.slacker.outbox.poll.interval in milliseconds (default: 1000)</li>
+ *     <li>plugin.slacker.outbox.max.in.flight claimed entries not completed yet (default: 200)</li>
+ *     <li>plugin.slacker.outbox.max.attempts before an entry is given up (default: 10)</li>
+ *     <li>plugin.slacker.retry.base.delay in milliseconds, doubled by every attempt (default: 2000)</li>
+ *     <li>plugin.slacker.retry.max.delay in milliseconds (default: 600000)</li>
+ *     <li>plugin.slacker.breaker.policy "queue" or "drop" (default: queue)</li>
+ * </ul>
+ *
+ * Created by Kazuki Hasegawa on 26/10/18.
+ *
+ * @author Kazuki Hasegawa
+ */
+public class DeliveryOutbox implements InitializingBean, DisposableBean {
+    private static final Logger logger = LoggerFactory.getLogger(DeliveryOutbox.class);
+
+    private static final String BATCH_SIZE_PROPERTY = "plugin.slacker.outbox.batch.size";
+    private static final String POLL_INTERVAL_PROPERTY = "plugin.slacker.outbox.poll.interval";
+    private static final String MAX_IN_FLIGHT_PROPERTY = "plugin.slacker.outbox.max.in.flight";
+    private static final String MAX_ATTEMPTS_PROPERTY = "plugin.slacker.outbox.max.attempts";
+    private static final String RETRY_BASE_DELAY_PROPERTY = "plugin.slacker.retry.base.delay";
+    private static final String RETRY_MAX_DELAY_PROPERTY = "plugin.slacker.retry.max.delay";
+    private static final String BREAKER_POLICY_PROPERTY = "plugin.slacker.breaker.policy";
+    private static final String DROP_POLICY = "drop";
+    private static final int DEFAULT_BATCH_SIZE = 50;
+    private static final int DEFAULT_POLL_INTERVAL = 1000;
+    private static final int DEFAULT_MAX_IN_FLIGHT = 200;
+    private static final int DEFAULT_MAX_ATTEMPTS = 10;
+    private static final int DEFAULT_RETRY_BASE_DELAY = 2000;
+    private static final int DEFAULT_RETRY_MAX_DELAY = 600000;
+    private static final int MAX_BUFFERED = 10000;
+    private static final long CLAIM_MILLIS = TimeUnit.MINUTES.toMillis(5);
+    private static final long RENEW_INTERVAL_MILLIS = CLAIM_MILLIS / 3;
+    // An entry is only posted if its claim lasts longer than the post may take.
+    private static final long MIN_CLAIM_LEFT_MILLIS = TimeUnit.MINUTES.toMillis(1);
+    private static final String CLAIM_LOCK = "net.khasegawa.stash.slacker.outbox.claim";
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 10;
+
+    private final ActiveObjects activeObjects;
+    private final ClusterLock claimLock;
+    // Tells the claims of this outbox from those of other nodes, and of this node before a restart.
+    private final String owner = UUID.randomUUID().toString();
+    private final WebhookDeliverer deliverer;
+    private final DeliveryHealth health;
+    private final int batchSize;
+    private final int pollInterval;
+    private final int maxInFlight;
+    private final int maxAttempts;
+    private final long retryBaseDelay;
+    private final long retryMaxDelay;
+    private final boolean dropDeferred;
+
+    private final ConcurrentLinkedQueue<Delivery> buffered = new ConcurrentLinkedQueue<Delivery>();
+    private final AtomicInteger bufferedCount = new AtomicInteger();
+    private final ConcurrentLinkedQueue<Integer> completed = new ConcurrentLinkedQueue<Integer>();
+    private final ConcurrentLinkedQueue<Integer> failed = new ConcurrentLinkedQueue<Integer>();
+    private final ConcurrentLinkedQueue<Deferral> deferred = new ConcurrentLinkedQueue<Deferral>();
+    // Claimed entries the deliverer refused, claimed again with the next poll.
+    private final ConcurrentLinkedQueue<Integer> released = new ConcurrentLinkedQueue<Integer>();
+    // Claimed entries handed to the deliverer and not completed yet, whose claims are renewed.
+    private final Set<Integer> leased = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+    private final AtomicInteger inFlight = new AtomicInteger();
+    // Only used by the outbox thread.
+    private long renewedAt;
+    private final AtomicBoolean cycleRequested = new AtomicBoolean();
+    private final ScheduledExecutorService worker = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("slacker-outbox-%d").setDaemon(true).build());
+
+    private final WebhookDeliverer.Callback callback = new WebhookDeliverer.Callback() {
+        @Override
+        public boolean beforePost(Delivery delivery) {
+            if (isClaimed(delivery.getId())) return true;
+
+            // Another node claimed it after our claim expired, or the claim cannot be trusted to outlast the post.
+            logger.warn("Slacker outbox skipped a notification it no longer owns");
+            leased.remove(delivery.getId());
+            inFlight.decrementAndGet();
+            return false;
+        }
+
+        @Override
+        public void completed(Delivery delivery, SlackResponse response) {
+            leased.remove(delivery.getId());
+            inFlight.decrementAndGet();
+            if (response == null || response.getStatusCode() >= 500) {
+                failed.add(delivery.getId());
+            } else {
+                if (!response.isSuccessful()) logger.warn("Slack rejected a notification: {}", response);
+                completed.add(delivery.getId());
+            }
+            requestCycle();
+        }
+
+        @Override
+        public void deferred(Delivery delivery, long until) {
+            leased.remove(delivery.getId());
+            inFlight.decrementAndGet();
+            deferred.add(new Deferral(delivery, until));
+            requestCycle();
+        }
+    };
+
+    public DeliveryOutbox(ActiveObjects activeObjects,
+                          ClusterLockService clusterLockService,
+                          ApplicationPropertiesService propertiesService,
+                          WebhookDeliverer deliverer,
+                          SlackerMetrics metrics,
+                          DeliveryHealth health) {
+        this.activeObjects = activeObjects;
+        this.claimLock = clusterLockService.getLockForName(CLAIM_LOCK);
+        this.deliverer = deliverer;
+        this.health = health;
+        this.batchSize = Math.max(1, propertiesService.getPluginProperty(BATCH_SIZE_PROPERTY, DEFAULT_BATCH_SIZE));
+        this.pollInterval = Math.max(100, propertiesService.getPluginProperty(POLL_INTERVAL_PROPERTY,
+                                                                              DEFAULT_POLL_INTERVAL));
+        this.maxInFlight = Math.max(1, propertiesService.getPluginProperty(MAX_IN_FLIGHT_PROPERTY,
+                                                                           DEFAULT_MAX_IN_FLIGHT));
+        this.maxAttempts = Math.max(1, propertiesService.getPluginProperty(MAX_ATTEMPTS_PROPERTY,
+                                                                           DEFAULT_MAX_ATTEMPTS));
+        this.retryBaseDelay = Math.max(1, propertiesService.getPluginProperty(RETRY_BASE_DELAY_PROPERTY,
+                                                                              DEFAULT_RETRY_BASE_DELAY));
+        this.retryMaxDelay = Math.max(retryBaseDelay, propertiesService.getPluginProperty(RETRY_MAX_DELAY_PROPERTY,
+                                                                                          DEFAULT_RETRY_MAX_DELAY));
+        this.dropDeferred = DROP_POLICY.equalsIgnoreCase(propertiesService.getPluginProperty(BREAKER_POLICY_PROPERTY,
+                                                                                             "queue"));
+
+        metrics.gauge("OutboxBuffered", new GaugeMBean() {
+            @Override
+            public long getValue() {
+                return bufferedCount.get();
+            }
+        });
+        metrics.gauge("OutboxInFlight", new GaugeMBean() {
+            @Override
+            public long getValue() {
+                return inFlight.get();
+            }
+        });
+    }
+
+    /**
+     * Buffers the delivery until the outbox thread inserts it, and returns immediately.
+     *
+     * @return false if too many deliveries wait to be inserted.
+     */
+    public boolean enqueue(Delivery delivery) {
+        if (bufferedCount.incrementAndGet() > MAX_BUFFERED) {
+            bufferedCount.decrementAndGet();
+            logger.warn("Slacker outbox buffer is full, dropped a notification");
+            health.recordDrop(delivery.getHookURL(), delivery.getAction(), "Outbox buffer is full");
+            return false;
+        }
+        buffered.add(delivery);
+        requestCycle();
+        return true;
+    }
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        worker.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                cycle();
+            }
+        }, pollInterval, pollInterval, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        worker.shutdown();
+        if (!worker.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) worker.shutdownNow();
+
+        // Keep what was enqueued during shutdown, it is delivered after the next start.
+        try {
+            insert();
+            complete();
+        } catch (RuntimeException e) {
+            logger.error("Failed to store {} Slacker notifications", bufferedCount.get(), e);
+        }
+    }
+
+    private void requestCycle() {
+        if (!cycleRequested.compareAndSet(false, true)) return;
+
+        try {
+            worker.execute(new Runnable() {
+                @Override
+                public void run() {
+                    cycleRequested.set(false);
+                    cycle();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            cycleRequested.set(false);
+        }
+    }
+
+    private void cycle() {
+        try {
+            insert();
+            complete();
+            renew();
+            claim();
+        } catch (RuntimeException e) {
+            logger.error("Slacker outbox failed, retrying in {} ms", pollInterval, e);
+        }
+    }
+
+    /**
+     * Inserts the buffered deliveries, a batch per statement.
+     */
+    private void insert() {
+        while (true) {
+            final List<Delivery> deliveries = new ArrayList<Delivery>(batchSize);
+            Delivery delivery;
+            while (deliveries.size() < batchSize && (delivery = buffered.poll()) != null) {
+                deliveries.add(delivery);
+            }
+            if (deliveries.isEmpty()) return;
+
+            long now = System.currentTimeMillis();
+            List<Map<String, Object>> rows = new ArrayList<Map<String, Object>>(deliveries.size());
+            for (Delivery pending : deliveries) {
+                Map<String, Object> row = new HashMap<String, Object>();
+                row.put("HOOK_URL", pending.getHookURL());
+                row.put("ACTION", pending.getAction() == null ? null : pending.getAction().name());
+                row.put("PAYLOAD", pending.getPayload());
+                row.put("CREATED_AT", now);
+                row.put("ATTEMPTS", 0);
+                row.put("NEXT_ATTEMPT_AT", now);
+                rows.add(row);
+            }
+
+            try {
+                activeObjects.create(OutboxEntry.class, rows);
+            } catch (RuntimeException e) {
+                // Keep them buffered for the next cycle.
+                buffered.addAll(deliveries);
+                throw e;
+            }
+            bufferedCount.addAndGet(-deliveries.size());
+        }
+    }
+
+    /**
+     * Deletes the delivered entries and reschedules the failed, deferred and released ones, as far as this outbox
+     * still owns them. Holds the cluster wide lock, so no other node claims them in between.
+     */
+    private void complete() {
+        final List<Integer> ids = poll(completed);
+        final List<Integer> retries = poll(failed);
+        final List<Integer> releases = poll(released);
+        final List<Deferral> deferrals = new ArrayList<Deferral>();
+        Deferral deferral;
+        while ((deferral = deferred.poll()) != null) {
+            deferrals.add(deferral);
+        }
+        if (ids.isEmpty() && retries.isEmpty() && releases.isEmpty() && deferrals.isEmpty()) return;
+
+        claimLock.lock();
+        try {
+            activeObjects.executeInTransaction(new TransactionCallback<Void>() {
+                @Override
+                public Void doInTransaction() {
+                    long now = System.currentTimeMillis();
+                    List<Integer> inspected = new ArrayList<Integer>(retries);
+                    inspected.addAll(releases);
+                    for (Deferral deferral : deferrals) {
+                        inspected.add(deferral.delivery.getId());
+                    }
+                    // Entries another node claimed after our claim expired are that node's now.
+                    Map<Integer, OutboxEntry> owned = owned(inspected);
+
+                    for (Integer id : retries) {
+                        OutboxEntry entry = owned.get(id);
+                        if (entry == null) continue;
+
+                        int attempts = entry.getAttempts() + 1;
+                        if (attempts >= maxAttempts) {
+                            logger.error("Gave up a Slacker notification after {} attempts", attempts);
+                            health.recordDrop(entry.getHookURL(), action(entry.getAction()),
+                                              "Gave up after " + attempts + " attempts");
+                            ids.add(id);
+                        } else {
+                            release(entry, attempts, now + backoff(attempts));
+                        }
+                    }
+
+                    for (Integer id : releases) {
+                        OutboxEntry entry = owned.get(id);
+                        if (entry != null) release(entry, entry.getAttempts(), now + pollInterval);
+                    }
+
+                    for (Deferral deferral : deferrals) {
+                        OutboxEntry entry = owned.get(deferral.delivery.getId());
+                        if (entry == null) continue;
+
+                        if (dropDeferred) {
+                            logger.warn("Slacker circuit breaker of a webhook is open, dropped a notification");
+                            health.recordDrop(deferral.delivery.getHookURL(), deferral.delivery.getAction(),
+                                              "Circuit breaker is open");
+                            ids.add(deferral.delivery.getId());
+                        } else {
+                            release(entry, entry.getAttempts(), deferral.until);
+                        }
+                    }
+
+                    for (int from = 0; from < ids.size(); from += batchSize) {
+                        List<Integer> batch = ids.subList(from, Math.min(from + batchSize, ids.size()));
+                        activeObjects.deleteWithSQL(OutboxEntry.class,
+                                                    "ID IN (" + placeholders(batch.size()) + ") AND CLAIMED_BY = ?",
+                                                    parameters(batch, owner));
+                    }
+                    return null;
+                }
+            });
+        } finally {
+            claimLock.unlock();
+        }
+    }
+
+    /**
+     * Extends the claims of the entries waiting in the deliverer, well before they expire.
+     * Tries again with the next poll if another node holds the lock.
+     */
+    private void renew() {
+        final long now = System.currentTimeMillis();
+        if (now - renewedAt < RENEW_INTERVAL_MILLIS) return;
+        if (leased.isEmpty()) {
+            renewedAt = now;
+            return;
+        }
+        if (!claimLock.tryLock()) return;
+
+        try {
+            activeObjects.executeInTransaction(new TransactionCallback<Void>() {
+                @Override
+                public Void doInTransaction() {
+                    for (OutboxEntry entry : owned(new ArrayList<Integer>(leased)).values()) {
+                        entry.setNextAttemptAt(now + CLAIM_MILLIS);
+                        entry.save();
+                    }
+                    return null;
+                }
+            });
+        } finally {
+            claimLock.unlock();
+        }
+        renewedAt = now;
+    }
+
+    /**
+     * Claims due entries in ID order and hands them to the deliverer, as many as the in-flight limit allows.
+     * Only the claim holds the cluster lock, posting does not.
+     */
+    private void claim() {
+        int limit = Math.min(batchSize, maxInFlight - inFlight.get());
+        if (limit <= 0) return;
+        if (!claimLock.tryLock()) return;
+
+        final long now = System.currentTimeMillis();
+        final OutboxEntry[] entries;
+        try {
+            // Entries of a webhook another node is posting to wait until that node released all of them.
+            List<String> busy = claimedByOthers(now);
+            StringBuilder where = new StringBuilder("NEXT_ATTEMPT_AT <= ?");
+            for (int from = 0; from < busy.size(); from += batchSize) {
+                where.append(" AND HOOK_URL NOT IN (")
+                        .append(placeholders(Math.min(batchSize, busy.size() - from))).append(')');
+            }
+            List<Object> parameters = new ArrayList<Object>(busy.size() + 1);
+            parameters.add(now);
+            parameters.addAll(busy);
+
+            entries = activeObjects.find(
+                    OutboxEntry.class,
+                    Query.select().where(where.toString(), parameters.toArray()).order("ID ASC").limit(limit));
+            if (entries.length == 0) return;
+
+            activeObjects.executeInTransaction(new TransactionCallback<Void>() {
+                @Override
+                public Void doInTransaction() {
+                    for (OutboxEntry entry : entries) {
+                        entry.setNextAttemptAt(now + CLAIM_MILLIS);
+                        entry.setClaimedBy(owner);
+                        entry.save();
+                    }
+                    return null;
+                }
+            });
+        } finally {
+            claimLock.unlock();
+        }
+
+        boolean rejected = false;
+        for (OutboxEntry entry : entries) {
+            // Our own claim expired while the entry waited in the deliverer, which still has it.
+            if (!leased.add(entry.getID())) continue;
+
+            inFlight.incrementAndGet();
+            Delivery delivery = new Delivery(entry.getID(), action(entry.getAction()), entry.getHookURL(),
+                                             entry.getPayload());
+            if (!deliverer.deliver(delivery, callback)) {
+                // The queue of the webhook is full, claim it again with the next poll.
+                leased.remove(entry.getID());
+                inFlight.decrementAndGet();
+                released.add(entry.getID());
+                rejected = true;
+            }
+        }
+        if (rejected) requestCycle();
+    }
+
+    /**
+     * @return The webhooks of the entries other outboxes claimed and still own.
+     */
+    private List<String> claimedByOthers(long now) {
+        Set<String> hookURLs = new LinkedHashSet<String>();
+        for (OutboxEntry entry : activeObjects.find(OutboxEntry.class, Query.select("ID, HOOK_URL").where(
+                "CLAIMED_BY <> ? AND NEXT_ATTEMPT_AT > ?", owner, now))) {
+            hookURLs.add(entry.getHookURL());
+        }
+        return new ArrayList<String>(hookURLs);
+    }
+
+    /**
+     * @return false if another outbox claimed the entry, or the claim expires within a minute.
+     */
+    private boolean isClaimed(Integer id) {
+        try {
+            return activeObjects.count(OutboxEntry.class, Query.select().where(
+                    "ID = ? AND CLAIMED_BY = ? AND NEXT_ATTEMPT_AT >= ?",
+                    id, owner, System.currentTimeMillis() + MIN_CLAIM_LEFT_MILLIS)) > 0;
+        } catch (RuntimeException e) {
+            logger.error("Failed to check the claim of a Slacker notification", e);
+            return false;
+        }
+    }
+
+    /**
+     * @return The entries of the IDs this outbox still owns, by ID.
+     */
+    private Map<Integer, OutboxEntry> owned(List<Integer> ids) {
+        Map<Integer, OutboxEntry> owned = new HashMap<Integer, OutboxEntry>();
+        for (int from = 0; from < ids.size(); from += batchSize) {
+            List<Integer> batch = ids.subList(from, Math.min(from + batchSize, ids.size()));
+            for (OutboxEntry entry : activeObjects.find(OutboxEntry.class, Query.select().where(
+                    "ID IN (" + placeholders(batch.size()) + ") AND CLAIMED_BY = ?", parameters(batch, owner)))) {
+                owned.put(entry.getID(), entry);
+            }
+        }
+        return owned;
+    }
+
+    /**
+     * Gives up the claim of the entry, another node may claim it from then on.
+     */
+    private static void release(OutboxEntry entry, int attempts, long nextAttemptAt) {
+        entry.setAttempts(attempts);
+        entry.setNextAttemptAt(nextAttemptAt);
+        entry.setClaimedBy(null);
+        entry.save();
+    }
+
+    /**
+     * Doubles the base delay with every attempt, the actual delay is a random time between half and all of it.
+     */
+    private long backoff(int attempts) {
+        long delay = retryMaxDelay;
+        if (attempts - 1 < Long.numberOfLeadingZeros(retryBaseDelay) - 1) {
+            delay = Math.min(retryMaxDelay, retryBaseDelay << (attempts - 1));
+        }
+        return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    }
+
+    /**
+     * @return null for a digest, or an action stored by another version of Bitbucket.
+     */
+    private static PullRequestAction action(String name) {
+        if (name == null) return null;
+
+        try {
+            return PullRequestAction.valueOf(name);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static List<Integer> poll(ConcurrentLinkedQueue<Integer> queue) {
+        List<Integer> ids = new ArrayList<Integer>();
+        Integer id;
+        while ((id = queue.poll()) != null) {
+            ids.add(id);
+        }
+        return ids;
+    }
+
+    private static Object[] parameters(List<Integer> ids, String owner) {
+        Object[] parameters = ids.toArray(new Object[ids.size() + 1]);
+        parameters[ids.size()] = owner;
+        return parameters;
+    }
+
+    private static String placeholders(int count) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            if (i > 0) builder.append(", ");
+            builder.append('?');
+        }
+        return builder.toString();
+    }
+
+    private static final class Deferral {
+        private final Delivery delivery;
+        private final long until;
+
+        private Deferral(Delivery delivery, long until) {
+            this.delivery = delivery;
+            this.until = until;
+        }
+    }
+}
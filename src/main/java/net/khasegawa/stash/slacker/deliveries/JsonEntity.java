@@ -0,0 +1,85 @@
+package net.khasegawa.stash.slacker.deliveries;
+
+import org.apache.http.entity.AbstractHttpEntity;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+
+/**
+ * Request entity posting a JSON document as application/json.
+ *
+ * The document is encoded while it is written to the connection, so no encoded copy of it is kept in memory.
+ * Its encoded length is counted up front to send a Content-Length instead of chunks.
+ *
+ * Created by Kazuki Hasegawa on 26/10/18.
+ *
+ * @author Kazuki Hasegawa
+ */
+public class JsonEntity extends AbstractHttpEntity {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final String json;
+    private final long length;
+
+    public JsonEntity(String json) {
+        this.json = json;
+        this.length = utf8Length(json);
+        setContentType("application/json; charset=utf-8");
+    }
+
+    @Override
+    public boolean isRepeatable() {
+        return true;
+    }
+
+    @Override
+    public long getContentLength() {
+        return length;
+    }
+
+    @Override
+    public InputStream getContent() throws IOException {
+        return new ByteArrayInputStream(json.getBytes(UTF_8));
+    }
+
+    @Override
+    public void writeTo(OutputStream outputStream) throws IOException {
+        Writer writer = new OutputStreamWriter(outputStream, UTF_8);
+        writer.write(json);
+        writer.flush();
+    }
+
+    @Override
+    public boolean isStreaming() {
+        return false;
+    }
+
+    /**
+     * Counts the bytes of the UTF-8 encoding. Unpaired surrogates count as the single byte replacing them.
+     */
+    static long utf8Length(String string) {
+        long length = 0;
+        for (int i = 0; i < string.length(); i++) {
+            char c = string.charAt(i);
+            if (c < 0x80) {
+                length += 1;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < string.length() &&
+                    Character.isLowSurrogate(string.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                length += 1;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+}
@@ -0,0 +1,131 @@
+package net.khasegawa.stash.slacker.deliveries;
+
+import com.atlassian.bitbucket.server.ApplicationPropertiesService;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.http.HttpEntity;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Plugin scoped HTTP client posting to Slack incoming webhooks.
+ *
+ * Connections are pooled and kept alive between posts. The pool and the timeouts are read from bitbucket.properties:
+ * <ul>
+ *     <li>plugin.slacker.http.connect.timeout in milliseconds (default: 5000)</li>
+ *     <li>plugin.slacker.http.read.timeout in milliseconds (default: 10000)</li>
+ *     <li>plugin.slacker.http.total.timeout in milliseconds (default: 30000)</li>
+ *     <li>plugin.slacker.http.connections.max (default: 20)</li>
+ *     <li>plugin.slacker.http.connections.per.route (default: 5)</li>
+ * </ul>
+ *
+ * Created by Kazuki Hasegawa on 26/10/18.
+ *
+ * @author Kazuki Hasegawa
+ */
+public class SlackClient implements DisposableBean {
+    private static final Logger logger = LoggerFactory.getLogger(SlackClient.class);
+
+    private static final String CONNECT_TIMEOUT_PROPERTY = "plugin.slacker.http.connect.timeout";
+    private static final String READ_TIMEOUT_PROPERTY = "plugin.slacker.http.read.timeout";
+    private static final String TOTAL_TIMEOUT_PROPERTY = "plugin.slacker.http.total.timeout";
+    private static final String MAX_CONNECTIONS_PROPERTY = "plugin.slacker.http.connections.max";
+    private static final String MAX_CONNECTIONS_PER_ROUTE_PROPERTY = "plugin.slacker.http.connections.per.route";
+    private static final int DEFAULT_CONNECT_TIMEOUT = 5000;
+    private static final int DEFAULT_READ_TIMEOUT = 10000;
+    private static final int DEFAULT_TOTAL_TIMEOUT = 30000;
+    private static final int DEFAULT_MAX_CONNECTIONS = 20;
+    private static final int DEFAULT_MAX_CONNECTIONS_PER_ROUTE = 5;
+    private static final long CONNECTION_TIME_TO_LIVE_SECONDS = 300;
+    private static final long IDLE_CONNECTION_TIMEOUT_SECONDS = 60;
+
+    private final PoolingHttpClientConnectionManager connectionManager;
+    private final CloseableHttpClient httpClient;
+    private final ScheduledExecutorService scheduler;
+    private final int totalTimeout;
+
+    public SlackClient(ApplicationPropertiesService propertiesService) {
+        int connectTimeout = propertiesService.getPluginProperty(CONNECT_TIMEOUT_PROPERTY, DEFAULT_CONNECT_TIMEOUT);
+        int readTimeout = propertiesService.getPluginProperty(READ_TIMEOUT_PROPERTY, DEFAULT_READ_TIMEOUT);
+        this.totalTimeout = propertiesService.getPluginProperty(TOTAL_TIMEOUT_PROPERTY, DEFAULT_TOTAL_TIMEOUT);
+
+        this.connectionManager = new PoolingHttpClientConnectionManager(CONNECTION_TIME_TO_LIVE_SECONDS, TimeUnit.SECONDS);
+        this.connectionManager.setMaxTotal(
+                Math.max(1, propertiesService.getPluginProperty(MAX_CONNECTIONS_PROPERTY, DEFAULT_MAX_CONNECTIONS)));
+        this.connectionManager.setDefaultMaxPerRoute(
+                Math.max(1, propertiesService.getPluginProperty(MAX_CONNECTIONS_PER_ROUTE_PROPERTY,
+                                                                DEFAULT_MAX_CONNECTIONS_PER_ROUTE)));
+
+        RequestConfig requestConfig = RequestConfig.custom()
+                .setConnectTimeout(connectTimeout)
+                .setConnectionRequestTimeout(connectTimeout)
+                .setSocketTimeout(readTimeout)
+                .build();
+
+        this.httpClient = HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(requestConfig)
+                .build();
+
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("slacker-http-monitor-%d").setDaemon(true).build());
+        this.scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                connectionManager.closeExpiredConnections();
+                connectionManager.closeIdleConnections(IDLE_CONNECTION_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            }
+        }, IDLE_CONNECTION_TIMEOUT_SECONDS, IDLE_CONNECTION_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Posts the entity to the webhook and releases the connection back to the pool.
+     * The request is aborted when it takes longer than the total timeout.
+     */
+    public SlackResponse post(String hookURL, HttpEntity entity) throws IOException {
+        final HttpPost post = new HttpPost(hookURL);
+        post.setEntity(entity);
+
+        ScheduledFuture<?> abort = scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                post.abort();
+            }
+        }, totalTimeout, TimeUnit.MILLISECONDS);
+
+        try {
+            CloseableHttpResponse response = httpClient.execute(post);
+            try {
+                EntityUtils.consume(response.getEntity());
+                return SlackResponse.of(response);
+            } finally {
+                response.close();
+            }
+        } finally {
+            abort.cancel(false);
+        }
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        scheduler.shutdownNow();
+        try {
+            httpClient.close();
+        } catch (IOException e) {
+            logger.warn("Failed to close the Slack HTTP client", e);
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package net.khasegawa.stash.slacker.deliveries;
+
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.utils.DateUtils;
+
+import java.util.Date;
+
+/**
+ * Status of a webhook response and how long Slack asked to wait before the next post.
+ *
+ * Created by Kazuki Hasegawa on 26/10/18.
+ *
+ * @author Kazuki Hasegawa
+ */
+public final class SlackResponse {
+    public static final int TOO_MANY_REQUESTS = 429;
+
+    private final int statusCode;
+    private final String reasonPhrase;
+    private final long retryAfterMillis;
+
+    private SlackResponse(int statusCode, String reasonPhrase, long retryAfterMillis) {
+        this.statusCode = statusCode;
+        this.reasonPhrase = reasonPhrase;
+        this.retryAfterMillis = retryAfterMillis;
+    }
+
+    public static SlackResponse of(HttpResponse response) {
+        return new SlackResponse(
+                response.getStatusLine().getStatusCode(),
+                response.getStatusLine().getReasonPhrase(),
+                retryAfterMillis(response.getFirstHeader("Retry-After")));
+    }
+
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    public String getReasonPhrase() {
+        return reasonPhrase;
+    }
+
+    public boolean isSuccessful() {
+        return statusCode >= 200 && statusCode < 300;
+    }
+
+    public boolean isRateLimited() {
+        return statusCode == TOO_MANY_REQUESTS;
+    }
+
+    /**
+     * @return Milliseconds from the Retry-After header, 0 without one.
+     */
+    public long getRetryAfterMillis() {
+        return retryAfterMillis;
+    }
+
+    @Override
+    public String toString() {
+        return statusCode + " " + reasonPhrase;
+    }
+
+    /**
+     * Reads delay-seconds or an HTTP-date.
+     */
+    private static long retryAfterMillis(Header header) {
+        if (header == null || header.getValue() == null) return 0;
+
+        String value = header.getValue().trim();
+        try {
+            return Math.max(0, Long.parseLong(value) * 1000);
+        } catch (NumberFormatException e) {
+            Date date = DateUtils.parseDate(value);
+            return date == null ? 0 : Math.max(0, date.getTime() - System.currentTimeMillis());
+        }
+    }
+}
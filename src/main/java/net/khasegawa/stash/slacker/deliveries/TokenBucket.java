@@ -0,0 +1,56 @@
+package net.khasegawa.stash.slacker.deliveries;
+
+/**
+ * Token bucket refilled at a fixed rate, allowing short bursts up to its capacity.
+ *
+ * Not thread safe, callers synchronize on the owner of the bucket.
+ *
+ * Created by Kazuki Hasegawa on 26/10/18.
+ *
+ * @author Kazuki Hasegawa
+ */
+public class TokenBucket {
+    private final int capacity;
+    private final double tokensPerMillis;
+    private double tokens;
+    private long refilledAt;
+
+    /**
+     * The bucket starts full.
+     */
+    public TokenBucket(int capacity, int tokensPerMinute, long now) {
+        this.capacity = Math.max(1, capacity);
+        this.tokensPerMillis = Math.max(1, tokensPerMinute) / 60000.0;
+        this.tokens = this.capacity;
+        this.refilledAt = now;
+    }
+
+    /**
+     * @return Milliseconds until a token is available, 0 if one is available now.
+     */
+    public long delay(long now) {
+        refill(now);
+        if (tokens >= 1) return 0;
+        return (long) Math.ceil((1 - tokens) / tokensPerMillis);
+    }
+
+    /**
+     * Takes a token, call only when {@link #delay(long)} returned 0.
+     */
+    public void take(long now) {
+        refill(now);
+        tokens = Math.max(0, tokens - 1);
+    }
+
+    public boolean isFull(long now) {
+        refill(now);
+        return tokens >= capacity;
+    }
+
+    private void refill(long now) {
+        if (now > refilledAt) {
+            tokens = Math.min(capacity, tokens + (now - refilledAt) * tokensPerMillis);
+            refilledAt = now;
+        }
+    }
+}
@@ -0,0 +1,447 @@
+package net.khasegawa.stash.slacker.deliveries;
+
+import com.atlassian.bitbucket.server.ApplicationPropertiesService;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import net.khasegawa.stash.slacker.metrics.DeliveryHealth;
+import net.khasegawa.stash.slacker.metrics.GaugeMBean;
+import net.khasegawa.stash.slacker.metrics.NotificationCounters;
+import net.khasegawa.stash.slacker.metrics.SlackerMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Posts deliveries to their webhooks, each webhook at its own limited rate.
+ *
+ * Every webhook URL has its own queue and token bucket and at most one post in flight,
+ * so a busy webhook only delays its own deliveries. The bucket is kept by each node, and the {@link DeliveryOutbox}
+ * hands a webhook to one node at a time, so the rate of a webhook holds across a cluster. A 429 response pauses the webhook for its Retry-After
+ * and puts the delivery back at the head of the queue. Any other response, or the failure to get one,
+ * completes the delivery and is reported to its {@link Callback}, which is also asked right before every post
+ * whether the delivery is still to be posted.
+ *
+ * Every webhook also has a {@link CircuitBreaker} counting network errors, 5xx responses and responses of a
+ * revoked webhook. While it is open deliveries are not posted but deferred to the end of the open period.
+ *
+ * Every post is counted as sent or failed by the {@link SlackerMetrics} of its action, a rate limited post is
+ * counted once it is completed. The HTTP round trips are recorded by the HttpRoundTrip latency,
+ * and the posts waiting for a response are exposed as the DeliveriesInFlight gauge.
+ * Every response is recorded by the {@link DeliveryHealth} of its webhook.
+ * The limits are read from bitbucket.properties:
+ * <ul>
+ *     <li>plugin.slacker.rate.per.minute posts per webhook (default: 60)</li>
+ *     <li>plugin.slacker.rate.burst posts per webhook without waiting (default: 3)</li>
+ *     <li>plugin.slacker.rate.queue.size queued deliveries per webhook (default: 100)</li>
+ *     <li>plugin.slacker.delivery.threads (default: 2)</li>
+ *     <li>plugin.slacker.http.body "json" or "form" for endpoints which only accept a form (default: json)</li>
+ *     <li>plugin.slacker.breaker.failures consecutive failures opening the breaker (default: 5)</li>
+ *     <li>plugin.slacker.breaker.open.seconds first open period (default: 30)</li>
+ *     <li>plugin.slacker.breaker.max.open.seconds longest open period (default: 600)</li>
+ * </ul>
+ *
+ * Created by Kazuki Hasegawa on 26/10/18.
+ *
+ * @author Kazuki Hasegawa
+ */
+public class WebhookDeliverer implements DisposableBean {
+    private static final Logger logger = LoggerFactory.getLogger(WebhookDeliverer.class);
+
+    private static final String RATE_PER_MINUTE_PROPERTY = "plugin.slacker.rate.per.minute";
+    private static final String RATE_BURST_PROPERTY = "plugin.slacker.rate.burst";
+    private static final String QUEUE_SIZE_PROPERTY = "plugin.slacker.rate.queue.size";
+    private static final String THREADS_PROPERTY = "plugin.slacker.delivery.threads";
+    private static final String BODY_PROPERTY = "plugin.slacker.http.body";
+    private static final String FORM_BODY = "form";
+    private static final String BREAKER_FAILURES_PROPERTY = "plugin.slacker.breaker.failures";
+    private static final String BREAKER_OPEN_SECONDS_PROPERTY = "plugin.slacker.breaker.open.seconds";
+    private static final String BREAKER_MAX_OPEN_SECONDS_PROPERTY = "plugin.slacker.breaker.max.open.seconds";
+    private static final int DEFAULT_RATE_PER_MINUTE = 60;
+    private static final int DEFAULT_RATE_BURST = 3;
+    private static final int DEFAULT_QUEUE_SIZE = 100;
+    private static final int DEFAULT_THREADS = 2;
+    private static final int DEFAULT_BREAKER_FAILURES = 5;
+    private static final int DEFAULT_BREAKER_OPEN_SECONDS = 30;
+    private static final int DEFAULT_BREAKER_MAX_OPEN_SECONDS = 600;
+    /**
+     * Pause after a 429 without Retry-After.
+     */
+    private static final long DEFAULT_RETRY_AFTER_MILLIS = 1000;
+    private static final long SWEEP_INTERVAL_SECONDS = 60;
+
+    public interface Callback {
+        /**
+         * Called on a delivery thread right before the delivery is posted, after it waited in the queue.
+         *
+         * @return false to skip the delivery, the callback is not called for it again.
+         */
+        boolean beforePost(Delivery delivery);
+
+        /**
+         * @param response null if the post failed without a response.
+         */
+        void completed(Delivery delivery, SlackResponse response);
+
+        /**
+         * The delivery was not posted because the circuit breaker of its webhook is open.
+         *
+         * @param until When the breaker allows a probe.
+         */
+        void deferred(Delivery delivery, long until);
+    }
+
+    private static final Callback NO_CALLBACK = new Callback() {
+        @Override
+        public boolean beforePost(Delivery delivery) {
+            return true;
+        }
+
+        @Override
+        public void completed(Delivery delivery, SlackResponse response) {
+        }
+
+        @Override
+        public void deferred(Delivery delivery, long until) {
+            logger.warn("Slacker circuit breaker of a webhook is open, dropped a notification");
+        }
+    };
+
+    private final SlackClient slackClient;
+    private final SlackerMetrics metrics;
+    private final DeliveryHealth health;
+    private final AtomicInteger posting = new AtomicInteger();
+    private final int ratePerMinute;
+    private final int rateBurst;
+    private final int queueSize;
+    private final boolean formBody;
+    private final int breakerFailures;
+    private final long breakerOpenMillis;
+    private final long breakerMaxOpenMillis;
+    private final ConcurrentMap<String, Webhook> webhooks = new ConcurrentHashMap<String, Webhook>();
+    private final ScheduledExecutorService executor;
+
+    public WebhookDeliverer(ApplicationPropertiesService propertiesService,
+                            SlackClient slackClient,
+                            SlackerMetrics metrics,
+                            DeliveryHealth health) {
+        this.slackClient = slackClient;
+        this.metrics = metrics;
+        this.health = health;
+        this.ratePerMinute = Math.max(1, propertiesService.getPluginProperty(RATE_PER_MINUTE_PROPERTY,
+                                                                             DEFAULT_RATE_PER_MINUTE));
+        this.rateBurst = Math.max(1, propertiesService.getPluginProperty(RATE_BURST_PROPERTY, DEFAULT_RATE_BURST));
+        this.queueSize = Math.max(1, propertiesService.getPluginProperty(QUEUE_SIZE_PROPERTY, DEFAULT_QUEUE_SIZE));
+        this.formBody = FORM_BODY.equalsIgnoreCase(propertiesService.getPluginProperty(BODY_PROPERTY, "json"));
+        this.breakerFailures = propertiesService.getPluginProperty(BREAKER_FAILURES_PROPERTY, DEFAULT_BREAKER_FAILURES);
+        this.breakerOpenMillis = TimeUnit.SECONDS.toMillis(
+                propertiesService.getPluginProperty(BREAKER_OPEN_SECONDS_PROPERTY, DEFAULT_BREAKER_OPEN_SECONDS));
+        this.breakerMaxOpenMillis = TimeUnit.SECONDS.toMillis(
+                propertiesService.getPluginProperty(BREAKER_MAX_OPEN_SECONDS_PROPERTY,
+                                                    DEFAULT_BREAKER_MAX_OPEN_SECONDS));
+
+        this.executor = Executors.newScheduledThreadPool(
+                Math.max(1, propertiesService.getPluginProperty(THREADS_PROPERTY, DEFAULT_THREADS)),
+                new ThreadFactoryBuilder().setNameFormat("slacker-delivery-%d").setDaemon(true).build());
+        this.executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                sweep();
+            }
+        }, SWEEP_INTERVAL_SECONDS, SWEEP_INTERVAL_SECONDS, TimeUnit.SECONDS);
+
+        metrics.gauge("DeliveriesInFlight", new GaugeMBean() {
+            @Override
+            public long getValue() {
+                return posting.get();
+            }
+        });
+    }
+
+    /**
+     * Queues the delivery behind the others of its webhook and returns immediately.
+     *
+     * @return false if the queue of the webhook is full or the deliverer is shut down.
+     */
+    public boolean deliver(Delivery delivery) {
+        return deliver(delivery, NO_CALLBACK);
+    }
+
+    /**
+     * Queues the delivery behind the others of its webhook and returns immediately.
+     * The callback is called on a delivery thread once the delivery is completed,
+     * or on the calling thread if the circuit breaker of the webhook is open.
+     *
+     * @return false if the queue of the webhook is full or the deliverer is shut down, the callback is not called.
+     */
+    public boolean deliver(Delivery delivery, Callback callback) {
+        Pending pending = new Pending(delivery, callback);
+        long openUntil = 0;
+        while (true) {
+            Webhook webhook = webhook(delivery.getHookURL());
+            synchronized (webhook) {
+                // Swept between the lookup and the lock, look it up again.
+                if (webhook.removed) continue;
+
+                if (webhook.breaker.isOpen(System.currentTimeMillis())) {
+                    openUntil = webhook.breaker.getOpenUntil();
+                    break;
+                }
+                if (webhook.queue.size() >= queueSize) {
+                    logger.warn("Slacker delivery queue of a webhook is full, dropped a notification");
+                    return false;
+                }
+                webhook.queue.addLast(pending);
+                if (!webhook.scheduled) return schedule(webhook, webhook.delay(System.currentTimeMillis()));
+                return true;
+            }
+        }
+
+        callback.deferred(delivery, openUntil);
+        return true;
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        executor.shutdownNow();
+
+        int discarded = 0;
+        for (Webhook webhook : webhooks.values()) {
+            synchronized (webhook) {
+                discarded += webhook.queue.size();
+                webhook.queue.clear();
+            }
+        }
+        if (discarded > 0) logger.warn("Slacker deliverer stopped, {} notifications discarded", discarded);
+    }
+
+    private Webhook webhook(String hookURL) {
+        Webhook webhook = webhooks.get(hookURL);
+        if (webhook == null) {
+            Webhook created = new Webhook(
+                    new TokenBucket(rateBurst, ratePerMinute, System.currentTimeMillis()),
+                    new CircuitBreaker(breakerFailures, breakerOpenMillis, breakerMaxOpenMillis));
+            webhook = webhooks.putIfAbsent(hookURL, created);
+            if (webhook == null) webhook = created;
+        }
+        return webhook;
+    }
+
+    /**
+     * Call while holding the lock of the webhook.
+     */
+    private boolean schedule(final Webhook webhook, long delay) {
+        try {
+            executor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    drain(webhook);
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+            webhook.scheduled = true;
+            return true;
+        } catch (RejectedExecutionException e) {
+            webhook.queue.clear();
+            webhook.scheduled = false;
+            return false;
+        }
+    }
+
+    /**
+     * Posts the next delivery of the webhook, then schedules the one after it.
+     */
+    private void drain(Webhook webhook) {
+        Pending pending;
+        synchronized (webhook) {
+            long now = System.currentTimeMillis();
+            long delay = webhook.delay(now);
+            if (delay > 0) {
+                schedule(webhook, delay);
+                return;
+            }
+
+            pending = webhook.queue.pollFirst();
+            if (pending == null) {
+                webhook.scheduled = false;
+                return;
+            }
+        }
+
+        // Asked outside of the lock, the callback may query the database.
+        boolean post;
+        try {
+            post = pending.callback.beforePost(pending.delivery);
+        } catch (RuntimeException e) {
+            logger.error("Failed to check a Slack delivery before posting it", e);
+            post = false;
+        }
+        synchronized (webhook) {
+            long now = System.currentTimeMillis();
+            if (!post) {
+                if (webhook.queue.isEmpty()) {
+                    webhook.scheduled = false;
+                } else {
+                    schedule(webhook, webhook.delay(now));
+                }
+                return;
+            }
+            webhook.bucket.take(now);
+        }
+
+        SlackResponse response = post(pending.delivery);
+        NotificationCounters counters = metrics.getCounters(pending.delivery.getAction());
+        if (response != null && response.isSuccessful()) {
+            counters.sent();
+        } else if (response == null || !response.isRateLimited()) {
+            counters.failed();
+        }
+
+        boolean requeued = false;
+        List<Pending> deferred = new ArrayList<Pending>();
+        long openUntil = 0;
+
+        synchronized (webhook) {
+            long now = System.currentTimeMillis();
+            if (response != null && response.isSuccessful()) {
+                webhook.breaker.success();
+            } else if (isWebhookFailure(response) && webhook.breaker.failure(now)) {
+                openUntil = webhook.breaker.getOpenUntil();
+                logger.warn("Slacker circuit breaker of a webhook opened until {}", new Date(openUntil));
+                deferred.addAll(webhook.queue);
+                webhook.queue.clear();
+            }
+
+            if (response != null && response.isRateLimited()) {
+                long retryAfter = response.getRetryAfterMillis() > 0 ?
+                        response.getRetryAfterMillis() : DEFAULT_RETRY_AFTER_MILLIS;
+                logger.warn("Slack rate limited a webhook, pausing it for {} ms", retryAfter);
+                webhook.pausedUntil = now + retryAfter;
+                webhook.queue.addFirst(pending);
+                requeued = true;
+            }
+
+            if (webhook.queue.isEmpty()) {
+                webhook.scheduled = false;
+            } else {
+                schedule(webhook, webhook.delay(now));
+            }
+        }
+
+        try {
+            if (!requeued) pending.callback.completed(pending.delivery, response);
+            for (Pending queued : deferred) {
+                queued.callback.deferred(queued.delivery, openUntil);
+            }
+        } catch (RuntimeException e) {
+            logger.error("Failed to complete a Slack delivery", e);
+        }
+    }
+
+    /**
+     * @return true for network errors, server errors and the responses of a removed webhook or archived channel.
+     */
+    private static boolean isWebhookFailure(SlackResponse response) {
+        if (response == null) return true;
+
+        int statusCode = response.getStatusCode();
+        return statusCode >= 500 || statusCode == 403 || statusCode == 404 || statusCode == 410;
+    }
+
+    private SlackResponse post(Delivery delivery) {
+        posting.incrementAndGet();
+        long start = System.nanoTime();
+        try {
+            SlackResponse response = slackClient.post(
+                    delivery.getHookURL(), formBody ? delivery.toFormEntity() : delivery.toJsonEntity());
+            long latency = System.nanoTime() - start;
+            logger.info("Slack responded {}", response);
+            record(delivery, response, latency, null);
+            return response;
+        } catch (IOException e) {
+            logger.error(e.getMessage());
+            record(delivery, null, System.nanoTime() - start, e.toString());
+            return null;
+        } finally {
+            posting.decrementAndGet();
+        }
+    }
+
+    private void record(Delivery delivery, SlackResponse response, long latency, String error) {
+        metrics.getHttpRoundTrip().record(latency);
+
+        DeliveryHealth.Outcome outcome;
+        if (response == null) {
+            outcome = DeliveryHealth.Outcome.FAILED;
+        } else if (response.isSuccessful()) {
+            outcome = DeliveryHealth.Outcome.SENT;
+        } else {
+            outcome = response.isRateLimited() ? DeliveryHealth.Outcome.RATE_LIMITED : DeliveryHealth.Outcome.FAILED;
+            error = response.toString();
+        }
+        health.recordPost(delivery.getHookURL(), delivery.getAction(), outcome,
+                          response == null ? 0 : response.getStatusCode(), latency, error);
+    }
+
+    /**
+     * Forgets idle webhooks. A removed webhook had a full bucket and a closed breaker,
+     * so a new one for the same URL behaves the same.
+     */
+    private void sweep() {
+        long now = System.currentTimeMillis();
+        Iterator<Webhook> iterator = webhooks.values().iterator();
+        while (iterator.hasNext()) {
+            Webhook webhook = iterator.next();
+            synchronized (webhook) {
+                if (!webhook.scheduled && webhook.queue.isEmpty() && webhook.pausedUntil <= now &&
+                        webhook.bucket.isFull(now) && webhook.breaker.isClosed()) {
+                    webhook.removed = true;
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Queue and limits of a webhook URL, guarded by its own lock.
+     */
+    private static final class Webhook {
+        private final TokenBucket bucket;
+        private final CircuitBreaker breaker;
+        private final Deque<Pending> queue = new ArrayDeque<Pending>();
+        private long pausedUntil;
+        private boolean scheduled;
+        private boolean removed;
+
+        private Webhook(TokenBucket bucket, CircuitBreaker breaker) {
+            this.bucket = bucket;
+            this.breaker = breaker;
+        }
+
+        private long delay(long now) {
+            return Math.max(pausedUntil - now, bucket.delay(now));
+        }
+    }
+
+    private static final class Pending {
+        private final Delivery delivery;
+        private final Callback callback;
+
+        private Pending(Delivery delivery, Callback callback) {
+            this.delivery = delivery;
+            this.callback = callback;
+        }
+    }
+}
@@ -0,0 +1,238 @@
+package net.khasegawa.stash.slacker.hooks;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Changed hunks between the previous and the new description of an updated pull request.
+ *
+ * Descriptions are compared line by line, or word by word if both are a single line.
+ * Tokens are mapped to ints and compared with Myers' linear space algorithm, which splits at the middle snake
+ * instead of keeping every path, so memory is linear in the size of the descriptions.
+ * After the common head and tail are skipped at most {@link #MAX_TOKENS} tokens of each side are compared,
+ * larger changes are not diffed.
+ *
+ * Created by Kazuki Hasegawa on 26/10/18.
+ *
+ * @author Kazuki Hasegawa
+ */
+final class DescriptionDiff {
+    static final int MAX_TOKENS = 2000;
+
+    private static final Pattern LINES = Pattern.compile("\r?\n");
+    private static final Pattern WORDS = Pattern.compile("\\s+");
+    private static final String HUNK_SEPARATOR = "\u2026";
+
+    private final int[] previous;
+    private final int[] current;
+    private final boolean[] removed;
+    private final boolean[] added;
+
+    private DescriptionDiff(int[] previous, int[] current) {
+        this.previous = previous;
+        this.current = current;
+        this.removed = new boolean[previous.length];
+        this.added = new boolean[current.length];
+    }
+
+    /**
+     * @param previous null if the pull request had no description.
+     * @param current null if the pull request has no description.
+     * @return The changed hunks, "- " before removed and "+ " before added lines or words, and a line of
+     *         "&hellip;" between hunks. Empty if nothing changed, null if the change is too large to diff.
+     */
+    static String diff(String previous, String current) {
+        previous = previous == null ? "" : previous.trim();
+        current = current == null ? "" : current.trim();
+        if (previous.equals(current)) return "";
+
+        boolean lines = previous.indexOf('\n') >= 0 || current.indexOf('\n') >= 0;
+        Pattern separator = lines ? LINES : WORDS;
+        String[] previousTokens = previous.isEmpty() ? new String[0] : separator.split(previous);
+        String[] currentTokens = current.isEmpty() ? new String[0] : separator.split(current);
+
+        Map<String, Integer> ids = new HashMap<String, Integer>();
+        DescriptionDiff diff = new DescriptionDiff(ids(previousTokens, ids), ids(currentTokens, ids));
+
+        int head = 0;
+        int previousEnd = previousTokens.length;
+        int currentEnd = currentTokens.length;
+        while (head < previousEnd && head < currentEnd && diff.previous[head] == diff.current[head]) {
+            head++;
+        }
+        while (previousEnd > head && currentEnd > head &&
+                diff.previous[previousEnd - 1] == diff.current[currentEnd - 1]) {
+            previousEnd--;
+            currentEnd--;
+        }
+        if (previousEnd - head > MAX_TOKENS || currentEnd - head > MAX_TOKENS) return null;
+
+        diff.compare(head, previousEnd, head, currentEnd);
+        return diff.render(previousTokens, currentTokens, lines);
+    }
+
+    private static int[] ids(String[] tokens, Map<String, Integer> ids) {
+        int[] result = new int[tokens.length];
+        for (int i = 0; i < tokens.length; i++) {
+            Integer id = ids.get(tokens[i]);
+            if (id == null) {
+                id = ids.size();
+                ids.put(tokens[i], id);
+            }
+            result[i] = id;
+        }
+        return result;
+    }
+
+    /**
+     * Marks the removed and added tokens between the bounds.
+     */
+    private void compare(int previousStart, int previousEnd, int currentStart, int currentEnd) {
+        while (previousStart < previousEnd && currentStart < currentEnd &&
+                previous[previousStart] == current[currentStart]) {
+            previousStart++;
+            currentStart++;
+        }
+        while (previousStart < previousEnd && currentStart < currentEnd &&
+                previous[previousEnd - 1] == current[currentEnd - 1]) {
+            previousEnd--;
+            currentEnd--;
+        }
+        if (previousStart == previousEnd || currentStart == currentEnd) {
+            for (int i = previousStart; i < previousEnd; i++) removed[i] = true;
+            for (int i = currentStart; i < currentEnd; i++) added[i] = true;
+            return;
+        }
+
+        int[] snake = middleSnake(previousStart, previousEnd, currentStart, currentEnd);
+        if (snake == null || (snake[0] == previousStart && snake[1] == currentStart) ||
+                (snake[0] == previousEnd && snake[1] == currentEnd)) {
+            for (int i = previousStart; i < previousEnd; i++) removed[i] = true;
+            for (int i = currentStart; i < currentEnd; i++) added[i] = true;
+            return;
+        }
+        compare(previousStart, snake[0], currentStart, snake[1]);
+        compare(snake[0], previousEnd, snake[1], currentEnd);
+    }
+
+    /**
+     * Searches the shortest edit path from both ends at once until they overlap.
+     *
+     * @return The point where the paths meet, which splits the edit in two, null if there is no common token.
+     */
+    private int[] middleSnake(int previousStart, int previousEnd, int currentStart, int currentEnd) {
+        int n = previousEnd - previousStart;
+        int m = currentEnd - currentStart;
+        int maxD = (n + m + 1) / 2;
+        int offset = maxD;
+        int[] forward = new int[2 * maxD + 2];
+        int[] backward = new int[2 * maxD + 2];
+        Arrays.fill(forward, -1);
+        Arrays.fill(backward, -1);
+        forward[offset + 1] = 0;
+        backward[offset + 1] = 0;
+        int delta = n - m;
+        boolean odd = (delta & 1) != 0;
+        // Diagonals which ran off the edit graph are not searched again.
+        int forwardStart = 0;
+        int forwardEnd = 0;
+        int backwardStart = 0;
+        int backwardEnd = 0;
+
+        for (int d = 0; d < maxD; d++) {
+            for (int k = -d + forwardStart; k <= d - forwardEnd; k += 2) {
+                int x = k == -d || (k != d && forward[offset + k - 1] < forward[offset + k + 1]) ?
+                        forward[offset + k + 1] : forward[offset + k - 1] + 1;
+                int y = x - k;
+                while (x < n && y < m && previous[previousStart + x] == current[currentStart + y]) {
+                    x++;
+                    y++;
+                }
+                forward[offset + k] = x;
+                if (x > n) {
+                    forwardEnd += 2;
+                } else if (y > m) {
+                    forwardStart += 2;
+                } else if (odd) {
+                    int reverse = offset + delta - k;
+                    if (reverse >= 0 && reverse < backward.length && backward[reverse] != -1 &&
+                            x >= n - backward[reverse]) {
+                        return new int[] { previousStart + x, currentStart + y };
+                    }
+                }
+            }
+            for (int k = -d + backwardStart; k <= d - backwardEnd; k += 2) {
+                int x = k == -d || (k != d && backward[offset + k - 1] < backward[offset + k + 1]) ?
+                        backward[offset + k + 1] : backward[offset + k - 1] + 1;
+                int y = x - k;
+                while (x < n && y < m && previous[previousEnd - x - 1] == current[currentEnd - y - 1]) {
+                    x++;
+                    y++;
+                }
+                backward[offset + k] = x;
+                if (x > n) {
+                    backwardEnd += 2;
+                } else if (y > m) {
+                    backwardStart += 2;
+                } else if (!odd) {
+                    int ahead = offset + delta - k;
+                    if (ahead >= 0 && ahead < forward.length && forward[ahead] != -1 &&
+                            forward[ahead] >= n - x) {
+                        int forwardX = forward[ahead];
+                        return new int[] { previousStart + forwardX, currentStart + forwardX - (delta - k) };
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    private String render(String[] previousTokens, String[] currentTokens, boolean lines) {
+        StringBuilder out = new StringBuilder();
+        List<String> removedTokens = new ArrayList<String>();
+        List<String> addedTokens = new ArrayList<String>();
+        int i = 0;
+        int j = 0;
+        while (i < previousTokens.length || j < currentTokens.length) {
+            if (i < previousTokens.length && j < currentTokens.length && !removed[i] && !added[j]) {
+                i++;
+                j++;
+                continue;
+            }
+
+            while ((i < previousTokens.length && removed[i]) || (j < currentTokens.length && added[j])) {
+                if (i < previousTokens.length && removed[i]) removedTokens.add(previousTokens[i++]);
+                if (j < currentTokens.length && added[j]) addedTokens.add(currentTokens[j++]);
+            }
+            if (out.length() > 0) out.append('\n').append(HUNK_SEPARATOR).append('\n');
+            appendHunk(out, removedTokens, addedTokens, lines);
+            removedTokens.clear();
+            addedTokens.clear();
+        }
+        return out.toString();
+    }
+
+    private static void appendHunk(StringBuilder out, List<String> removedTokens, List<String> addedTokens,
+                                   boolean lines) {
+        int start = out.length();
+        appendTokens(out, "- ", removedTokens, lines);
+        if (out.length() > start && !addedTokens.isEmpty()) out.append('\n');
+        appendTokens(out, "+ ", addedTokens, lines);
+    }
+
+    private static void appendTokens(StringBuilder out, String prefix, List<String> tokens, boolean lines) {
+        for (int i = 0; i < tokens.size(); i++) {
+            if (i == 0 || lines) {
+                if (i > 0) out.append('\n');
+                out.append(prefix);
+            } else {
+                out.append(' ');
+            }
+            out.append(tokens.get(i));
+        }
+    }
+}
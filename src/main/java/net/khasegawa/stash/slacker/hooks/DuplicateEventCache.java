@@ -0,0 +1,182 @@
+package net.khasegawa.stash.slacker.hooks;
+
+import com.atlassian.bitbucket.pull.PullRequestAction;
+
+import java.util.Arrays;
+
+/**
+ * Remembers the keys of recent events for a time to live, so that an event received twice is notified once.
+ *
+ * Keys are 64 bit hashes of the event kept in open addressing tables of primitive arrays, so remembering an event
+ * allocates nothing. There are two tables of at most {@link #getMaxEntries()} keys each: new keys go into the current
+ * table, which replaces the previous one once it is older than the time to live or full. A key is found until it
+ * expired or, if the events come faster than the tables hold, until its table was replaced.
+ *
+ * Created by Kazuki Hasegawa on 26/10/18.
+ *
+ * @author Kazuki Hasegawa
+ */
+final class DuplicateEventCache {
+    private static final long EMPTY = 0L;
+
+    private final int ttlSeconds;
+    private final int maxEntries;
+    private final int mask;
+    private final long base = System.currentTimeMillis();
+
+    private long[] currentKeys;
+    // Expiry of the key in the same slot, in seconds since the base.
+    private int[] currentExpiries;
+    private long[] previousKeys;
+    private int[] previousExpiries;
+    private int currentSize;
+    private int currentStart;
+    private long hits;
+
+    /**
+     * @param ttlSeconds 0 remembers nothing.
+     */
+    DuplicateEventCache(int ttlSeconds, int maxEntries) {
+        this.ttlSeconds = Math.max(0, ttlSeconds);
+        this.maxEntries = Math.max(1, maxEntries);
+        // At most half of the slots are used, so probes stay short.
+        int capacity = Integer.highestOneBit(Math.min(this.maxEntries, 1 << 29) * 2 - 1) << 1;
+        this.mask = capacity - 1;
+        if (this.ttlSeconds > 0) {
+            this.currentKeys = new long[capacity];
+            this.currentExpiries = new int[capacity];
+            this.previousKeys = new long[capacity];
+            this.previousExpiries = new int[capacity];
+        }
+    }
+
+    /**
+     * @param discriminator Distinguishes events of the same action on the same pull request,
+     *                      such as its version or the comment ID.
+     */
+    static long key(Integer repositoryId, Long pullRequestId, PullRequestAction action, long discriminator) {
+        long key = mix(((long) (repositoryId == null ? 0 : repositoryId) << 32) | action.ordinal());
+        key = mix(key ^ (pullRequestId == null ? 0 : pullRequestId));
+        return mix(key ^ discriminator);
+    }
+
+    /**
+     * Remembers the key unless it is remembered already.
+     *
+     * @param now The current time in milliseconds.
+     * @return false if the key was remembered less than the time to live ago, the event is a duplicate.
+     */
+    synchronized boolean add(long key, long now) {
+        if (ttlSeconds == 0) return true;
+        if (key == EMPTY) key = 1L;
+
+        int seconds = (int) ((now - base) / 1000);
+        if (contains(currentKeys, currentExpiries, key, seconds) ||
+                contains(previousKeys, previousExpiries, key, seconds)) {
+            hits++;
+            return false;
+        }
+
+        // Every key of the previous table expired once the current one is as old as the time to live.
+        if (seconds - currentStart >= ttlSeconds || currentSize >= maxEntries) {
+            long[] keys = previousKeys;
+            int[] expiries = previousExpiries;
+            previousKeys = currentKeys;
+            previousExpiries = currentExpiries;
+            Arrays.fill(keys, EMPTY);
+            currentKeys = keys;
+            currentExpiries = expiries;
+            currentSize = 0;
+            currentStart = seconds;
+        }
+
+        int index = (int) key & mask;
+        while (currentKeys[index] != EMPTY && currentKeys[index] != key) {
+            index = (index + 1) & mask;
+        }
+        if (currentKeys[index] == EMPTY) currentSize++;
+        currentKeys[index] = key;
+        currentExpiries[index] = seconds + ttlSeconds;
+        return true;
+    }
+
+    /**
+     * Forgets the key, so that the event is notified if it is received again, such as after it was rejected.
+     */
+    synchronized void remove(long key) {
+        if (ttlSeconds == 0) return;
+        if (key == EMPTY) key = 1L;
+
+        if (remove(currentKeys, currentExpiries, key)) {
+            currentSize--;
+        } else {
+            remove(previousKeys, previousExpiries, key);
+        }
+    }
+
+    /**
+     * @return The number of duplicates found.
+     */
+    synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return The number of keys in the current table, including expired ones.
+     */
+    synchronized int size() {
+        return currentSize;
+    }
+
+    int getTtlSeconds() {
+        return ttlSeconds;
+    }
+
+    int getMaxEntries() {
+        return maxEntries;
+    }
+
+    private boolean contains(long[] keys, int[] expiries, long key, int seconds) {
+        int index = (int) key & mask;
+        while (keys[index] != EMPTY) {
+            if (keys[index] == key) return expiries[index] > seconds;
+            index = (index + 1) & mask;
+        }
+        return false;
+    }
+
+    /**
+     * Empties the slot of the key and moves the keys probed past it back, so no probe ends early at the hole.
+     *
+     * @return false if the table does not have the key.
+     */
+    private boolean remove(long[] keys, int[] expiries, long key) {
+        int index = (int) key & mask;
+        while (keys[index] != key) {
+            if (keys[index] == EMPTY) return false;
+            index = (index + 1) & mask;
+        }
+
+        int hole = index;
+        for (int next = (hole + 1) & mask; keys[next] != EMPTY; next = (next + 1) & mask) {
+            int home = (int) keys[next] & mask;
+            // The key stays if its home slot lies cyclically after the hole, up to its own slot.
+            if (((next - home) & mask) < ((next - hole) & mask)) continue;
+
+            keys[hole] = keys[next];
+            expiries[hole] = expiries[next];
+            hole = next;
+        }
+        keys[hole] = EMPTY;
+        return true;
+    }
+
+    /**
+     * The finalizer of SplitMix64, spreading every input bit over the whole key.
+     */
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+}
@@ -0,0 +1,163 @@
+package net.khasegawa.stash.slacker.hooks;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects built payloads per webhook URL and channel and posts them as one payload with several attachments.
+ *
+ * A digest is posted when its interval elapsed since the first collected payload,
+ * or at once when it holds the maximum number of attachments.
+ * Digests larger than {@link #MAX_ATTACHMENTS_PER_MESSAGE} attachments are split into several messages.
+ *
+ * Created by Kazuki Hasegawa on 26/10/18.
+ *
+ * @author Kazuki Hasegawa
+ */
+public class NotificationDigest {
+    private static final Logger logger = LoggerFactory.getLogger(NotificationDigest.class);
+
+    /**
+     * Slack truncates messages with more attachments than this.
+     */
+    public static final int MAX_ATTACHMENTS_PER_MESSAGE = 20;
+
+    public interface Callback {
+        void send(String hookURL, Payload payload);
+    }
+
+    private final Callback callback;
+    private final int maxAttachments;
+    private final Map<String, Digest> digests = new HashMap<String, Digest>();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("slacker-digest-%d").setDaemon(true).build());
+
+    /**
+     * @param maxAttachments The number of attachments which posts a digest before its interval elapsed.
+     */
+    public NotificationDigest(Callback callback, int maxAttachments) {
+        this.callback = callback;
+        this.maxAttachments = Math.max(1, maxAttachments);
+    }
+
+    /**
+     * Adds the attachments of the payload to the digest of its webhook URL and channel.
+     * A payload without attachments is added as an attachment with its text.
+     *
+     * @return false if the interval is disabled and the payload must be posted now.
+     */
+    public boolean offer(String hookURL, Payload payload, int intervalSeconds) {
+        if (intervalSeconds <= 0) return false;
+
+        final String key = hookURL + "\n" + StringUtils.defaultString(payload.channel);
+        List<Attachment> attachments = attachmentsOf(payload);
+        Digest full = null;
+
+        synchronized (digests) {
+            if (scheduler.isShutdown()) return false;
+
+            Digest digest = digests.get(key);
+            if (digest == null) {
+                final Digest created = new Digest(hookURL, payload.channel);
+                created.future = scheduler.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        flush(key, created);
+                    }
+                }, intervalSeconds, TimeUnit.SECONDS);
+                digests.put(key, created);
+                digest = created;
+            }
+            digest.attachments.addAll(attachments);
+
+            if (digest.attachments.size() >= maxAttachments) {
+                digest.future.cancel(false);
+                digests.remove(key);
+                full = digest;
+            }
+        }
+
+        if (full != null) send(full);
+        return true;
+    }
+
+    /**
+     * Stops the timers and posts every collected digest on the calling thread.
+     */
+    public void shutdown() {
+        List<Digest> remaining;
+
+        synchronized (digests) {
+            scheduler.shutdownNow();
+            remaining = new ArrayList<Digest>(digests.values());
+            for (Digest digest : remaining) {
+                digest.future.cancel(false);
+            }
+            digests.clear();
+        }
+
+        for (Digest digest : remaining) {
+            send(digest);
+        }
+    }
+
+    private void flush(String key, Digest digest) {
+        synchronized (digests) {
+            // The digest was already posted because it was full.
+            if (digests.get(key) != digest) return;
+            digests.remove(key);
+        }
+
+        send(digest);
+    }
+
+    private void send(Digest digest) {
+        List<Attachment> attachments = digest.attachments;
+        for (int from = 0; from < attachments.size(); from += MAX_ATTACHMENTS_PER_MESSAGE) {
+            Payload payload = new Payload();
+            payload.channel = digest.channel;
+            payload.attachments.addAll(
+                    attachments.subList(from, Math.min(from + MAX_ATTACHMENTS_PER_MESSAGE, attachments.size())));
+
+            try {
+                callback.send(digest.hookURL, payload);
+            } catch (RuntimeException e) {
+                logger.error("Failed to post a digest of {} notifications", payload.attachments.size(), e);
+            }
+        }
+    }
+
+    private static List<Attachment> attachmentsOf(Payload payload) {
+        if (!payload.attachments.isEmpty()) return payload.attachments;
+
+        Attachment attachment = new Attachment();
+        attachment.text = payload.text;
+        attachment.fallback = payload.text;
+        List<Attachment> attachments = new ArrayList<Attachment>();
+        attachments.add(attachment);
+        return attachments;
+    }
+
+    private static final class Digest {
+        private final String hookURL;
+        private final String channel;
+        private final List<Attachment> attachments = new ArrayList<Attachment>();
+        private ScheduledFuture<?> future;
+
+        private Digest(String hookURL, String channel) {
+            this.hookURL = hookURL;
+            this.channel = channel;
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package net.khasegawa.stash.slacker.hooks;
+
+import com.atlassian.bitbucket.server.ApplicationPropertiesService;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded worker pool which resolves and delivers {@link PullRequestNotification}s off the event thread.
+ *
+ * The pool size and queue capacity are read from bitbucket.properties:
+ * <ul>
+ *     <li>plugin.slacker.dispatch.threads (default: 2)</li>
+ *     <li>plugin.slacker.dispatch.queue.size (default: 1000)</li>
+ * </ul>
+ * When the queue is full the notification is dropped and a warning is logged.
+ *
+ * Created by Kazuki Hasegawa on 26/10/18.
+ *
+ * @author Kazuki Hasegawa
+ */
+public class NotificationDispatcher implements DisposableBean {
+    private static final Logger logger = LoggerFactory.getLogger(NotificationDispatcher.class);
+
+    private static final String THREADS_PROPERTY = "plugin.slacker.dispatch.threads";
+    private static final String QUEUE_SIZE_PROPERTY = "plugin.slacker.dispatch.queue.size";
+    private static final int DEFAULT_THREADS = 2;
+    private static final int DEFAULT_QUEUE_SIZE = 1000;
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 10;
+
+    private final PullRequestNotifier notifier;
+    private final ThreadPoolExecutor executor;
+
+    public NotificationDispatcher(ApplicationPropertiesService propertiesService,
+                                  PullRequestNotifier notifier) {
+        this.notifier = notifier;
+
+        int threads = Math.max(1, propertiesService.getPluginProperty(THREADS_PROPERTY, DEFAULT_THREADS));
+        int queueSize = Math.max(1, propertiesService.getPluginProperty(QUEUE_SIZE_PROPERTY, DEFAULT_QUEUE_SIZE));
+
+        this.executor = new ThreadPoolExecutor(
+                threads,
+                threads,
+                60L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize),
+                new ThreadFactoryBuilder().setNameFormat("slacker-dispatcher-%d").setDaemon(true).build(),
+                new ThreadPoolExecutor.AbortPolicy());
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Enqueues the notification and returns immediately.
+     *
+     * @return false if the queue is full or the dispatcher is shut down.
+     */
+    public boolean dispatch(final PullRequestNotification notification) {
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        notifier.notifySlack(notification);
+                    } catch (RuntimeException e) {
+                        logger.error("Failed to notify PullRequest #{}", notification.getPullRequestId(), e);
+                    }
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            logger.warn("Slacker dispatch queue is full, dropped {} of PullRequest #{}",
+                        notification.getAction(), notification.getPullRequestId());
+            return false;
+        }
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        executor.shutdown();
+        if (!executor.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+            logger.warn("Slacker dispatcher did not terminate in {} seconds, {} notifications discarded",
+                        SHUTDOWN_TIMEOUT_SECONDS, executor.shutdownNow().size());
+        }
+    }
+}
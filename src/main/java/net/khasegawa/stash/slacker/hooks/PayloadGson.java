@@ -0,0 +1,247 @@
+package net.khasegawa.stash.slacker.hooks;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Plugin wide serializer of {@link Payload}s.
+ *
+ * Gson instances are thread safe but build their reflective adapters on first use,
+ * so a single instance with hand written adapters is shared. The adapters write the fields in declaration order
+ * and skip null values, producing the same JSON as the reflective adapters did.
+ *
+ * Created by Kazuki Hasegawa on 26/10/18.
+ *
+ * @author Kazuki Hasegawa
+ */
+public final class PayloadGson {
+    private static final FieldAdapter FIELD_ADAPTER = new FieldAdapter();
+    private static final AttachmentAdapter ATTACHMENT_ADAPTER = new AttachmentAdapter();
+    private static final PayloadAdapter PAYLOAD_ADAPTER = new PayloadAdapter();
+
+    private static final Gson GSON = new GsonBuilder()
+            .registerTypeAdapter(Payload.class, PAYLOAD_ADAPTER)
+            .registerTypeAdapter(Attachment.class, ATTACHMENT_ADAPTER)
+            .registerTypeAdapter(Field.class, FIELD_ADAPTER)
+            .create();
+
+    private PayloadGson() {
+    }
+
+    public static Gson gson() {
+        return GSON;
+    }
+
+    public static String toJson(Payload payload) {
+        return GSON.toJson(payload, Payload.class);
+    }
+
+    public static Payload fromJson(String json) {
+        return GSON.fromJson(json, Payload.class);
+    }
+
+    /**
+     * Sets the channel of a payload serialized without one, so that a payload posted to several channels
+     * is serialized once. The channel is written first, as {@link #toJson(Payload)} does.
+     *
+     * @param channel null to post to the default channel of the webhook.
+     */
+    public static String withChannel(String json, String channel) {
+        if (channel == null) return json;
+
+        String field = "{\"channel\":" + GSON.toJson(channel);
+        return json.equals("{}") ? field + "}" : field + "," + json.substring(1);
+    }
+
+    private static void writeString(JsonWriter out, String name, String value) throws IOException {
+        if (value != null) out.name(name).value(value);
+    }
+
+    private static <T> void writeList(JsonWriter out, String name, List<T> values,
+                                      TypeAdapter<T> adapter) throws IOException {
+        if (values == null) return;
+
+        out.name(name).beginArray();
+        for (T value : values) {
+            adapter.write(out, value);
+        }
+        out.endArray();
+    }
+
+    private static String readString(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        return in.nextString();
+    }
+
+    private static <T> List<T> readList(JsonReader in, TypeAdapter<T> adapter) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+
+        List<T> values = new ArrayList<T>();
+        in.beginArray();
+        while (in.hasNext()) {
+            values.add(adapter.read(in));
+        }
+        in.endArray();
+        return values;
+    }
+
+    private static final class PayloadAdapter extends TypeAdapter<Payload> {
+        @Override
+        public void write(JsonWriter out, Payload payload) throws IOException {
+            if (payload == null) {
+                out.nullValue();
+                return;
+            }
+
+            out.beginObject();
+            writeString(out, "channel", payload.channel);
+            writeString(out, "text", payload.text);
+            writeString(out, "icon_emoji", payload.icon_emoji);
+            writeString(out, "emoji_url", payload.emoji_url);
+            writeString(out, "username", payload.username);
+            writeList(out, "attachments", payload.attachments, ATTACHMENT_ADAPTER);
+            out.endObject();
+        }
+
+        @Override
+        public Payload read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+
+            Payload payload = new Payload();
+            payload.attachments = null;
+            in.beginObject();
+            while (in.hasNext()) {
+                String name = in.nextName();
+                if ("channel".equals(name)) {
+                    payload.channel = readString(in);
+                } else if ("text".equals(name)) {
+                    payload.text = readString(in);
+                } else if ("icon_emoji".equals(name)) {
+                    payload.icon_emoji = readString(in);
+                } else if ("emoji_url".equals(name)) {
+                    payload.emoji_url = readString(in);
+                } else if ("username".equals(name)) {
+                    payload.username = readString(in);
+                } else if ("attachments".equals(name)) {
+                    payload.attachments = readList(in, ATTACHMENT_ADAPTER);
+                } else {
+                    in.skipValue();
+                }
+            }
+            in.endObject();
+            if (payload.attachments == null) payload.attachments = new ArrayList<Attachment>();
+            return payload;
+        }
+    }
+
+    private static final class AttachmentAdapter extends TypeAdapter<Attachment> {
+        @Override
+        public void write(JsonWriter out, Attachment attachment) throws IOException {
+            if (attachment == null) {
+                out.nullValue();
+                return;
+            }
+
+            out.beginObject();
+            writeString(out, "pretext", attachment.pretext);
+            writeString(out, "text", attachment.text);
+            writeString(out, "fallback", attachment.fallback);
+            writeString(out, "title", attachment.title);
+            writeString(out, "title_link", attachment.title_link);
+            writeString(out, "color", attachment.color);
+            writeList(out, "fields", attachment.fields, FIELD_ADAPTER);
+            out.endObject();
+        }
+
+        @Override
+        public Attachment read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+
+            Attachment attachment = new Attachment();
+            in.beginObject();
+            while (in.hasNext()) {
+                String name = in.nextName();
+                if ("pretext".equals(name)) {
+                    attachment.pretext = readString(in);
+                } else if ("text".equals(name)) {
+                    attachment.text = readString(in);
+                } else if ("fallback".equals(name)) {
+                    attachment.fallback = readString(in);
+                } else if ("title".equals(name)) {
+                    attachment.title = readString(in);
+                } else if ("title_link".equals(name)) {
+                    attachment.title_link = readString(in);
+                } else if ("color".equals(name)) {
+                    attachment.color = readString(in);
+                } else if ("fields".equals(name)) {
+                    attachment.fields = readList(in, FIELD_ADAPTER);
+                } else {
+                    in.skipValue();
+                }
+            }
+            in.endObject();
+            return attachment;
+        }
+    }
+
+    private static final class FieldAdapter extends TypeAdapter<Field> {
+        @Override
+        public void write(JsonWriter out, Field field) throws IOException {
+            if (field == null) {
+                out.nullValue();
+                return;
+            }
+
+            out.beginObject();
+            writeString(out, "title", field.title);
+            writeString(out, "value", field.value);
+            out.name("short").value(field.isShort);
+            out.endObject();
+        }
+
+        @Override
+        public Field read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+
+            Field field = new Field();
+            in.beginObject();
+            while (in.hasNext()) {
+                String name = in.nextName();
+                if ("title".equals(name)) {
+                    field.title = readString(in);
+                } else if ("value".equals(name)) {
+                    field.value = readString(in);
+                } else if ("short".equals(name)) {
+                    field.isShort = in.nextBoolean();
+                } else {
+                    in.skipValue();
+                }
+            }
+            in.endObject();
+            return field;
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package net.khasegawa.stash.slacker.hooks;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Holds back notifications of the same pull request and action until no further one arrived for a quiet window,
+ * then hands them over as one merged {@link PullRequestNotification}.
+ *
+ * Every held notification restarts the window, but a pull request which keeps changing is still handed over
+ * {@link #MAX_WINDOWS} windows after its first notification. Handed over notifications are delivered on the
+ * coalescer thread.
+ *
+ * Created by Kazuki Hasegawa on 26/10/18.
+ *
+ * @author Kazuki Hasegawa
+ */
+public class PullRequestCoalescer {
+    private static final Logger logger = LoggerFactory.getLogger(PullRequestCoalescer.class);
+    private static final long MAX_WINDOWS = 5;
+
+    public interface Callback {
+        void flush(PullRequestNotification notification);
+    }
+
+    private final Callback callback;
+    private final Map<String, Pending> pendings = new HashMap<String, Pending>();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("slacker-coalescer-%d").setDaemon(true).build());
+
+    public PullRequestCoalescer(Callback callback) {
+        this.callback = callback;
+    }
+
+    /**
+     * Holds back the notification, merging it into the one already held for the pull request and action.
+     *
+     * @return false if the quiet window is disabled and the notification must be delivered now.
+     */
+    public boolean offer(PullRequestNotification notification, int quietWindowSeconds) {
+        if (quietWindowSeconds <= 0) return false;
+
+        final String key = key(notification.getRepositoryId(), notification.getPullRequestId()) +
+                notification.getAction();
+        long now = System.currentTimeMillis();
+        long window = TimeUnit.SECONDS.toMillis(quietWindowSeconds);
+
+        synchronized (pendings) {
+            if (scheduler.isShutdown()) return false;
+
+            Pending pending = pendings.get(key);
+            final Pending next;
+            if (pending == null) {
+                next = new Pending(notification, now);
+            } else {
+                pending.future.cancel(false);
+                next = new Pending(pending.notification.coalesce(notification), pending.since);
+            }
+            long delay = Math.max(0, Math.min(window, next.since + window * MAX_WINDOWS - now));
+            next.future = scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    flush(key, next);
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+            pendings.put(key, next);
+        }
+
+        return true;
+    }
+
+    /**
+     * Hands over every notification held for the pull request on the calling thread,
+     * so that they are delivered before a following notification of another action.
+     */
+    public void flush(Integer repositoryId, Long pullRequestId) {
+        String prefix = key(repositoryId, pullRequestId);
+        List<PullRequestNotification> notifications = new ArrayList<PullRequestNotification>();
+
+        synchronized (pendings) {
+            if (pendings.isEmpty()) return;
+
+            Iterator<Map.Entry<String, Pending>> iterator = pendings.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<String, Pending> entry = iterator.next();
+                if (entry.getKey().startsWith(prefix)) {
+                    entry.getValue().future.cancel(false);
+                    notifications.add(entry.getValue().notification);
+                    iterator.remove();
+                }
+            }
+        }
+
+        for (PullRequestNotification notification : notifications) {
+            deliver(notification);
+        }
+    }
+
+    /**
+     * Stops the timers and hands over everything still held on the calling thread.
+     */
+    public void shutdown() {
+        List<PullRequestNotification> notifications = new ArrayList<PullRequestNotification>();
+
+        synchronized (pendings) {
+            scheduler.shutdownNow();
+            for (Pending pending : pendings.values()) {
+                pending.future.cancel(false);
+                notifications.add(pending.notification);
+            }
+            pendings.clear();
+        }
+
+        for (PullRequestNotification notification : notifications) {
+            deliver(notification);
+        }
+    }
+
+    private void flush(String key, Pending pending) {
+        synchronized (pendings) {
+            // A newer notification replaced this one and rescheduled the flush.
+            if (pendings.get(key) != pending) return;
+            pendings.remove(key);
+        }
+
+        deliver(pending.notification);
+    }
+
+    private void deliver(PullRequestNotification notification) {
+        try {
+            callback.flush(notification);
+        } catch (RuntimeException e) {
+            logger.error("Failed to notify PullRequest #{}", notification.getPullRequestId(), e);
+        }
+    }
+
+    private static String key(Integer repositoryId, Long pullRequestId) {
+        return repositoryId + ":" + pullRequestId + ":";
+    }
+
+    private static final class Pending {
+        private final PullRequestNotification notification;
+        private final long since;
+        private ScheduledFuture<?> future;
+
+        private Pending(PullRequestNotification notification, long since) {
+            this.notification = notification;
+            this.since = since;
+        }
+    }
+}
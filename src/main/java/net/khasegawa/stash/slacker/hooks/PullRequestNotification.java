@@ -0,0 +1,281 @@
+package net.khasegawa.stash.slacker.hooks;
+
+import com.atlassian.bitbucket.comment.Comment;
+import com.atlassian.bitbucket.event.pull.PullRequestCommentAddedEvent;
+import com.atlassian.bitbucket.event.pull.PullRequestCommentEvent;
+import com.atlassian.bitbucket.event.pull.PullRequestCommentRepliedEvent;
+import com.atlassian.bitbucket.event.pull.PullRequestEvent;
+import com.atlassian.bitbucket.event.pull.PullRequestUpdatedEvent;
+import com.atlassian.bitbucket.pull.PullRequest;
+import com.atlassian.bitbucket.pull.PullRequestAction;
+import com.atlassian.bitbucket.repository.Repository;
+import com.atlassian.bitbucket.user.ApplicationUser;
+import net.khasegawa.stash.slacker.configurations.NotificationFilter;
+
+/**
+ * Immutable snapshot of a pull request event.
+ *
+ * Events hold lazily loaded entities which must not be touched outside the event thread,
+ * so everything the notification needs is copied here before it is handed to the dispatcher.
+ *
+ * Created by Kazuki Hasegawa on 26/10/18.
+ *
+ * @author Kazuki Hasegawa
+ */
+public final class PullRequestNotification implements NotificationFilter.Subject {
+    private final PullRequestAction action;
+    private final Long pullRequestId;
+    private final int pullRequestVersion;
+    private final String title;
+    private final String description;
+    private final boolean crossRepository;
+
+    private final Integer repositoryId;
+    private final String repositorySlug;
+    private final String repositoryName;
+    private final Integer projectId;
+    private final String projectKey;
+
+    private final Integer userId;
+    private final String userName;
+    private final String userDisplayName;
+
+    private final Integer authorId;
+    private final String authorName;
+
+    private final Long commentId;
+    private final String commentText;
+
+    private final String previousTitle;
+    private final String previousDescription;
+    private final String previousToBranch;
+    private final String toBranch;
+
+    private final String toBranchName;
+    private final String fromBranchName;
+    private final String pullRequestAuthorName;
+
+    private final int count;
+
+    private PullRequestNotification(PullRequestEvent event) {
+        PullRequest pullRequest = event.getPullRequest();
+        Repository repository = pullRequest.getToRef().getRepository();
+        ApplicationUser user = event.getUser();
+
+        this.action = event.getAction();
+        this.pullRequestId = pullRequest.getId();
+        this.pullRequestVersion = pullRequest.getVersion();
+        this.title = pullRequest.getTitle();
+        this.description = pullRequest.getDescription();
+        this.crossRepository = pullRequest.isCrossRepository();
+
+        this.repositoryId = repository.getId();
+        this.repositorySlug = repository.getSlug();
+        this.repositoryName = repository.getName();
+        this.projectId = repository.getProject().getId();
+        this.projectKey = repository.getProject().getKey();
+
+        this.userId = user == null ? null : user.getId();
+        this.userName = user == null ? null : user.getName();
+        this.userDisplayName = user == null ? null : user.getDisplayName();
+
+        ApplicationUser author = null;
+        Comment comment = null;
+        if (event instanceof PullRequestCommentEvent) {
+            PullRequestCommentEvent commentEvent = (PullRequestCommentEvent) event;
+            comment = commentEvent.getComment();
+            if (event instanceof PullRequestCommentAddedEvent) {
+                author = pullRequest.getAuthor().getUser();
+            } else if (event instanceof PullRequestCommentRepliedEvent && commentEvent.getParent() != null) {
+                author = commentEvent.getParent().getAuthor();
+            }
+        }
+        this.authorId = author == null ? null : author.getId();
+        this.authorName = author == null ? null : author.getName();
+        this.commentId = comment == null ? null : comment.getId();
+        this.commentText = comment == null ? null : comment.getText();
+
+        if (event instanceof PullRequestUpdatedEvent) {
+            PullRequestUpdatedEvent updatedEvent = (PullRequestUpdatedEvent) event;
+            this.previousTitle = updatedEvent.getPreviousTitle();
+            this.previousDescription = updatedEvent.getPreviousDescription();
+            this.previousToBranch = updatedEvent.getPreviousToBranch() == null ?
+                    null : updatedEvent.getPreviousToBranch().toString();
+        } else {
+            this.previousTitle = null;
+            this.previousDescription = null;
+            this.previousToBranch = null;
+        }
+        this.toBranch = pullRequest.getToRef().toString();
+
+        this.toBranchName = pullRequest.getToRef().getDisplayId();
+        this.fromBranchName = pullRequest.getFromRef().getDisplayId();
+        ApplicationUser pullRequestAuthor = pullRequest.getAuthor() == null ? null : pullRequest.getAuthor().getUser();
+        this.pullRequestAuthorName = pullRequestAuthor == null ? null : pullRequestAuthor.getName();
+
+        this.count = 1;
+    }
+
+    private PullRequestNotification(PullRequestNotification first, PullRequestNotification last) {
+        this.action = last.action;
+        this.pullRequestId = last.pullRequestId;
+        this.pullRequestVersion = last.pullRequestVersion;
+        this.title = last.title;
+        this.description = last.description;
+        this.crossRepository = last.crossRepository;
+
+        this.repositoryId = last.repositoryId;
+        this.repositorySlug = last.repositorySlug;
+        this.repositoryName = last.repositoryName;
+        this.projectId = last.projectId;
+        this.projectKey = last.projectKey;
+
+        this.userId = last.userId;
+        this.userName = last.userName;
+        this.userDisplayName = last.userDisplayName;
+
+        this.authorId = last.authorId;
+        this.authorName = last.authorName;
+        this.commentId = last.commentId;
+        this.commentText = last.commentText;
+
+        this.previousTitle = first.previousTitle;
+        this.previousDescription = first.previousDescription;
+        this.previousToBranch = first.previousToBranch != null ? first.previousToBranch : last.previousToBranch;
+        this.toBranch = last.toBranch;
+
+        this.toBranchName = last.toBranchName;
+        this.fromBranchName = last.fromBranchName;
+        this.pullRequestAuthorName = last.pullRequestAuthorName;
+
+        this.count = first.count + last.count;
+    }
+
+    public static PullRequestNotification of(PullRequestEvent event) {
+        return new PullRequestNotification(event);
+    }
+
+    /**
+     * Merges a later notification of the same pull request into this one.
+     * The previous values are taken from this notification, the current values from the later one.
+     */
+    public PullRequestNotification coalesce(PullRequestNotification later) {
+        return new PullRequestNotification(this, later);
+    }
+
+    @Override
+    public PullRequestAction getAction() {
+        return action;
+    }
+
+    public Long getPullRequestId() {
+        return pullRequestId;
+    }
+
+    public int getPullRequestVersion() {
+        return pullRequestVersion;
+    }
+
+    @Override
+    public String getTitle() {
+        return title;
+    }
+
+    public String getDescription() {
+        return description;
+    }
+
+    @Override
+    public boolean isCrossRepository() {
+        return crossRepository;
+    }
+
+    public Integer getRepositoryId() {
+        return repositoryId;
+    }
+
+    public String getRepositorySlug() {
+        return repositorySlug;
+    }
+
+    public String getRepositoryName() {
+        return repositoryName;
+    }
+
+    public Integer getProjectId() {
+        return projectId;
+    }
+
+    public String getProjectKey() {
+        return projectKey;
+    }
+
+    public Integer getUserId() {
+        return userId;
+    }
+
+    public String getUserName() {
+        return userName;
+    }
+
+    public String getUserDisplayName() {
+        return userDisplayName;
+    }
+
+    /**
+     * @return The author of the pull request (comment added) or of the parent comment (comment replied).
+     */
+    public Integer getAuthorId() {
+        return authorId;
+    }
+
+    public String getAuthorName() {
+        return authorName;
+    }
+
+    public Long getCommentId() {
+        return commentId;
+    }
+
+    public String getCommentText() {
+        return commentText;
+    }
+
+    public String getPreviousTitle() {
+        return previousTitle;
+    }
+
+    public String getPreviousDescription() {
+        return previousDescription;
+    }
+
+    public String getPreviousToBranch() {
+        return previousToBranch;
+    }
+
+    public String getToBranch() {
+        return toBranch;
+    }
+
+    @Override
+    public String getToBranchName() {
+        return toBranchName;
+    }
+
+    @Override
+    public String getFromBranchName() {
+        return fromBranchName;
+    }
+
+    @Override
+    public String getPullRequestAuthorName() {
+        return pullRequestAuthorName;
+    }
+
+    /**
+     * @return The number of events merged into this notification.
+     */
+    public int getCount() {
+        return count;
+    }
+}
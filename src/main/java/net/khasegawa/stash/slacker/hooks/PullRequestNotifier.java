@@ -0,0 +1,436 @@
+package net.khasegawa.stash.slacker.hooks;
+
+import com.atlassian.bitbucket.pull.PullRequestAction;
+import com.atlassian.bitbucket.server.ApplicationPropertiesService;
+import net.khasegawa.stash.slacker.configurations.ConfigurationService;
+import net.khasegawa.stash.slacker.configurations.MessageTemplate;
+import net.khasegawa.stash.slacker.configurations.MessageTemplates;
+import net.khasegawa.stash.slacker.configurations.NotifyConfiguration;
+import net.khasegawa.stash.slacker.configurations.NotifyTarget;
+import net.khasegawa.stash.slacker.configurations.TextBudget;
+import net.khasegawa.stash.slacker.deliveries.Delivery;
+import net.khasegawa.stash.slacker.deliveries.DeliveryOutbox;
+import net.khasegawa.stash.slacker.metrics.SlackerMetrics;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.DisposableBean;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Resolves the configuration for a {@link PullRequestNotification}, builds the payload
+ * and stores it in the {@link DeliveryOutbox}.
+ *
+ * Runs on the dispatcher worker threads, never on the event thread.
+ * Updates and rescopes are held back by a {@link PullRequestCoalescer} when the configuration has a quiet window,
+ * and payloads are collected by a {@link NotificationDigest} when it has a digest interval.
+ * Notifications which are not sent because of their configuration are counted as filtered out by the
+ * {@link SlackerMetrics} of their action, and the configuration lookups and payload builds are timed.
+ * Descriptions and comments are cut to the {@link TextBudget} of the configuration, and updates only carry
+ * the changed values and a {@link DescriptionDiff} when the configuration has compact updates.
+ * Notifications other than comments are also posted to the {@link NotifyTarget}s of the configuration which
+ * accept their action, even if the configuration itself does not notify it. The branch, author and title filters
+ * apply to every webhook alike. The payload is serialized once for all of them and the deliveries are stored together,
+ * so they are posted to their webhooks in parallel.
+ * The digest size is read from bitbucket.properties:
+ * <ul>
+ *     <li>plugin.slacker.digest.max.attachments (default: 100)</li>
+ * </ul>
+ *
+ * Created by Kazuki Hasegawa on 26/10/18.
+ *
+ * @author Kazuki Hasegawa
+ */
+public class PullRequestNotifier implements DisposableBean {
+    private static final Logger logger = Logger.getLogger(PullRequestNotifier.class);
+
+    private static final String DIGEST_MAX_ATTACHMENTS_PROPERTY = "plugin.slacker.digest.max.attachments";
+    private static final int DEFAULT_DIGEST_MAX_ATTACHMENTS = 100;
+
+    private static final int INITIAL_BUILDER_CAPACITY = 256;
+    private static final int MAX_BUILDER_CAPACITY = 16 * 1024;
+    // Messages are rendered into a builder of the dispatcher thread instead of a new one per message.
+    private static final ThreadLocal<StringBuilder> BUILDER = new ThreadLocal<StringBuilder>() {
+        @Override
+        protected StringBuilder initialValue() {
+            return new StringBuilder(INITIAL_BUILDER_CAPACITY);
+        }
+    };
+
+    private final ApplicationPropertiesService propertiesService;
+    private final ConfigurationService configurationService;
+    private final DeliveryOutbox outbox;
+    private final SlackerMetrics metrics;
+    private final PullRequestCoalescer coalescer;
+    private final NotificationDigest digest;
+
+    public PullRequestNotifier(ApplicationPropertiesService propertiesService,
+                               ConfigurationService configurationService,
+                               DeliveryOutbox outbox,
+                               SlackerMetrics metrics) {
+        this.propertiesService = propertiesService;
+        this.configurationService = configurationService;
+        this.outbox = outbox;
+        this.metrics = metrics;
+        this.coalescer = new PullRequestCoalescer(new PullRequestCoalescer.Callback() {
+            @Override
+            public void flush(PullRequestNotification notification) {
+                notifySlack(notification, false);
+            }
+        });
+        this.digest = new NotificationDigest(new NotificationDigest.Callback() {
+            @Override
+            public void send(String hookURL, Payload payload) {
+                post(null, hookURL, payload);
+            }
+        }, propertiesService.getPluginProperty(DIGEST_MAX_ATTACHMENTS_PROPERTY, DEFAULT_DIGEST_MAX_ATTACHMENTS));
+    }
+
+    public void notifySlack(PullRequestNotification notification) {
+        notifySlack(notification, true);
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        coalescer.shutdown();
+        digest.shutdown();
+    }
+
+    private void notifySlack(PullRequestNotification notification, boolean coalesce) {
+        Long id = notification.getPullRequestId();
+        PullRequestAction action = notification.getAction();
+
+        if (id == null) return;
+
+        // Held back updates of the pull request are notified before anything that happened after them.
+        if (coalesce && action != PullRequestAction.UPDATED && action != PullRequestAction.RESCOPED) {
+            coalescer.flush(notification.getRepositoryId(), id);
+        }
+
+        long start = System.nanoTime();
+        NotifyConfiguration configuration = getConfiguration(notification);
+        metrics.getConfigLookup().recordSince(start);
+        if (configuration == null) return;
+
+        boolean hasHookURL = StringUtils.isNotBlank(configuration.getHookURL());
+        // Comments are direct messages on behalf of the commenter, they only go to the configured webhook.
+        List<NotifyTarget> targets = action == PullRequestAction.COMMENTED ?
+                Collections.<NotifyTarget>emptyList() : targetsOf(configuration, action);
+        if (!hasHookURL && targets.isEmpty()) {
+            logger.warn("Slack hook url is blank.");
+            metrics.getCounters(action).filteredOut();
+            return;
+        }
+        // The actions of the configuration only decide about its own webhook, the targets have their own.
+        boolean toHookURL = hasHookURL && configuration.getFilter().acceptsAction(action);
+        if ((!toHookURL && targets.isEmpty()) || !configuration.getFilter().matches(notification)) {
+            metrics.getCounters(action).filteredOut();
+            return;
+        }
+        if (coalesce && (action == PullRequestAction.UPDATED || action == PullRequestAction.RESCOPED) &&
+                coalescer.offer(notification, configuration.getQuietWindowSeconds())) return;
+
+        start = System.nanoTime();
+        Payload payload = buildPayload(notification, configuration);
+        metrics.getPayloadBuild().recordSince(start);
+        if (payload == null) {
+            metrics.getCounters(action).filteredOut();
+            return;
+        }
+
+        if (!targets.isEmpty()) {
+            fanOut(action, toHookURL ? configuration.getHookURL() : null, configuration, payload, targets);
+            return;
+        }
+
+        // Comments are direct messages on behalf of the commenter, they are never collected.
+        if (action != PullRequestAction.COMMENTED &&
+                digest.offer(configuration.getHookURL(), payload, configuration.getDigestIntervalSeconds())) return;
+
+        post(action, configuration.getHookURL(), payload);
+    }
+
+    /**
+     * @return The delivery targets of the configuration which accept the action.
+     */
+    private static List<NotifyTarget> targetsOf(NotifyConfiguration configuration, PullRequestAction action) {
+        List<NotifyTarget> targets = configuration.getTargets();
+        if (targets.isEmpty()) return targets;
+
+        List<NotifyTarget> accepted = new ArrayList<NotifyTarget>(targets.size());
+        for (NotifyTarget target : targets) {
+            if (target.accepts(action)) accepted.add(target);
+        }
+        return accepted;
+    }
+
+    /**
+     * Posts the payload to the configured webhook, if it notifies the action, and to every target.
+     * The payload is serialized once without a channel and the channel of each webhook is put in front of it.
+     * With a digest interval every webhook and channel collects its own digest instead.
+     *
+     * @param hookURL null if the configured webhook does not notify the action.
+     */
+    private void fanOut(PullRequestAction action, String hookURL, NotifyConfiguration configuration,
+                        Payload payload, List<NotifyTarget> targets) {
+        boolean hasHookURL = hookURL != null;
+        int intervalSeconds = configuration.getDigestIntervalSeconds();
+
+        if (intervalSeconds > 0) {
+            if (hasHookURL) offer(action, hookURL, payload, intervalSeconds);
+            for (NotifyTarget target : targets) {
+                offer(action, target.getHookURL(), withChannel(payload, target.getChannel()), intervalSeconds);
+            }
+            return;
+        }
+
+        String channel = payload.channel;
+        payload.channel = null;
+        String json = PayloadGson.toJson(payload);
+        if (hasHookURL) {
+            outbox.enqueue(new Delivery(action, hookURL, PayloadGson.withChannel(json, channel)));
+        }
+        for (NotifyTarget target : targets) {
+            outbox.enqueue(new Delivery(action, target.getHookURL(),
+                                        PayloadGson.withChannel(json, target.getChannel())));
+        }
+    }
+
+    private void offer(PullRequestAction action, String hookURL, Payload payload, int intervalSeconds) {
+        if (!digest.offer(hookURL, payload, intervalSeconds)) post(action, hookURL, payload);
+    }
+
+    /**
+     * @return A copy of the payload posted to another channel, sharing its attachments.
+     */
+    private static Payload withChannel(Payload payload, String channel) {
+        Payload copy = new Payload();
+        copy.channel = channel;
+        copy.text = payload.text;
+        copy.icon_emoji = payload.icon_emoji;
+        copy.emoji_url = payload.emoji_url;
+        copy.username = payload.username;
+        copy.attachments = payload.attachments;
+        return copy;
+    }
+
+    /**
+     * Builds the message of an accepted notification.
+     *
+     * @return null if the notification is not sent.
+     */
+    Payload buildPayload(PullRequestNotification notification, NotifyConfiguration configuration) {
+        PullRequestAction action = notification.getAction();
+        Payload payload = new Payload();
+        String url = builder()
+                .append(propertiesService.getBaseUrl())
+                .append("/projects/").append(notification.getProjectKey())
+                .append("/repos/").append(notification.getRepositorySlug())
+                .append("/pull-requests/").append(notification.getPullRequestId().longValue())
+                .append("/overview")
+                .toString();
+        MessageVariables variables = new MessageVariables(notification, url);
+        MessageTemplates templates = configuration.getTemplates();
+        TextBudget budget = configuration.getTextBudget();
+
+        if (StringUtils.isNotBlank(configuration.getChannel())) {
+            payload.channel = configuration.getChannel();
+        }
+        if (action == PullRequestAction.OPENED) {
+            Attachment attachment = new Attachment();
+
+            attachment.pretext = render(templates.get(action), variables);
+            attachment.fallback = render(MessageTemplates.OPENED_FALLBACK, variables);
+            attachment.title = notification.getTitle();
+            attachment.title_link = url;
+            attachment.color = "#36a64f";
+            attachment.text = budget.truncate(notification.getDescription(), url);
+            payload.attachments.add(attachment);
+        } else if (action == PullRequestAction.REOPENED) {
+            payload.text = render(templates.get(action), variables);
+        } else if (action == PullRequestAction.MERGED) {
+            payload.text = render(templates.get(action), variables);
+        } else if (action == PullRequestAction.DECLINED) {
+            payload.text = render(templates.get(action), variables);
+        } else if (action == PullRequestAction.UPDATED) {
+            Attachment attachment = new Attachment();
+
+            attachment.pretext = render(templates.get(action), variables);
+            attachment.fallback = attachment.pretext;
+
+            List<Field> fields = new ArrayList<Field>();
+            if (configuration.isCompactUpdates()) {
+                addChanges(fields, notification, budget, url);
+            } else {
+                fields.add(field("Previous Title", notification.getPreviousTitle(), true));
+                fields.add(field("New Title", notification.getTitle(), true));
+                fields.add(field("Previous Description",
+                                 budget.truncate(notification.getPreviousDescription(), url), true));
+                fields.add(field("New Description", budget.truncate(notification.getDescription(), url), true));
+                if (notification.getPreviousToBranch() != null) {
+                    fields.add(field("Previous To Branch", notification.getPreviousToBranch(), true));
+                    fields.add(field("New To Branch", notification.getToBranch(), true));
+                }
+            }
+
+            attachment.fields = fields;
+
+            attachment.title = notification.getTitle();
+            attachment.title_link = url;
+            attachment.color = "#36a64f";
+
+            payload.attachments.add(attachment);
+        } else if (action == PullRequestAction.RESCOPED) {
+            payload.text = render(templates.get(action), variables);
+        } else if(action == PullRequestAction.COMMENTED) {
+            Map<String, String> userMap = configuration.getUserMap();
+            if (userMap.isEmpty()) return null;
+
+            String author = notification.getAuthorName();
+            String user = notification.getUserName();
+
+            if (author == null || !userMap.containsKey(author) ||
+                    user == null || !userMap.containsKey(user) ||
+                    notification.getUserId().equals(notification.getAuthorId())) {
+                if (author == null) logger.warn("Can't get author.");
+                if (user == null) logger.warn("Can't get current user.");
+                if (author != null && !userMap.containsKey(author)) logger.warn("Can't find " + author + " in userMapJSON.");
+                if (user != null && !userMap.containsKey(user)) logger.warn("Can't find " + user + " in userMapJSON.");
+                return null;
+            }
+
+            String text = render(templates.get(action), variables);
+            Attachment attachment = new Attachment();
+            attachment.pretext = text;
+            attachment.fallback = text;
+            attachment.color = "#447dff";
+            attachment.text = budget.truncate(notification.getCommentText(), url);
+            payload.attachments.add(attachment);
+            payload.channel = "@" + userMap.get(author);
+            payload.username = userMap.get(user);
+        } else return null;
+
+        return payload;
+    }
+
+    /**
+     * Adds only the values which changed, and the changed hunks instead of both descriptions.
+     * A description change too large to diff is sent in full, cut to the budget.
+     */
+    private static void addChanges(List<Field> fields, PullRequestNotification notification, TextBudget budget,
+                                   String url) {
+        if (!StringUtils.equals(notification.getPreviousTitle(), notification.getTitle())) {
+            fields.add(field("Previous Title", notification.getPreviousTitle(), true));
+            fields.add(field("New Title", notification.getTitle(), true));
+        }
+
+        String changes = DescriptionDiff.diff(notification.getPreviousDescription(), notification.getDescription());
+        if (changes == null) {
+            fields.add(field("Previous Description",
+                             budget.truncate(notification.getPreviousDescription(), url), true));
+            fields.add(field("New Description", budget.truncate(notification.getDescription(), url), true));
+        } else if (!changes.isEmpty()) {
+            fields.add(field("Description Changes", budget.truncate(changes, url), false));
+        }
+
+        if (notification.getPreviousToBranch() != null &&
+                !notification.getPreviousToBranch().equals(notification.getToBranch())) {
+            fields.add(field("Previous To Branch", notification.getPreviousToBranch(), true));
+            fields.add(field("New To Branch", notification.getToBranch(), true));
+        }
+    }
+
+    private static Field field(String title, String value, boolean isShort) {
+        Field field = new Field();
+        field.title = title;
+        field.value = value;
+        field.isShort = isShort;
+        return field;
+    }
+
+    /**
+     * @param action null for a digest of several notifications.
+     */
+    private void post(PullRequestAction action, String hookURL, Payload payload) {
+        outbox.enqueue(new Delivery(action, hookURL, PayloadGson.toJson(payload)));
+    }
+
+    /**
+     * @return The cleared builder of the current thread.
+     */
+    private static StringBuilder builder() {
+        StringBuilder builder = BUILDER.get();
+        if (builder.capacity() > MAX_BUILDER_CAPACITY) {
+            builder = new StringBuilder(INITIAL_BUILDER_CAPACITY);
+            BUILDER.set(builder);
+        }
+        builder.setLength(0);
+        return builder;
+    }
+
+    private static String render(MessageTemplate template, MessageVariables variables) {
+        StringBuilder builder = builder();
+        template.render(builder, variables);
+        return builder.toString();
+    }
+
+    /**
+     * The values of the template variables of a notification. The comment URL is only built if a template uses it.
+     */
+    private static final class MessageVariables implements MessageTemplate.Variables {
+        private final PullRequestNotification notification;
+        private final String url;
+
+        MessageVariables(PullRequestNotification notification, String url) {
+            this.notification = notification;
+            this.url = url;
+        }
+
+        @Override
+        public void append(StringBuilder out, MessageTemplate.Variable variable) {
+            switch (variable) {
+                case USER:
+                    out.append(notification.getUserDisplayName());
+                    break;
+                case URL:
+                    out.append(url);
+                    break;
+                case ID:
+                    out.append(notification.getPullRequestId().longValue());
+                    break;
+                case TITLE:
+                    out.append(notification.getTitle());
+                    break;
+                case REPO:
+                    out.append(notification.getRepositoryName());
+                    break;
+                case PROJECT:
+                    out.append(notification.getProjectKey());
+                    break;
+                case TIMES:
+                    if (notification.getCount() > 1) out.append(" (").append(notification.getCount()).append(" times)");
+                    break;
+                case COMMENT_URL:
+                    out.append(url);
+                    if (notification.getCommentId() != null) {
+                        out.append("?commentId=").append(notification.getCommentId().longValue());
+                    }
+                    break;
+            }
+        }
+    }
+
+    NotifyConfiguration getConfiguration(PullRequestNotification notification) {
+        try {
+            return configurationService.getNotifyConfiguration(notification.getProjectId(),
+                                                               notification.getRepositoryId());
+        } catch (SQLException e) {
+            logger.error(e.getMessage());
+            return null;
+        }
+    }
+}
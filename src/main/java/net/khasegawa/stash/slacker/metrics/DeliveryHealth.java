@@ -0,0 +1,288 @@
+package net.khasegawa.stash.slacker.metrics;
+
+import com.atlassian.bitbucket.pull.PullRequestAction;
+import com.atlassian.bitbucket.server.ApplicationPropertiesService;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Recent events and posts of this node, kept in {@link RingBuffer}s for the delivery health report.
+ *
+ * Recording only writes an immutable record to a ring, the report is aggregated when it is requested.
+ * The report therefore covers the most recent records, older ones are overwritten.
+ * The ring sizes are read from bitbucket.properties:
+ * <ul>
+ *     <li>plugin.slacker.health.events events kept (default: 1024)</li>
+ *     <li>plugin.slacker.health.deliveries posts and drops kept (default: 1024)</li>
+ * </ul>
+ *
+ * Created by Kazuki Hasegawa on 26/10/18.
+ *
+ * @author Kazuki Hasegawa
+ */
+public class DeliveryHealth {
+    private static final String EVENTS_PROPERTY = "plugin.slacker.health.events";
+    private static final String DELIVERIES_PROPERTY = "plugin.slacker.health.deliveries";
+    private static final int DEFAULT_EVENTS = 1024;
+    private static final int DEFAULT_DELIVERIES = 1024;
+
+    public enum Outcome {
+        /** Slack accepted the post. */
+        SENT,
+        /** The post got no response or an error response, it may be retried. */
+        FAILED,
+        /** Slack rate limited the post, it is retried after Retry-After. */
+        RATE_LIMITED,
+        /** The notification was discarded without being posted. */
+        DROPPED
+    }
+
+    private final RingBuffer<EventRecord> events;
+    private final RingBuffer<DeliveryRecord> deliveries;
+
+    public DeliveryHealth(ApplicationPropertiesService propertiesService) {
+        this.events = new RingBuffer<EventRecord>(
+                propertiesService.getPluginProperty(EVENTS_PROPERTY, DEFAULT_EVENTS));
+        this.deliveries = new RingBuffer<DeliveryRecord>(
+                propertiesService.getPluginProperty(DELIVERIES_PROPERTY, DEFAULT_DELIVERIES));
+    }
+
+    /**
+     * @param dispatched false if the event was dropped because the dispatcher was full.
+     */
+    public void recordEvent(Integer repositoryId, String projectKey, String repositorySlug,
+                            PullRequestAction action, boolean dispatched) {
+        events.add(new EventRecord(System.currentTimeMillis(), repositoryId, projectKey, repositorySlug, action,
+                                   dispatched));
+    }
+
+    /**
+     * Records a completed post.
+     *
+     * @param statusCode 0 if there was no response.
+     * @param error The reason of a failure, null if the post was accepted.
+     */
+    public void recordPost(String hookURL, PullRequestAction action, Outcome outcome, int statusCode,
+                           long latencyNanos, String error) {
+        deliveries.add(new DeliveryRecord(System.currentTimeMillis(), hookURL, action, outcome, statusCode,
+                                          latencyNanos, error));
+    }
+
+    /**
+     * Records a notification which was discarded without being posted.
+     */
+    public void recordDrop(String hookURL, PullRequestAction action, String reason) {
+        recordPost(hookURL, action, Outcome.DROPPED, 0, -1, reason);
+    }
+
+    /**
+     * @return The health per webhook and repository aggregated from the recent records.
+     */
+    public Report report() {
+        Report report = new Report();
+        report.generatedAt = System.currentTimeMillis();
+        report.eventCapacity = events.capacity();
+        report.deliveryCapacity = deliveries.capacity();
+
+        Map<String, HookReport> hooks = new TreeMap<String, HookReport>();
+        Map<String, List<Long>> latencies = new HashMap<String, List<Long>>();
+        // Keyed by the unmasked URL, so webhooks only differing in their secret are reported separately.
+        for (DeliveryRecord record : deliveries.snapshot()) {
+            HookReport hookReport = hooks.get(record.hookURL);
+            if (hookReport == null) {
+                hookReport = new HookReport();
+                hookReport.hook = maskHookURL(record.hookURL);
+                hooks.put(record.hookURL, hookReport);
+                latencies.put(record.hookURL, new ArrayList<Long>());
+            }
+            hookReport.count(record);
+            if (record.latencyNanos >= 0) latencies.get(record.hookURL).add(record.latencyNanos);
+        }
+        for (Map.Entry<String, HookReport> hook : hooks.entrySet()) {
+            hook.getValue().latency = LatencyReport.of(latencies.get(hook.getKey()));
+        }
+        report.hooks = new ArrayList<HookReport>(hooks.values());
+
+        Map<Integer, RepositoryReport> repositories = new TreeMap<Integer, RepositoryReport>();
+        for (EventRecord record : events.snapshot()) {
+            if (record.repositoryId == null) continue;
+
+            RepositoryReport repositoryReport = repositories.get(record.repositoryId);
+            if (repositoryReport == null) {
+                repositoryReport = new RepositoryReport();
+                repositoryReport.repositoryId = record.repositoryId;
+                repositories.put(record.repositoryId, repositoryReport);
+            }
+            repositoryReport.count(record);
+        }
+        report.repositories = new ArrayList<RepositoryReport>(repositories.values());
+
+        return report;
+    }
+
+    /**
+     * Hides the secret of a webhook URL, the last path segment of a Slack incoming webhook.
+     */
+    static String maskHookURL(String hookURL) {
+        int slash = hookURL.lastIndexOf('/');
+        int host = hookURL.indexOf("//");
+        if (slash < 0 || slash <= host + 1 || slash == hookURL.length() - 1) return hookURL;
+
+        return hookURL.substring(0, slash + 1) + "****";
+    }
+
+    private static final class EventRecord {
+        private final long time;
+        private final Integer repositoryId;
+        private final String projectKey;
+        private final String repositorySlug;
+        private final PullRequestAction action;
+        private final boolean dispatched;
+
+        private EventRecord(long time, Integer repositoryId, String projectKey, String repositorySlug,
+                            PullRequestAction action, boolean dispatched) {
+            this.time = time;
+            this.repositoryId = repositoryId;
+            this.projectKey = projectKey;
+            this.repositorySlug = repositorySlug;
+            this.action = action;
+            this.dispatched = dispatched;
+        }
+    }
+
+    private static final class DeliveryRecord {
+        private final long time;
+        private final String hookURL;
+        private final PullRequestAction action;
+        private final Outcome outcome;
+        private final int statusCode;
+        private final long latencyNanos;
+        private final String error;
+
+        private DeliveryRecord(long time, String hookURL, PullRequestAction action, Outcome outcome,
+                               int statusCode, long latencyNanos, String error) {
+            this.time = time;
+            this.hookURL = hookURL;
+            this.action = action;
+            this.outcome = outcome;
+            this.statusCode = statusCode;
+            this.latencyNanos = latencyNanos;
+            this.error = error;
+        }
+    }
+
+    /**
+     * The delivery health of this node, serialized as the response of the health resource.
+     */
+    public static final class Report {
+        public long generatedAt;
+        public int eventCapacity;
+        public int deliveryCapacity;
+        public List<HookReport> hooks;
+        public List<RepositoryReport> repositories;
+    }
+
+    public static final class HookReport {
+        public String hook;
+        public long sent;
+        public long failed;
+        public long rateLimited;
+        public long dropped;
+        public Long lastSuccessAt;
+        public ErrorReport lastError;
+        public LatencyReport latency;
+
+        private void count(DeliveryRecord record) {
+            switch (record.outcome) {
+                case SENT:
+                    sent++;
+                    lastSuccessAt = record.time;
+                    return;
+                case FAILED:
+                    failed++;
+                    break;
+                case RATE_LIMITED:
+                    rateLimited++;
+                    break;
+                case DROPPED:
+                    dropped++;
+                    break;
+            }
+            lastError = new ErrorReport(record);
+        }
+    }
+
+    public static final class ErrorReport {
+        public long at;
+        public String outcome;
+        public String action;
+        public Integer statusCode;
+        public String message;
+
+        private ErrorReport(DeliveryRecord record) {
+            this.at = record.time;
+            this.outcome = record.outcome.name();
+            this.action = record.action == null ? "DIGEST" : record.action.name();
+            this.statusCode = record.statusCode == 0 ? null : record.statusCode;
+            this.message = record.error;
+        }
+    }
+
+    /**
+     * Nearest rank percentiles of the recent round trips in milliseconds.
+     */
+    public static final class LatencyReport {
+        public int count;
+        public double p50;
+        public double p95;
+        public double p99;
+        public double max;
+
+        private static LatencyReport of(List<Long> latencies) {
+            LatencyReport report = new LatencyReport();
+            report.count = latencies.size();
+            if (latencies.isEmpty()) return report;
+
+            long[] sorted = new long[latencies.size()];
+            for (int i = 0; i < sorted.length; i++) {
+                sorted[i] = latencies.get(i);
+            }
+            Arrays.sort(sorted);
+            report.p50 = percentile(sorted, 0.50);
+            report.p95 = percentile(sorted, 0.95);
+            report.p99 = percentile(sorted, 0.99);
+            report.max = sorted[sorted.length - 1] / 1000000.0;
+            return report;
+        }
+
+        private static double percentile(long[] sorted, double quantile) {
+            int rank = (int) Math.ceil(quantile * sorted.length);
+            return sorted[Math.max(0, rank - 1)] / 1000000.0;
+        }
+    }
+
+    public static final class RepositoryReport {
+        public Integer repositoryId;
+        public String repository;
+        public long received;
+        public long dropped;
+        public Long lastEventAt;
+        public Map<String, Long> actions = new TreeMap<String, Long>();
+
+        private void count(EventRecord record) {
+            if (repository == null) repository = record.projectKey + "/" + record.repositorySlug;
+            received++;
+            if (!record.dispatched) dropped++;
+            lastEventAt = record.time;
+
+            String action = String.valueOf(record.action);
+            Long count = actions.get(action);
+            actions.put(action, count == null ? 1L : count + 1);
+        }
+    }
+}
@@ -0,0 +1,12 @@
+package net.khasegawa.stash.slacker.metrics;
+
+/**
+ * JMX view of a value read when it is queried.
+ *
+ * Created by Kazuki Hasegawa on 26/10/18.
+ *
+ * @author Kazuki Hasegawa
+ */
+public interface GaugeMBean {
+    long getValue();
+}
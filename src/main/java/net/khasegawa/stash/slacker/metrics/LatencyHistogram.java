@@ -0,0 +1,107 @@
+package net.khasegawa.stash.slacker.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock free histogram of durations with power of two buckets in microseconds.
+ *
+ * Recording is a few atomic increments, so it is cheap enough for every event and post.
+ * Percentiles are the upper bound of the bucket they fall in, so they overstate the latency by less than twice.
+ *
+ * Created by Kazuki Hasegawa on 26/10/18.
+ *
+ * @author Kazuki Hasegawa
+ */
+public final class LatencyHistogram implements LatencyHistogramMBean {
+    // Bucket i counts durations below 2^i microseconds, the last one counts everything longer.
+    private static final int BUCKETS = 36;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    /**
+     * Records the time elapsed since the start.
+     *
+     * @param startNanos A {@link System#nanoTime()} taken before the measured work.
+     */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    public void record(long nanos) {
+        if (nanos < 0) nanos = 0;
+
+        long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+        buckets.incrementAndGet(Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros)));
+        count.increment();
+        totalNanos.add(nanos);
+
+        long max = maxNanos.get();
+        while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+            max = maxNanos.get();
+        }
+    }
+
+    @Override
+    public long getCount() {
+        return count.sum();
+    }
+
+    @Override
+    public double getTotalMillis() {
+        return millis(totalNanos.sum());
+    }
+
+    @Override
+    public double getMeanMillis() {
+        long count = this.count.sum();
+        return count == 0 ? 0 : millis(totalNanos.sum()) / count;
+    }
+
+    @Override
+    public double getMaxMillis() {
+        return millis(maxNanos.get());
+    }
+
+    @Override
+    public double get50thPercentileMillis() {
+        return percentile(0.50);
+    }
+
+    @Override
+    public double get95thPercentileMillis() {
+        return percentile(0.95);
+    }
+
+    @Override
+    public double get99thPercentileMillis() {
+        return percentile(0.99);
+    }
+
+    private double percentile(double quantile) {
+        long[] counts = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets.get(i);
+            total += counts[i];
+        }
+        if (total == 0) return 0;
+
+        long rank = (long) Math.ceil(quantile * total);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS - 1; i++) {
+            seen += counts[i];
+            if (seen >= rank) return Math.min(getMaxMillis(), (1L << i) / 1000.0);
+        }
+        return getMaxMillis();
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1000000.0;
+    }
+}
@@ -0,0 +1,25 @@
+package net.khasegawa.stash.slacker.metrics;
+
+/**
+ * JMX view of a {@link LatencyHistogram}. All values cover the time since the plugin was enabled,
+ * the latency of an interval is the difference of the totals divided by the difference of the counts.
+ *
+ * Created by Kazuki Hasegawa on 26/10/18.
+ *
+ * @author Kazuki Hasegawa
+ */
+public interface LatencyHistogramMBean {
+    long getCount();
+
+    double getTotalMillis();
+
+    double getMeanMillis();
+
+    double getMaxMillis();
+
+    double get50thPercentileMillis();
+
+    double get95thPercentileMillis();
+
+    double get99thPercentileMillis();
+}
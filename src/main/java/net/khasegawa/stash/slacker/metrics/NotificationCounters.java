@@ -0,0 +1,63 @@
+package net.khasegawa.stash.slacker.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of the notifications of an action.
+ *
+ * Created by Kazuki Hasegawa on 26/10/18.
+ *
+ * @author Kazuki Hasegawa
+ */
+public final class NotificationCounters implements NotificationCountersMBean {
+    private final LongAdder received = new LongAdder();
+    private final LongAdder duplicates = new LongAdder();
+    private final LongAdder filteredOut = new LongAdder();
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+
+    public void received() {
+        received.increment();
+    }
+
+    public void duplicate() {
+        duplicates.increment();
+    }
+
+    public void filteredOut() {
+        filteredOut.increment();
+    }
+
+    public void sent() {
+        sent.increment();
+    }
+
+    public void failed() {
+        failed.increment();
+    }
+
+    @Override
+    public long getReceived() {
+        return received.sum();
+    }
+
+    @Override
+    public long getDuplicates() {
+        return duplicates.sum();
+    }
+
+    @Override
+    public long getFilteredOut() {
+        return filteredOut.sum();
+    }
+
+    @Override
+    public long getSent() {
+        return sent.sum();
+    }
+
+    @Override
+    public long getFailed() {
+        return failed.sum();
+    }
+}
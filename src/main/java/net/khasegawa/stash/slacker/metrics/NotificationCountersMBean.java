@@ -0,0 +1,35 @@
+package net.khasegawa.stash.slacker.metrics;
+
+/**
+ * JMX view of the {@link NotificationCounters} of an action, counted since the plugin was enabled.
+ *
+ * Created by Kazuki Hasegawa on 26/10/18.
+ *
+ * @author Kazuki Hasegawa
+ */
+public interface NotificationCountersMBean {
+    /**
+     * @return The events received from Bitbucket.
+     */
+    long getReceived();
+
+    /**
+     * @return The received events which were received before, and not notified again.
+     */
+    long getDuplicates();
+
+    /**
+     * @return The events not notified because of their configuration or filter.
+     */
+    long getFilteredOut();
+
+    /**
+     * @return The posts accepted by Slack.
+     */
+    long getSent();
+
+    /**
+     * @return The posts which got no response, or an error other than a rate limit.
+     */
+    long getFailed();
+}
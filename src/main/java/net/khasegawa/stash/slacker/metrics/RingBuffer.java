@@ -0,0 +1,53 @@
+package net.khasegawa.stash.slacker.metrics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Fixed size buffer of the most recent records, overwriting the oldest one.
+ *
+ * Adding is a single atomic increment and an ordered write, without locks or allocations.
+ * Readers see a consistent record per slot, but a snapshot may miss records added while it is taken.
+ *
+ * Created by Kazuki Hasegawa on 26/10/18.
+ *
+ * @author Kazuki Hasegawa
+ */
+final class RingBuffer<T> {
+    private final AtomicReferenceArray<T> slots;
+    private final int mask;
+    private final AtomicLong next = new AtomicLong();
+
+    /**
+     * @param capacity Rounded up to a power of two.
+     */
+    RingBuffer(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        this.slots = new AtomicReferenceArray<T>(size);
+        this.mask = size - 1;
+    }
+
+    void add(T record) {
+        slots.lazySet((int) (next.getAndIncrement() & mask), record);
+    }
+
+    /**
+     * @return The records from the oldest to the most recent.
+     */
+    List<T> snapshot() {
+        long end = next.get();
+        long start = Math.max(0, end - slots.length());
+        List<T> records = new ArrayList<T>((int) (end - start));
+        for (long i = start; i < end; i++) {
+            T record = slots.get((int) (i & mask));
+            if (record != null) records.add(record);
+        }
+        return records;
+    }
+
+    int capacity() {
+        return slots.length();
+    }
+}
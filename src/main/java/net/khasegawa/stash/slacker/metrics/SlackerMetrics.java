@@ -0,0 +1,161 @@
+package net.khasegawa.stash.slacker.metrics;
+
+import com.atlassian.bitbucket.pull.PullRequestAction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Counters, latencies and gauges of the notification pipeline, exposed as JMX MBeans of the platform MBean server.
+ *
+ * The MBeans are registered when the plugin is enabled and unregistered when it is disabled:
+ * <ul>
+ *     <li>net.khasegawa.stash.slacker:type=Notifications,action=OPENED and the other notified actions,
+ *     action=DIGEST for the posts of digests</li>
+ *     <li>net.khasegawa.stash.slacker:type=Latency,name=ConfigLookup, PayloadBuild and HttpRoundTrip</li>
+ *     <li>net.khasegawa.stash.slacker:type=Gauge,name=... registered by the other components</li>
+ * </ul>
+ *
+ * Created by Kazuki Hasegawa on 26/10/18.
+ *
+ * @author Kazuki Hasegawa
+ */
+public class SlackerMetrics implements InitializingBean, DisposableBean {
+    private static final Logger logger = LoggerFactory.getLogger(SlackerMetrics.class);
+
+    public static final String DOMAIN = "net.khasegawa.stash.slacker";
+
+    /**
+     * The actions with their own counters, the others are never notified.
+     */
+    public static final Set<PullRequestAction> NOTIFIED_ACTIONS = EnumSet.of(
+            PullRequestAction.OPENED, PullRequestAction.REOPENED, PullRequestAction.UPDATED,
+            PullRequestAction.RESCOPED, PullRequestAction.MERGED, PullRequestAction.DECLINED,
+            PullRequestAction.COMMENTED);
+
+    private static final String DIGEST = "DIGEST";
+
+    // Indexed by the ordinal of the action.
+    private final NotificationCounters[] counters = new NotificationCounters[PullRequestAction.values().length];
+    private final NotificationCounters digestCounters = new NotificationCounters();
+    private final LatencyHistogram configLookup = new LatencyHistogram();
+    private final LatencyHistogram payloadBuild = new LatencyHistogram();
+    private final LatencyHistogram httpRoundTrip = new LatencyHistogram();
+
+    private final MBeanServer server;
+    // Guarded by itself.
+    private final Map<ObjectName, StandardMBean> mbeans = new LinkedHashMap<ObjectName, StandardMBean>();
+    private boolean registered;
+
+    public SlackerMetrics() {
+        this.server = ManagementFactory.getPlatformMBeanServer();
+        for (int i = 0; i < counters.length; i++) {
+            counters[i] = new NotificationCounters();
+        }
+
+        for (PullRequestAction action : NOTIFIED_ACTIONS) {
+            add("type=Notifications,action=" + action.name(), counters[action.ordinal()],
+                NotificationCountersMBean.class);
+        }
+        add("type=Notifications,action=" + DIGEST, digestCounters, NotificationCountersMBean.class);
+        add("type=Latency,name=ConfigLookup", configLookup, LatencyHistogramMBean.class);
+        add("type=Latency,name=PayloadBuild", payloadBuild, LatencyHistogramMBean.class);
+        add("type=Latency,name=HttpRoundTrip", httpRoundTrip, LatencyHistogramMBean.class);
+    }
+
+    /**
+     * @param action null for a digest of several notifications.
+     */
+    public NotificationCounters getCounters(PullRequestAction action) {
+        return action == null ? digestCounters : counters[action.ordinal()];
+    }
+
+    public LatencyHistogram getConfigLookup() {
+        return configLookup;
+    }
+
+    public LatencyHistogram getPayloadBuild() {
+        return payloadBuild;
+    }
+
+    public LatencyHistogram getHttpRoundTrip() {
+        return httpRoundTrip;
+    }
+
+    /**
+     * Exposes a value of a component, registered at once if the plugin is already enabled.
+     *
+     * @param name The name property of the MBean, such as "OutboxInFlight".
+     */
+    public void gauge(String name, GaugeMBean gauge) {
+        add("type=Gauge,name=" + name, gauge, GaugeMBean.class);
+    }
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        synchronized (mbeans) {
+            registered = true;
+            for (Map.Entry<ObjectName, StandardMBean> mbean : mbeans.entrySet()) {
+                register(mbean.getKey(), mbean.getValue());
+            }
+        }
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        List<ObjectName> names;
+        synchronized (mbeans) {
+            registered = false;
+            names = new ArrayList<ObjectName>(mbeans.keySet());
+        }
+
+        for (ObjectName name : names) {
+            try {
+                if (server.isRegistered(name)) server.unregisterMBean(name);
+            } catch (JMException e) {
+                logger.warn("Failed to unregister {}", name, e);
+            }
+        }
+    }
+
+    private <T> void add(String properties, T mbean, Class<T> type) {
+        ObjectName name;
+        StandardMBean standardMBean;
+        try {
+            name = new ObjectName(DOMAIN + ":" + properties);
+            standardMBean = new StandardMBean(mbean, type);
+        } catch (JMException e) {
+            throw new IllegalArgumentException(e);
+        }
+
+        synchronized (mbeans) {
+            mbeans.put(name, standardMBean);
+            if (registered) register(name, standardMBean);
+        }
+    }
+
+    /**
+     * Replaces an MBean left behind by a previous instance of the plugin which was not disabled cleanly.
+     */
+    private void register(ObjectName name, StandardMBean mbean) {
+        try {
+            if (server.isRegistered(name)) server.unregisterMBean(name);
+            server.registerMBean(mbean, name);
+        } catch (JMException e) {
+            logger.warn("Failed to register {}", name, e);
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package net.khasegawa.stash.slacker.rest;
+
+import com.atlassian.bitbucket.AuthorisationException;
+import com.atlassian.bitbucket.permission.Permission;
+import com.atlassian.bitbucket.permission.PermissionValidationService;
+import com.google.gson.Gson;
+import net.khasegawa.stash.slacker.metrics.DeliveryHealth;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+
+/**
+ * Reports the {@link DeliveryHealth} of the node serving the request to administrators,
+ * at /rest/slacker/1.0/health.
+ *
+ * The secret path segment of the webhook URLs is masked. Anonymous requests are answered with 401 Unauthorized,
+ * and those of users who are not administrators with 403 Forbidden.
+ *
+ * Created by Kazuki Hasegawa on 26/10/18.
+ *
+ * @author Kazuki Hasegawa
+ */
+@Path("/health")
+@Produces(MediaType.APPLICATION_JSON)
+public class DeliveryHealthResource {
+    private static final Logger logger = LoggerFactory.getLogger(DeliveryHealthResource.class);
+
+    private static final Gson GSON = new Gson();
+
+    private final PermissionValidationService permissionValidationService;
+    private final DeliveryHealth health;
+
+    public DeliveryHealthResource(PermissionValidationService permissionValidationService,
+                                  DeliveryHealth health) {
+        this.permissionValidationService = permissionValidationService;
+        this.health = health;
+    }
+
+    @GET
+    public Response getHealth() {
+        try {
+            permissionValidationService.validateAuthenticated();
+        } catch (AuthorisationException e) {
+            return Response.status(Response.Status.UNAUTHORIZED).build();
+        }
+        try {
+            permissionValidationService.validateForGlobal(Permission.ADMIN);
+        } catch (AuthorisationException e) {
+            logger.warn("A user without the admin permission tried to access the Slacker delivery health");
+            return Response.status(Response.Status.FORBIDDEN).build();
+        }
+
+        return Response.ok(GSON.toJson(health.report()), MediaType.APPLICATION_JSON_TYPE).build();
+    }
+}
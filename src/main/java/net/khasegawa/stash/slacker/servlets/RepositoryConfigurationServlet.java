@@ -8,8 +8,13 @@ import com.atlassian.bitbucket.repository.RepositoryService;
 import com.atlassian.bitbucket.permission.Permission;
 import com.atlassian.bitbucket.permission.PermissionValidationService;
 import com.google.common.collect.ImmutableMap;
-import net.khasegawa.stash.slacker.activeobjects.RepositoryConfiguration;
 import net.khasegawa.stash.slacker.configurations.ConfigurationService;
+import net.khasegawa.stash.slacker.configurations.ConfigurationValues;
+import net.khasegawa.stash.slacker.configurations.DeliveryTargets;
+import net.khasegawa.stash.slacker.configurations.EffectiveConfiguration;
+import net.khasegawa.stash.slacker.configurations.InvalidConfigurationException;
+import net.khasegawa.stash.slacker.configurations.MessageTemplates;
+import net.khasegawa.stash.slacker.configurations.UserMapJSON;
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -20,9 +25,11 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
 import java.sql.SQLException;
+import java.util.Map;
 
 public class RepositoryConfigurationServlet extends HttpServlet {
     private static final Logger logger = LoggerFactory.getLogger(RepositoryConfigurationServlet.class);
+    private static final String ERRORS_ATTRIBUTE = "slacker.errors";
 
     private final PermissionValidationService permissionValidationService;
     private final RepositoryService repositoryService;
@@ -40,6 +47,7 @@ public class RepositoryConfigurationServlet extends HttpServlet {
     }
 
     @Override
+    @SuppressWarnings("unchecked")
     protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
         Repository repository = searchRepositoryByRequest(req);
         if (repository == null) {
@@ -57,8 +65,21 @@ public class RepositoryConfigurationServlet extends HttpServlet {
 
         resp.setContentType("text/html;charset=UTF-8");
 
+        Map<String, String> errors = (Map<String, String>) req.getAttribute(ERRORS_ATTRIBUTE);
+        if (errors == null) errors = ImmutableMap.of();
+
         try {
-            RepositoryConfiguration configuration = configurationService.getRepositoryConfiguration(repository.getId());
+            EffectiveConfiguration effectiveConfiguration = configurationService.getEffectiveConfiguration(
+                    repository.getProject().getId(), repository.getId());
+            ConfigurationValues configuration = effectiveConfiguration.getRepositoryConfiguration();
+            if (configuration == null) configuration = ConfigurationValues.DEFAULTS;
+            ConfigurationValues projectConfiguration = effectiveConfiguration.getProjectConfiguration();
+            String userMapJSON = errors.containsKey(UserMapJSON.FIELD) ?
+                    req.getParameter(UserMapJSON.FIELD) : configuration.getUserMapJSON();
+            String messageTemplates = errors.containsKey(MessageTemplates.FIELD) ?
+                    req.getParameter(MessageTemplates.FIELD) : configuration.getMessageTemplates();
+            String deliveryTargets = errors.containsKey(DeliveryTargets.FIELD) ?
+                    req.getParameter(DeliveryTargets.FIELD) : configuration.getDeliveryTargets();
 
             this.soyTemplateRenderer.render(
                     resp.getWriter(),
@@ -78,7 +99,24 @@ public class RepositoryConfigurationServlet extends HttpServlet {
                             .put("notifyPRCommented", configuration.getNotifyPRCommented())
                             .put("ignoreWIP", configuration.getIgnoreWIP())
                             .put("ignoreNotCrossRepository", configuration.getIgnoreNotCrossRepository())
-                            .put("userMapJSON", StringUtils.defaultString(configuration.getUserMapJSON()))
+                            .put("userMapJSON", StringUtils.defaultString(userMapJSON))
+                            .put("messageTemplates", StringUtils.defaultString(messageTemplates))
+                            .put("deliveryTargets", StringUtils.defaultString(deliveryTargets))
+                            .put("excludeAuthors", StringUtils.defaultString(configuration.getExcludeAuthors()))
+                            .put("includeAuthors", StringUtils.defaultString(configuration.getIncludeAuthors()))
+                            .put("sourceBranches", StringUtils.defaultString(configuration.getSourceBranches()))
+                            .put("targetBranches", StringUtils.defaultString(configuration.getTargetBranches()))
+                            .put("titleFilter", StringUtils.defaultString(configuration.getTitleFilter()))
+                            .put("digestIntervalSeconds", String.valueOf(configuration.getDigestIntervalSeconds()))
+                            .put("maxTextCharacters", String.valueOf(configuration.getMaxTextCharacters()))
+                            .put("maxTextBytes", String.valueOf(configuration.getMaxTextBytes()))
+                            .put("compactUpdates", configuration.getCompactUpdates())
+                            .put("quietWindowSeconds", String.valueOf(configuration.getQuietWindowSeconds()))
+                            .put("errors", errors)
+                            .put("projectHookURL", projectConfiguration == null ?
+                                    "" : StringUtils.defaultString(projectConfiguration.getHookURL()))
+                            .put("projectChannel", projectConfiguration == null ?
+                                    "" : StringUtils.defaultString(projectConfiguration.getChannel()))
                             .build()
             );
         } catch (SoyException e) {
@@ -112,6 +150,9 @@ public class RepositoryConfigurationServlet extends HttpServlet {
 
         try {
             configurationService.setRepositoryConfigurationByHttpServletRequest(repository.getId(), req);
+        } catch (InvalidConfigurationException e) {
+            req.setAttribute(ERRORS_ATTRIBUTE, ImmutableMap.of(e.getField(), e.getMessage()));
+            resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
         } catch (SQLException e) {
             logger.error(e.getMessage());
         }
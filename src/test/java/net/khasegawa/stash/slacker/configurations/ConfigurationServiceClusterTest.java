@@ -0,0 +1,158 @@
+package net.khasegawa.stash.slacker.configurations;
+
+import com.atlassian.bitbucket.pull.PullRequestAction;
+import net.khasegawa.stash.slacker.activeobjects.ConfigurationChange;
+import net.khasegawa.stash.slacker.activeobjects.RepositoryConfiguration;
+import net.khasegawa.stash.slacker.testing.InMemoryActiveObjects;
+import net.khasegawa.stash.slacker.testing.StubPropertiesService;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Runs two {@link ConfigurationServiceImpl}s on one in-memory database, like the nodes of a cluster,
+ * and checks that a configuration saved on one node replaces the snapshot of the other.
+ *
+ * Created by Kazuki Hasegawa on 26/10/18.
+ *
+ * @author Kazuki Hasegawa
+ */
+public class ConfigurationServiceClusterTest {
+    private static final long TIMEOUT_MILLIS = 10000;
+    private static final Integer PROJECT_ID = 3;
+    private static final Integer REPOSITORY_ID = 7;
+    private static final Integer OTHER_REPOSITORY_ID = 8;
+
+    private final InMemoryActiveObjects activeObjects = new InMemoryActiveObjects();
+    private final List<ConfigurationServiceImpl> nodes = new ArrayList<ConfigurationServiceImpl>();
+    private ConfigurationServiceImpl first;
+    private ConfigurationServiceImpl second;
+
+    @Before
+    public void startNodes() throws Exception {
+        first = startNode();
+        second = startNode();
+        // Let both load their snapshots before anything is saved.
+        Thread.sleep(500);
+    }
+
+    @After
+    public void stopNodes() throws Exception {
+        for (ConfigurationServiceImpl node : nodes) {
+            node.destroy();
+        }
+    }
+
+    @Test
+    public void savedConfigurationIsReloadedByOtherNodes() throws Exception {
+        NotifyTarget target = new NotifyTarget("https://hooks.slack.com/services/T000/B002/YYY", "#release",
+                                               EnumSet.of(PullRequestAction.MERGED));
+        first.setRepositoryConfiguration(REPOSITORY_ID, values("https://hooks.slack.com/services/T000/B001/XXX",
+                                                               Collections.singletonList(target)));
+        first.setProjectConfiguration(PROJECT_ID, values("https://hooks.slack.com/services/T000/B003/ZZZ",
+                                                         Collections.<NotifyTarget>emptyList()));
+
+        // The saving node publishes at once.
+        assertEquals("https://hooks.slack.com/services/T000/B001/XXX",
+                     first.findRepositoryConfiguration(REPOSITORY_ID).getHookURL());
+        awaitRepositoryHookURL(second, REPOSITORY_ID, "https://hooks.slack.com/services/T000/B001/XXX");
+        awaitProjectHookURL(second, "https://hooks.slack.com/services/T000/B003/ZZZ");
+
+        List<NotifyTarget> targets = second.findRepositoryConfiguration(REPOSITORY_ID).getTargets();
+        assertEquals(1, targets.size());
+        assertEquals(target.getHookURL(), targets.get(0).getHookURL());
+        assertEquals(target.getChannel(), targets.get(0).getChannel());
+        assertEquals(target.getEvents(), targets.get(0).getEvents());
+
+        second.setRepositoryConfiguration(REPOSITORY_ID, values("https://hooks.slack.com/services/T000/B004/WWW",
+                                                                Collections.<NotifyTarget>emptyList()));
+        awaitRepositoryHookURL(first, REPOSITORY_ID, "https://hooks.slack.com/services/T000/B004/WWW");
+        assertEquals(0, first.findRepositoryConfiguration(REPOSITORY_ID).getTargets().size());
+    }
+
+    @Test
+    public void changeCommittedAfterLaterChangesIsReloaded() throws Exception {
+        first.setRepositoryConfiguration(REPOSITORY_ID, values("https://hooks.slack.com/services/T000/B001/XXX",
+                                                               Collections.<NotifyTarget>emptyList()));
+        awaitRepositoryHookURL(second, REPOSITORY_ID, "https://hooks.slack.com/services/T000/B001/XXX");
+
+        // A configuration of another repository, stored by a transaction which has not committed its change yet.
+        Map<String, Object> row = new HashMap<String, Object>(repositoryConfiguration(REPOSITORY_ID));
+        row.put("REPOSITORY_ID", OTHER_REPOSITORY_ID);
+        row.put("HOOK_URL", "https://hooks.slack.com/services/T000/B005/VVV");
+        activeObjects.put(RepositoryConfiguration.class, 1000, row);
+        Thread.sleep(2500);
+        assertNull(second.findRepositoryConfiguration(OTHER_REPOSITORY_ID).getHookURL());
+
+        // Its change got an ID below the polled ones and a time before the last poll, and commits now.
+        Map<String, Object> change = new HashMap<String, Object>();
+        change.put("REPOSITORY_ID", OTHER_REPOSITORY_ID);
+        change.put("CHANGED_AT", System.currentTimeMillis() - 3000);
+        activeObjects.put(ConfigurationChange.class, 0, change);
+        awaitRepositoryHookURL(second, OTHER_REPOSITORY_ID, "https://hooks.slack.com/services/T000/B005/VVV");
+    }
+
+    private ConfigurationServiceImpl startNode() throws Exception {
+        ConfigurationServiceImpl node = new ConfigurationServiceImpl(
+                activeObjects.proxy(), StubPropertiesService.of("plugin.slacker.configuration.poll.interval", "1"),
+                null, null);
+        node.afterPropertiesSet();
+        nodes.add(node);
+        return node;
+    }
+
+    private static ConfigurationValues values(String hookURL, List<NotifyTarget> targets) {
+        return ConfigurationValues.builder()
+                .hookURL(hookURL)
+                .notifyPROpened(true)
+                .notifyPRReopened(true)
+                .notifyPRUpdated(true)
+                .notifyPRRescoped(true)
+                .notifyPRMerged(true)
+                .notifyPRDeclined(true)
+                .notifyPRCommented(false)
+                .ignoreWIP(false)
+                .ignoreNotCrossRepository(false)
+                .quietWindowSeconds(0)
+                .digestIntervalSeconds(0)
+                .maxTextCharacters(0)
+                .maxTextBytes(0)
+                .compactUpdates(false)
+                .targets(targets)
+                .build();
+    }
+
+    private Map<String, Object> repositoryConfiguration(Integer repositoryId) {
+        for (Map<String, Object> row : activeObjects.rows(RepositoryConfiguration.class).values()) {
+            if (repositoryId.equals(row.get("REPOSITORY_ID"))) return row;
+        }
+        throw new AssertionError("Repository configuration was not saved");
+    }
+
+    private static void awaitRepositoryHookURL(ConfigurationServiceImpl node, Integer repositoryId, String hookURL)
+            throws Exception {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (!hookURL.equals(node.findRepositoryConfiguration(repositoryId).getHookURL())) {
+            if (System.currentTimeMillis() > deadline) throw new AssertionError("Not reloaded: " + hookURL);
+            Thread.sleep(50);
+        }
+    }
+
+    private static void awaitProjectHookURL(ConfigurationServiceImpl node, String hookURL) throws Exception {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (!hookURL.equals(node.findProjectConfiguration(PROJECT_ID).getHookURL())) {
+            if (System.currentTimeMillis() > deadline) throw new AssertionError("Not reloaded: " + hookURL);
+            Thread.sleep(50);
+        }
+    }
+}
@@ -0,0 +1,299 @@
+package net.khasegawa.stash.slacker.deliveries;
+
+import com.atlassian.bitbucket.pull.PullRequestAction;
+import com.atlassian.bitbucket.server.ApplicationPropertiesService;
+import net.khasegawa.stash.slacker.activeobjects.OutboxEntry;
+import net.khasegawa.stash.slacker.metrics.DeliveryHealth;
+import net.khasegawa.stash.slacker.metrics.SlackerMetrics;
+import net.khasegawa.stash.slacker.testing.InMemoryActiveObjects;
+import net.khasegawa.stash.slacker.testing.InMemoryClusterLockService;
+import net.khasegawa.stash.slacker.testing.StubPropertiesService;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpVersion;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.message.BasicStatusLine;
+import org.apache.http.util.EntityUtils;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs several {@link DeliveryOutbox}es on one in-memory table and cluster lock, like the nodes of a cluster,
+ * and checks that every delivery is posted exactly once, also when a claim expires while its entry is queued,
+ * and that a webhook is claimed by one node at a time.
+ *
+ * Created by Kazuki Hasegawa on 26/10/18.
+ *
+ * @author Kazuki Hasegawa
+ */
+public class DeliveryOutboxClusterTest {
+    private static final String HOOK_URL = "https://hooks.slack.com/services/T000/B000/XXX";
+    private static final String OTHER_HOOK_URL = "https://hooks.slack.com/services/T000/B001/YYY";
+    private static final long TIMEOUT_MILLIS = 20000;
+    private static final int RETRY_AFTER_SECONDS = 2;
+
+    private final InMemoryActiveObjects activeObjects = new InMemoryActiveObjects();
+    private final InMemoryClusterLockService lockService = new InMemoryClusterLockService();
+    // Payloads Slack accepted from any node.
+    private final List<String> accepted = Collections.synchronizedList(new ArrayList<String>());
+    private final List<Node> nodes = new ArrayList<Node>();
+
+    @After
+    public void stop() throws Exception {
+        for (Node node : nodes) {
+            node.stop();
+        }
+    }
+
+    @Test
+    public void everyDeliveryIsPostedOnceByOneNode() throws Exception {
+        Node[] cluster = { start(100, 500, 500), start(100, 500), start(100) };
+        for (int i = 0; i < 150; i++) {
+            cluster[i % cluster.length].outbox.enqueue(delivery(i));
+        }
+
+        awaitAccepted(150);
+        assertDeliveredOnce(150);
+    }
+
+    @Test
+    public void webhookIsPostedToByOneNodeAtATime() throws Exception {
+        Node[] cluster = { start(50), start(50), start(50) };
+        for (int i = 0; i < 120; i++) {
+            cluster[i % cluster.length].outbox.enqueue(delivery(i, i % 2 == 0 ? HOOK_URL : OTHER_HOOK_URL));
+        }
+
+        final Set<String> shared = Collections.synchronizedSet(new HashSet<String>());
+        Thread watcher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!Thread.currentThread().isInterrupted()) {
+                    shared.addAll(sharedWebhooks());
+                    try {
+                        Thread.sleep(2);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        });
+        watcher.start();
+        try {
+            awaitAccepted(120);
+        } finally {
+            watcher.interrupt();
+            watcher.join();
+        }
+
+        assertTrue("claimed by several nodes at once: " + shared, shared.isEmpty());
+        assertDeliveredOnce(120);
+    }
+
+    @Test
+    public void expiredClaimIsPostedByTheNewOwnerOnly() throws Exception {
+        // Polls only when a delivery is enqueued or completed, so it does not claim the expired entries itself.
+        Node first = start(60000, 429);
+        for (int i = 0; i < 5; i++) {
+            first.outbox.enqueue(delivery(i));
+        }
+        awaitPosts(first, 1);
+        awaitClaimed(5);
+
+        expireClaims();
+        long pausedUntil = System.currentTimeMillis() + RETRY_AFTER_SECONDS * 1000;
+        Node second = start(100);
+        awaitAccepted(5);
+
+        // The first node skips the entries it queued once its pause ends, they are not its own anymore.
+        Thread.sleep(Math.max(0, pausedUntil - System.currentTimeMillis()) + 1000);
+        assertEquals(1, first.client.posts.get());
+        assertEquals(5, second.client.posts.get());
+        assertDeliveredOnce(5);
+    }
+
+    @Test
+    public void ownExpiredClaimIsNotQueuedTwice() throws Exception {
+        Node node = start(100, 429);
+        for (int i = 0; i < 5; i++) {
+            node.outbox.enqueue(delivery(i));
+        }
+        awaitPosts(node, 1);
+        awaitClaimed(5);
+
+        // Claimed again by the same node while they wait behind the rate limit.
+        expireClaims();
+        awaitAccepted(5);
+
+        Thread.sleep(1000);
+        assertEquals(6, node.client.posts.get());
+        assertDeliveredOnce(5);
+    }
+
+    private Node start(int pollInterval, int... statusCodes) throws Exception {
+        Node node = new Node(StubPropertiesService.of(
+                "plugin.slacker.outbox.poll.interval", String.valueOf(pollInterval),
+                "plugin.slacker.outbox.batch.size", "10",
+                "plugin.slacker.retry.base.delay", "50",
+                "plugin.slacker.retry.max.delay", "200",
+                "plugin.slacker.rate.per.minute", "60000",
+                "plugin.slacker.rate.burst", "100"), statusCodes);
+        nodes.add(node);
+        return node;
+    }
+
+    private static Delivery delivery(int i) {
+        return delivery(i, HOOK_URL);
+    }
+
+    private static Delivery delivery(int i, String hookURL) {
+        return new Delivery(PullRequestAction.OPENED, hookURL, "{\"text\":\"" + i + "\"}");
+    }
+
+    /**
+     * @return The webhooks with live claims of more than one outbox.
+     */
+    private Set<String> sharedWebhooks() {
+        long now = System.currentTimeMillis();
+        Map<String, String> owners = new HashMap<String, String>();
+        Set<String> shared = new HashSet<String>();
+        for (Map<String, Object> row : activeObjects.rows(OutboxEntry.class).values()) {
+            String owner = (String) row.get("CLAIMED_BY");
+            if (owner == null || (Long) row.get("NEXT_ATTEMPT_AT") <= now) continue;
+
+            String hookURL = (String) row.get("HOOK_URL");
+            String previous = owners.put(hookURL, owner);
+            if (previous != null && !previous.equals(owner)) shared.add(hookURL);
+        }
+        return shared;
+    }
+
+    private void expireClaims() {
+        for (Integer id : activeObjects.rows(OutboxEntry.class).keySet()) {
+            activeObjects.update(OutboxEntry.class, id, "NEXT_ATTEMPT_AT", 0L);
+        }
+    }
+
+    private void awaitAccepted(final int count) throws InterruptedException {
+        await("accepted " + count, new Condition() {
+            @Override
+            public boolean isMet() {
+                return accepted.size() >= count && activeObjects.size(OutboxEntry.class) == 0;
+            }
+        });
+    }
+
+    private void awaitPosts(final Node node, final int count) throws InterruptedException {
+        await("posted " + count, new Condition() {
+            @Override
+            public boolean isMet() {
+                return node.client.posts.get() >= count;
+            }
+        });
+    }
+
+    private void awaitClaimed(final int count) throws InterruptedException {
+        await("claimed " + count, new Condition() {
+            @Override
+            public boolean isMet() {
+                Map<Integer, Map<String, Object>> rows = activeObjects.rows(OutboxEntry.class);
+                if (rows.size() != count) return false;
+                for (Map<String, Object> row : rows.values()) {
+                    if (row.get("CLAIMED_BY") == null) return false;
+                }
+                return true;
+            }
+        });
+    }
+
+    private void assertDeliveredOnce(int count) {
+        List<String> payloads;
+        synchronized (accepted) {
+            payloads = new ArrayList<String>(accepted);
+        }
+        assertEquals("accepted " + payloads, count, payloads.size());
+        assertEquals("duplicates in " + payloads, count, new HashSet<String>(payloads).size());
+        for (int i = 0; i < count; i++) {
+            assertTrue("lost " + i, payloads.contains(delivery(i).getPayload()));
+        }
+        assertEquals(0, activeObjects.size(OutboxEntry.class));
+        assertEquals(count, activeObjects.getInserted(OutboxEntry.class));
+    }
+
+    private static void await(String description, Condition condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (!condition.isMet()) {
+            if (System.currentTimeMillis() > deadline) throw new AssertionError("Timed out waiting until " + description);
+            Thread.sleep(20);
+        }
+    }
+
+    private interface Condition {
+        boolean isMet();
+    }
+
+    /**
+     * A node of the cluster, with its own outbox, deliverer and Slack.
+     */
+    private final class Node {
+        private final ScriptedSlackClient client;
+        private final WebhookDeliverer deliverer;
+        private final DeliveryOutbox outbox;
+
+        private Node(ApplicationPropertiesService propertiesService, int... statusCodes) throws Exception {
+            SlackerMetrics metrics = new SlackerMetrics();
+            DeliveryHealth health = new DeliveryHealth(propertiesService);
+            client = new ScriptedSlackClient(propertiesService, statusCodes);
+            deliverer = new WebhookDeliverer(propertiesService, client, metrics, health);
+            outbox = new DeliveryOutbox(activeObjects.proxy(), lockService.proxy(), propertiesService, deliverer,
+                                        metrics, health);
+            outbox.afterPropertiesSet();
+        }
+
+        private void stop() throws Exception {
+            outbox.destroy();
+            deliverer.destroy();
+            client.destroy();
+        }
+    }
+
+    /**
+     * Answers the scripted status codes in turn, then 200, and records the accepted payloads.
+     */
+    private final class ScriptedSlackClient extends SlackClient {
+        private final ConcurrentLinkedQueue<Integer> statusCodes = new ConcurrentLinkedQueue<Integer>();
+        private final AtomicInteger posts = new AtomicInteger();
+
+        private ScriptedSlackClient(ApplicationPropertiesService propertiesService, int... statusCodes) {
+            super(propertiesService);
+            for (int statusCode : statusCodes) {
+                this.statusCodes.add(statusCode);
+            }
+        }
+
+        @Override
+        public SlackResponse post(String hookURL, HttpEntity entity) throws IOException {
+            posts.incrementAndGet();
+            Integer statusCode = statusCodes.poll();
+            if (statusCode == null) statusCode = 200;
+
+            BasicHttpResponse response = new BasicHttpResponse(
+                    new BasicStatusLine(HttpVersion.HTTP_1_1, statusCode, statusCode == 200 ? "OK" : "Error"));
+            if (statusCode == 429) response.addHeader("Retry-After", String.valueOf(RETRY_AFTER_SECONDS));
+            if (statusCode == 200) accepted.add(EntityUtils.toString(entity));
+            return SlackResponse.of(response);
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package net.khasegawa.stash.slacker.hooks;
+
+import com.atlassian.bitbucket.pull.PullRequestAction;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that {@link DuplicateEventCache} forgets removed keys and still finds the keys probed past them.
+ *
+ * Created by Kazuki Hasegawa on 26/10/18.
+ *
+ * @author Kazuki Hasegawa
+ */
+public class DuplicateEventCacheTest {
+    private static final long NOW = System.currentTimeMillis();
+
+    @Test
+    public void removedKeyIsAddedAgain() {
+        DuplicateEventCache cache = new DuplicateEventCache(600, 100);
+        long key = DuplicateEventCache.key(1, 42L, PullRequestAction.OPENED, 0);
+
+        assertTrue(cache.add(key, NOW));
+        assertFalse(cache.add(key, NOW));
+        cache.remove(key);
+        assertEquals(0, cache.size());
+        assertTrue(cache.add(key, NOW));
+        assertFalse(cache.add(key, NOW));
+    }
+
+    @Test
+    public void collidingKeysSurviveRemoval() {
+        DuplicateEventCache cache = new DuplicateEventCache(600, 100);
+        // Keys with the same low bits share a home slot and are probed one after another.
+        long[] keys = new long[8];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = 5L + ((long) (i + 1) << 40);
+            assertTrue(cache.add(keys[i], NOW));
+        }
+
+        for (int removed = 0; removed < keys.length; removed += 2) {
+            cache.remove(keys[removed]);
+        }
+        assertEquals(keys.length / 2, cache.size());
+        for (int i = 0; i < keys.length; i++) {
+            assertEquals("key " + i, i % 2 == 0, cache.add(keys[i], NOW));
+        }
+    }
+
+    @Test
+    public void removingUnknownKeyKeepsOthers() {
+        DuplicateEventCache cache = new DuplicateEventCache(600, 100);
+        long key = DuplicateEventCache.key(1, 42L, PullRequestAction.MERGED, 3);
+
+        assertTrue(cache.add(key, NOW));
+        cache.remove(key + 1);
+        assertFalse(cache.add(key, NOW));
+    }
+
+    @Test
+    public void nothingIsRememberedWithoutTimeToLive() {
+        DuplicateEventCache cache = new DuplicateEventCache(0, 100);
+
+        assertTrue(cache.add(1L, NOW));
+        cache.remove(1L);
+        assertTrue(cache.add(1L, NOW));
+    }
+}
@@ -0,0 +1,104 @@
+package net.khasegawa.stash.slacker.hooks;
+
+import com.google.gson.Gson;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the hand written adapters of {@link PayloadGson} write the same JSON as the reflective adapters
+ * of a plain Gson, and read it back.
+ *
+ * Created by Kazuki Hasegawa on 26/10/18.
+ *
+ * @author Kazuki Hasegawa
+ */
+public class PayloadGsonTest {
+    private static final Gson REFLECTIVE = new Gson();
+
+    @Test
+    public void emptyPayload() {
+        assertSameJson(new Payload());
+    }
+
+    @Test
+    public void nullValues() {
+        Payload payload = new Payload();
+        payload.text = "opened";
+        payload.attachments = null;
+
+        assertSameJson(payload);
+        Payload read = PayloadGson.fromJson(PayloadGson.toJson(payload));
+        assertNull(read.channel);
+        assertTrue(read.attachments.isEmpty());
+    }
+
+    @Test
+    public void emptyAttachments() {
+        Payload payload = new Payload();
+        payload.channel = "#general";
+        payload.attachments = new ArrayList<Attachment>();
+
+        assertSameJson(payload);
+        assertTrue(PayloadGson.fromJson(PayloadGson.toJson(payload)).attachments.isEmpty());
+    }
+
+    @Test
+    public void fields() {
+        Attachment attachment = new Attachment();
+        attachment.title = "#42: Fix the build";
+        attachment.title_link = "https://bitbucket.example.com/projects/P/repos/r/pull-requests/42";
+        attachment.color = "good";
+        attachment.fields = Arrays.asList(field("Reviewers", "alice, bob", true), field("Branch", "feature", false));
+
+        Payload payload = new Payload();
+        payload.username = "Slacker";
+        payload.icon_emoji = ":robot_face:";
+        payload.attachments.add(attachment);
+
+        assertSameJson(payload);
+    }
+
+    @Test
+    public void htmlEscapedText() {
+        Attachment attachment = new Attachment();
+        attachment.pretext = "<@U123> merged <https://example.com/?a=1&b=2|#1>";
+        attachment.text = "It's \"done\" = <b>\u2026</b>\n\ttab   line separator";
+        attachment.fallback = "\u3053\u3093\u306b\u3061\u306f \ud83d\ude00 \u2028";
+        attachment.fields = Arrays.asList(field("</script>", "a='b'", false));
+
+        Payload payload = new Payload();
+        payload.text = "<script>alert('x')</script> & more";
+        payload.emoji_url = "https://example.com/emoji.png?size=32&format=png";
+        payload.attachments.add(attachment);
+        payload.attachments.add(null);
+
+        assertSameJson(payload);
+    }
+
+    /**
+     * The adapters write what the reflective adapters write, and read back what the reflective adapters read.
+     * A missing attachment list is read as an empty one, as the constructor of {@link Payload} creates it.
+     */
+    private static void assertSameJson(Payload payload) {
+        String json = PayloadGson.toJson(payload);
+        assertEquals(REFLECTIVE.toJson(payload), json);
+
+        Payload read = PayloadGson.fromJson(json);
+        assertEquals(REFLECTIVE.toJson(REFLECTIVE.fromJson(json, Payload.class)), REFLECTIVE.toJson(read));
+        if (payload.attachments != null) assertEquals(json, PayloadGson.toJson(read));
+    }
+
+    private static Field field(String title, String value, boolean isShort) {
+        Field field = new Field();
+        field.title = title;
+        field.value = value;
+        field.isShort = isShort;
+        return field;
+    }
+}
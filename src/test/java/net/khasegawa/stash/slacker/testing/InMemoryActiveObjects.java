@@ -0,0 +1,412 @@
+package net.khasegawa.stash.slacker.testing;
+
+import com.atlassian.activeobjects.external.ActiveObjects;
+import com.atlassian.sal.api.transaction.TransactionCallback;
+import net.java.ao.DBParam;
+import net.java.ao.EntityStreamCallback;
+import net.java.ao.Query;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * ActiveObjects storing its tables in memory, shared by the simulated nodes of a cluster.
+ *
+ * Where clauses are conditions joined by AND, each a column compared to a parameter with =, &lt;&gt;, &lt;, &lt;=,
+ * &gt; or &gt;=, a column IN or NOT IN a list of parameters, or a column IS NULL or IS NOT NULL.
+ * Orders are a single column ASC or DESC. Entities are proxies over their row which keep their changes until they
+ * are saved, like those of ActiveObjects. A transaction which throws is rolled back.
+ * The calls are serialized, so the nodes see each other's changes as soon as they are made.
+ *
+ * Created by Kazuki Hasegawa on 26/10/18.
+ *
+ * @author Kazuki Hasegawa
+ */
+public final class InMemoryActiveObjects implements InvocationHandler {
+    private static final Pattern CONDITION = Pattern.compile(
+            "\\s*(\\w+)\\s*(?:(=|<>|<=|>=|<|>)\\s*\\?|(NOT\\s+)?IN\\s*\\(([?,\\s]*)\\)|IS\\s+(NOT\\s+)?NULL)\\s*",
+            Pattern.CASE_INSENSITIVE);
+    private static final Pattern AND = Pattern.compile("\\s+AND\\s+", Pattern.CASE_INSENSITIVE);
+
+    // Rows by ID, columns by name such as "NEXT_ATTEMPT_AT".
+    private Map<Class<?>, TreeMap<Integer, Map<String, Object>>> tables =
+            new HashMap<Class<?>, TreeMap<Integer, Map<String, Object>>>();
+    private final Map<Class<?>, Integer> nextIds = new HashMap<Class<?>, Integer>();
+    private final Map<Class<?>, Integer> deleted = new HashMap<Class<?>, Integer>();
+    private int transactions;
+
+    public ActiveObjects proxy() {
+        return (ActiveObjects) Proxy.newProxyInstance(ActiveObjects.class.getClassLoader(),
+                                                      new Class<?>[] { ActiveObjects.class }, this);
+    }
+
+    /**
+     * @return The number of stored rows of the entity.
+     */
+    public synchronized int size(Class<?> type) {
+        return table(type).size();
+    }
+
+    /**
+     * @return The number of rows of the entity ever inserted.
+     */
+    public synchronized int getInserted(Class<?> type) {
+        Integer nextId = nextIds.get(type);
+        return nextId == null ? 0 : nextId - 1;
+    }
+
+    /**
+     * @return The number of rows of the entity ever deleted.
+     */
+    public synchronized int getDeleted(Class<?> type) {
+        Integer count = deleted.get(type);
+        return count == null ? 0 : count;
+    }
+
+    /**
+     * @return A copy of the rows of the entity, by ID.
+     */
+    public synchronized Map<Integer, Map<String, Object>> rows(Class<?> type) {
+        return copy(table(type));
+    }
+
+    /**
+     * Stores a row with the ID, such as one of a transaction which got its ID before others but committed after them.
+     */
+    public synchronized void put(Class<?> type, Integer id, Map<String, Object> row) {
+        Map<String, Object> stored = new HashMap<String, Object>(row);
+        stored.put("ID", id);
+        table(type).put(id, stored);
+    }
+
+    /**
+     * Changes a column of a stored row, as another node or an administrator would.
+     */
+    public synchronized void update(Class<?> type, Integer id, String column, Object value) {
+        Map<String, Object> row = table(type).get(id);
+        if (row == null) throw new IllegalArgumentException(type.getSimpleName() + " " + id + " does not exist");
+        row.put(column, value);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public synchronized Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        String name = method.getName();
+        if (name.equals("executeInTransaction")) return transaction((TransactionCallback<?>) args[0]);
+        if (name.equals("flushAll") || name.equals("migrate")) return null;
+        if (name.equals("delete")) {
+            for (Object entity : (Object[]) args[0]) {
+                Handler handler = (Handler) Proxy.getInvocationHandler(entity);
+                if (table(handler.type).remove(handler.id) != null) count(deleted, handler.type, 1);
+            }
+            return null;
+        }
+
+        Class<?> type = (Class<?>) args[0];
+        if (name.equals("create")) {
+            if (args[1] instanceof List) {
+                for (Map<String, Object> row : (List<Map<String, Object>>) args[1]) {
+                    insert(type, row);
+                }
+                return null;
+            }
+            if (args[1] instanceof Map) return entity(type, insert(type, (Map<String, Object>) args[1]));
+
+            Map<String, Object> row = new HashMap<String, Object>();
+            for (DBParam param : (DBParam[]) args[1]) {
+                row.put(param.getField(), param.getValue());
+            }
+            return entity(type, insert(type, row));
+        }
+        if (name.equals("get")) {
+            Integer id = (Integer) args[1];
+            return table(type).containsKey(id) ? entity(type, id) : null;
+        }
+        if (name.equals("find")) {
+            List<Integer> ids;
+            if (args.length == 1) {
+                ids = select(type, null, new Object[0], null, -1);
+            } else if (args[1] instanceof Query) {
+                Query query = (Query) args[1];
+                ids = select(type, query.getWhereClause(), query.getWhereParams(), query.getOrderClause(),
+                             query.getLimit());
+            } else {
+                ids = select(type, (String) args[1], (Object[]) args[2], null, -1);
+            }
+            Object entities = Array.newInstance(type, ids.size());
+            for (int i = 0; i < ids.size(); i++) {
+                Array.set(entities, i, entity(type, ids.get(i)));
+            }
+            return entities;
+        }
+        if (name.equals("count")) {
+            Query query = (Query) args[1];
+            return select(type, query.getWhereClause(), query.getWhereParams(), null, query.getLimit()).size();
+        }
+        if (name.equals("stream")) {
+            Query query = args.length == 3 ? (Query) args[1] : null;
+            EntityStreamCallback<Object, Integer> callback =
+                    (EntityStreamCallback<Object, Integer>) args[args.length - 1];
+            List<Integer> ids = query == null ? select(type, null, new Object[0], null, -1) :
+                    select(type, query.getWhereClause(), query.getWhereParams(), query.getOrderClause(),
+                           query.getLimit());
+            for (Integer id : ids) {
+                callback.onRowRead(entity(type, id));
+            }
+            return null;
+        }
+        if (name.equals("deleteWithSQL")) {
+            List<Integer> ids = select(type, (String) args[1], (Object[]) args[2], null, -1);
+            table(type).keySet().removeAll(ids);
+            count(deleted, type, ids.size());
+            return ids.size();
+        }
+        throw new UnsupportedOperationException(method.toString());
+    }
+
+    private Object transaction(TransactionCallback<?> callback) {
+        if (transactions > 0) return callback.doInTransaction();
+
+        Map<Class<?>, TreeMap<Integer, Map<String, Object>>> before =
+                new HashMap<Class<?>, TreeMap<Integer, Map<String, Object>>>();
+        for (Map.Entry<Class<?>, TreeMap<Integer, Map<String, Object>>> table : tables.entrySet()) {
+            before.put(table.getKey(), copy(table.getValue()));
+        }
+
+        transactions++;
+        try {
+            return callback.doInTransaction();
+        } catch (RuntimeException e) {
+            tables = before;
+            throw e;
+        } catch (Error e) {
+            tables = before;
+            throw e;
+        } finally {
+            transactions--;
+        }
+    }
+
+    private Integer insert(Class<?> type, Map<String, Object> row) {
+        Integer id = nextIds.containsKey(type) ? nextIds.get(type) : 1;
+        nextIds.put(type, id + 1);
+        Map<String, Object> inserted = new HashMap<String, Object>(row);
+        inserted.put("ID", id);
+        table(type).put(id, inserted);
+        return id;
+    }
+
+    /**
+     * @return The IDs of the rows matching the clause, in the order of the order clause or else by ID.
+     */
+    private List<Integer> select(Class<?> type, String where, Object[] params, String order, int limit) {
+        TreeMap<Integer, Map<String, Object>> table = table(type);
+        List<Condition> conditions = parse(where, params);
+        List<Integer> ids = new ArrayList<Integer>();
+        for (Map.Entry<Integer, Map<String, Object>> row : table.entrySet()) {
+            if (matches(conditions, row.getValue())) ids.add(row.getKey());
+        }
+
+        if (order != null) {
+            String[] terms = order.trim().split("\\s+");
+            final String column = terms[0].toUpperCase();
+            final boolean descending = terms.length > 1 && terms[1].equalsIgnoreCase("DESC");
+            final Map<Integer, Map<String, Object>> rows = table;
+            Collections.sort(ids, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer a, Integer b) {
+                    int compared = compareValues(rows.get(a).get(column), rows.get(b).get(column));
+                    return descending ? -compared : compared;
+                }
+            });
+        }
+        return limit >= 0 && ids.size() > limit ? new ArrayList<Integer>(ids.subList(0, limit)) : ids;
+    }
+
+    private static List<Condition> parse(String where, Object[] params) {
+        List<Condition> conditions = new ArrayList<Condition>();
+        if (where == null || where.trim().isEmpty()) return conditions;
+
+        int param = 0;
+        for (String term : AND.split(where.trim())) {
+            Matcher matcher = CONDITION.matcher(term);
+            if (!matcher.matches()) throw new UnsupportedOperationException("Unsupported condition: " + term);
+
+            Condition condition = new Condition(matcher.group(1).toUpperCase());
+            if (matcher.group(2) != null) {
+                condition.operator = matcher.group(2);
+                condition.values = new Object[] { params[param++] };
+            } else if (matcher.group(4) != null) {
+                int count = matcher.group(4).replaceAll("[^?]", "").length();
+                condition.operator = matcher.group(3) == null ? "IN" : "NOT IN";
+                condition.values = Arrays.copyOfRange(params, param, param + count);
+                param += count;
+            } else {
+                condition.operator = matcher.group(5) == null ? "IS NULL" : "IS NOT NULL";
+            }
+            conditions.add(condition);
+        }
+        if (param != params.length) {
+            throw new IllegalArgumentException(params.length + " parameters for " + param + " placeholders: " + where);
+        }
+        return conditions;
+    }
+
+    private static boolean matches(List<Condition> conditions, Map<String, Object> row) {
+        for (Condition condition : conditions) {
+            Object value = row.get(condition.column);
+            String operator = condition.operator;
+            if (operator.equals("IS NULL")) {
+                if (value != null) return false;
+            } else if (operator.equals("IS NOT NULL")) {
+                if (value == null) return false;
+            } else if (operator.equals("IN") || operator.equals("NOT IN")) {
+                if (value == null) return false;
+                boolean found = false;
+                for (Object candidate : condition.values) {
+                    if (candidate != null && compareValues(value, candidate) == 0) found = true;
+                }
+                if (found != operator.equals("IN")) return false;
+            } else {
+                // Like SQL, a comparison with NULL is never true.
+                Object parameter = condition.values[0];
+                if (value == null || parameter == null) return false;
+
+                int compared = compareValues(value, parameter);
+                boolean result = operator.equals("=") ? compared == 0 :
+                        operator.equals("<>") ? compared != 0 :
+                        operator.equals("<") ? compared < 0 :
+                        operator.equals("<=") ? compared <= 0 :
+                        operator.equals(">") ? compared > 0 : compared >= 0;
+                if (!result) return false;
+            }
+        }
+        return true;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static int compareValues(Object a, Object b) {
+        if (a == null || b == null) return a == null ? (b == null ? 0 : -1) : 1;
+        if (a instanceof Number && b instanceof Number) {
+            return Long.compare(((Number) a).longValue(), ((Number) b).longValue());
+        }
+        return ((Comparable<Object>) a).compareTo(b);
+    }
+
+    private TreeMap<Integer, Map<String, Object>> table(Class<?> type) {
+        TreeMap<Integer, Map<String, Object>> table = tables.get(type);
+        if (table == null) {
+            table = new TreeMap<Integer, Map<String, Object>>();
+            tables.put(type, table);
+        }
+        return table;
+    }
+
+    private static TreeMap<Integer, Map<String, Object>> copy(Map<Integer, Map<String, Object>> table) {
+        TreeMap<Integer, Map<String, Object>> copy = new TreeMap<Integer, Map<String, Object>>();
+        for (Map.Entry<Integer, Map<String, Object>> row : table.entrySet()) {
+            copy.put(row.getKey(), new HashMap<String, Object>(row.getValue()));
+        }
+        return copy;
+    }
+
+    private static void count(Map<Class<?>, Integer> counts, Class<?> type, int count) {
+        Integer current = counts.get(type);
+        counts.put(type, (current == null ? 0 : current) + count);
+    }
+
+    private Object entity(Class<?> type, Integer id) {
+        return Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, new Handler(type, id));
+    }
+
+    /**
+     * @return The column of a property, such as NEXT_ATTEMPT_AT for NextAttemptAt or HOOK_URL for HookURL.
+     */
+    private static String column(String property) {
+        StringBuilder column = new StringBuilder();
+        for (int i = 0; i < property.length(); i++) {
+            char c = property.charAt(i);
+            if (i > 0 && Character.isUpperCase(c) && Character.isLowerCase(property.charAt(i - 1))) column.append('_');
+            column.append(Character.toUpperCase(c));
+        }
+        return column.toString();
+    }
+
+    private static final class Condition {
+        private final String column;
+        private String operator;
+        private Object[] values;
+
+        private Condition(String column) {
+            this.column = column;
+        }
+    }
+
+    /**
+     * Reads the row of the entity and keeps the changes until it is saved.
+     */
+    private final class Handler implements InvocationHandler {
+        private final Class<?> type;
+        private final Integer id;
+        private final Map<String, Object> changes = new HashMap<String, Object>();
+
+        private Handler(Class<?> type, Integer id) {
+            this.type = type;
+            this.id = id;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if (method.getDeclaringClass() == Object.class) {
+                if (name.equals("hashCode")) return id;
+                if (name.equals("equals")) {
+                    return args[0] != null && Proxy.isProxyClass(args[0].getClass()) &&
+                            Proxy.getInvocationHandler(args[0]) instanceof Handler &&
+                            ((Handler) Proxy.getInvocationHandler(args[0])).type == type &&
+                            ((Handler) Proxy.getInvocationHandler(args[0])).id.equals(id);
+                }
+                if (name.equals("toString")) return type.getSimpleName() + " " + id;
+                try {
+                    return method.invoke(this, args);
+                } catch (InvocationTargetException e) {
+                    throw e.getCause();
+                }
+            }
+
+            synchronized (InMemoryActiveObjects.this) {
+                if (name.equals("getID")) return id;
+                if (name.equals("save")) {
+                    Map<String, Object> row = table(type).get(id);
+                    if (row != null) row.putAll(changes);
+                    changes.clear();
+                    return null;
+                }
+                if (name.startsWith("set") && args != null && args.length == 1) {
+                    changes.put(column(name.substring(3)), args[0]);
+                    return null;
+                }
+                if (name.startsWith("get") || name.startsWith("is")) {
+                    String column = column(name.substring(name.startsWith("get") ? 3 : 2));
+                    if (changes.containsKey(column)) return changes.get(column);
+                    Map<String, Object> row = table(type).get(id);
+                    return row == null ? null : row.get(column);
+                }
+                throw new UnsupportedOperationException(method.toString());
+            }
+        }
+    }
+}
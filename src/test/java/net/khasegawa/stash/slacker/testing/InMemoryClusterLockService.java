@@ -0,0 +1,68 @@
+package net.khasegawa.stash.slacker.testing;
+
+import com.atlassian.beehive.ClusterLock;
+import com.atlassian.beehive.ClusterLockService;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * ClusterLockService shared by the simulated nodes of a cluster in the tests and the load test.
+ *
+ * Every name has a {@link ReentrantLock}, and the lock methods are called on it by name,
+ * so the nodes of one process exclude each other like the nodes of a cluster.
+ *
+ * Created by Kazuki Hasegawa on 26/10/18.
+ *
+ * @author Kazuki Hasegawa
+ */
+public final class InMemoryClusterLockService implements InvocationHandler {
+    private final Map<String, ClusterLock> locks = new HashMap<String, ClusterLock>();
+
+    public ClusterLockService proxy() {
+        return (ClusterLockService) Proxy.newProxyInstance(ClusterLockService.class.getClassLoader(),
+                                                           new Class<?>[] { ClusterLockService.class }, this);
+    }
+
+    @Override
+    public synchronized Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        if (!method.getName().equals("getLockForName")) {
+            throw new UnsupportedOperationException(method.toString());
+        }
+
+        String name = (String) args[0];
+        ClusterLock lock = locks.get(name);
+        if (lock == null) {
+            lock = lock(name);
+            locks.put(name, lock);
+        }
+        return lock;
+    }
+
+    private static ClusterLock lock(final String name) {
+        final ReentrantLock lock = new ReentrantLock();
+        return (ClusterLock) Proxy.newProxyInstance(
+                ClusterLock.class.getClassLoader(), new Class<?>[] { ClusterLock.class }, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        if (method.getName().equals("hashCode")) return name.hashCode();
+                        if (method.getName().equals("equals")) return proxy == args[0];
+                        if (method.getName().equals("toString")) return "ClusterLock " + name;
+
+                        try {
+                            return ReentrantLock.class.getMethod(method.getName(), method.getParameterTypes())
+                                    .invoke(lock, args);
+                        } catch (NoSuchMethodException e) {
+                            throw new UnsupportedOperationException(method.toString());
+                        } catch (InvocationTargetException e) {
+                            throw e.getCause();
+                        }
+                    }
+                });
+    }
+}
@@ -0,0 +1,61 @@
+package net.khasegawa.stash.slacker.testing;
+
+import com.atlassian.bitbucket.server.ApplicationPropertiesService;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URI;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * ApplicationPropertiesService answering every plugin property with its override, converted to the type of the
+ * default, or else the default, as bitbucket.properties without the property would.
+ *
+ * Created by Kazuki Hasegawa on 26/10/18.
+ *
+ * @author Kazuki Hasegawa
+ */
+public final class StubPropertiesService implements InvocationHandler {
+    private final Map<String, String> properties;
+
+    private StubPropertiesService(Map<String, String> properties) {
+        this.properties = new HashMap<String, String>(properties);
+    }
+
+    public static ApplicationPropertiesService of(Map<String, String> properties) {
+        return (ApplicationPropertiesService) Proxy.newProxyInstance(
+                ApplicationPropertiesService.class.getClassLoader(),
+                new Class<?>[] { ApplicationPropertiesService.class }, new StubPropertiesService(properties));
+    }
+
+    /**
+     * @param properties Names followed by their values.
+     */
+    public static ApplicationPropertiesService of(String... properties) {
+        Map<String, String> map = new HashMap<String, String>();
+        for (int i = 0; i + 1 < properties.length; i += 2) {
+            map.put(properties[i], properties[i + 1]);
+        }
+        return of(map);
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) {
+        String name = method.getName();
+        if (name.equals("getBaseUrl")) return URI.create("https://bitbucket.example.com");
+        if (name.equals("hashCode")) return System.identityHashCode(proxy);
+        if (name.equals("equals")) return proxy == args[0];
+        if (name.equals("toString")) return "ApplicationPropertiesService " + properties;
+        if (!name.equals("getPluginProperty")) throw new UnsupportedOperationException(method.toString());
+
+        String value = properties.get((String) args[0]);
+        if (args.length == 1) return value;
+        if (value == null) return args[1];
+        if (args[1] instanceof Integer) return Integer.valueOf(value);
+        if (args[1] instanceof Long) return Long.valueOf(value);
+        if (args[1] instanceof Boolean) return Boolean.valueOf(value);
+        return value;
+    }
+}